@@ -97,6 +97,26 @@ public class HttpException extends java.io.IOException {
         }
     }
 
+    /**
+     * HTTP 429
+     */
+    public static class TooManyRequests extends ClientError {
+        public TooManyRequests(URL errorUrl, int responseCode, String message,
+                               JsonObject errorInfo, Throwable chained,
+                               long retryAfter) {
+            super(errorUrl, responseCode, message, errorInfo, chained);
+            _retryAfter = retryAfter;
+        }
+
+        /**
+         * Returns the time, in milliseconds, that the server asked clients
+         * to wait before sending more requests, or -1 if not specified.
+         */
+        public long getRetryAfter() { return _retryAfter; }
+
+        private final long _retryAfter;
+    }
+
     /**
      * Generic super class for all 5xx error codes
      */
@@ -13,6 +13,11 @@ import com.idibon.api.util.Either;
  * Wraps the result of a {@link java.util.concurrent.Future}, either
  * exceptional or succsesful in an Either monad, suppressing the thrown
  * exception.
+ *
+ * Results may also be consumed without blocking a thread: callbacks
+ * registered with {@link #onComplete} run when the transport completes
+ * the request, and {@link #thenApply} and {@link #thenCompose} chain
+ * further processing or requests onto the result.
  */
 public final class HttpFuture<Result extends JsonValue>
     implements Future<Either<IOException, Result>> {
@@ -78,7 +83,8 @@ public final class HttpFuture<Result extends JsonValue>
                 return Either.left((IOException)actual);
             return Either.left(new IOException("Async exception", actual));
         } catch (TimeoutException ex) {
-            IOException err = new IOException("Operation failed to complete");
+            IOException err = new HttpTimeoutException(
+                "Operation failed to complete");
             err.setStackTrace(ex.getStackTrace());
             return Either.left(err);
         } catch (CancellationException ex) {
@@ -92,6 +98,166 @@ public final class HttpFuture<Result extends JsonValue>
         }
     }
 
+    /**
+     * Waits at most the given time for the result. If the request has not
+     * completed by then, it is cancelled (freeing its connection) and an
+     * {@link com.idibon.api.http.HttpTimeoutException} is returned.
+     *
+     * Unlike {@link #get(long, TimeUnit)}, the request is abandoned once
+     * the deadline passes, so this may be used to enforce a deadline on
+     * an individual request.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout argument
+     * @return {@link com.idibon.api.util.Either} with the result or error
+     */
+    public Either<IOException, Result> getOrCancel(long timeout,
+          TimeUnit unit) {
+        Either<IOException, Result> result = get(timeout, unit);
+        if (result.isLeft() && result.left instanceof HttpTimeoutException &&
+              !_base.isDone()) {
+            _base.cancel(true);
+        }
+        return result;
+    }
+
+    /**
+     * Receives the outcome of an HttpFuture once it completes.
+     */
+    public interface Callback<R> {
+        void completed(Either<IOException, R> result);
+    }
+
+    /**
+     * Calls the callback once the request completes, on the thread that
+     * completes it (which may be an I/O thread, so the callback must not
+     * block). If the request is already done, the callback is called
+     * immediately.
+     *
+     * @param callback Receives the result or error
+     * @return this
+     */
+    public HttpFuture<Result> onComplete(final Callback<Result> callback) {
+        whenDone(new Runnable() {
+            public void run() {
+                callback.completed(get());
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Calls the callback on the executor once the request completes.
+     *
+     * @param callback Receives the result or error
+     * @param executor Runs the callback
+     * @return this
+     */
+    public HttpFuture<Result> onComplete(final Callback<Result> callback,
+          final Executor executor) {
+        whenDone(new Runnable() {
+            public void run() {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        callback.completed(get());
+                    }
+                });
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Returns a future for the result of applying the transform to a
+     * successful result. Errors are passed through without calling the
+     * transform; exceptions thrown by the transform fail the returned
+     * future. Cancelling the returned future cancels this one.
+     *
+     * @param transform Converts the result; must not block
+     * @return A future for the transformed result
+     */
+    public <T extends JsonValue> HttpFuture<T> thenApply(
+          final Either.Fold<Result, T> transform) {
+        final Promise<T> promise = new Promise<>(_base);
+        whenDone(new Runnable() {
+            public void run() {
+                Either<IOException, Result> result = get();
+                if (result.isLeft()) {
+                    promise.fail(result.left);
+                    return;
+                }
+                try {
+                    promise.succeed(transform.fold(result.right));
+                } catch (RuntimeException ex) {
+                    promise.fail(ex);
+                }
+            }
+        });
+        return new HttpFuture<>(promise);
+    }
+
+    /**
+     * Returns a future for a follow-up request, started with the
+     * successful result of this one (e.g., committing annotations for a
+     * prediction). Errors are passed through without starting the next
+     * request. Cancelling the returned future cancels whichever request
+     * is outstanding.
+     *
+     * @param next Starts the follow-up request; must not block
+     * @return A future for the result of the follow-up request
+     */
+    public <T extends JsonValue> HttpFuture<T> thenCompose(
+          final Either.Fold<Result, HttpFuture<T>> next) {
+        final Promise<T> promise = new Promise<>(_base);
+        whenDone(new Runnable() {
+            public void run() {
+                Either<IOException, Result> result = get();
+                if (result.isLeft()) {
+                    promise.fail(result.left);
+                    return;
+                }
+                HttpFuture<T> following;
+                try {
+                    following = next.fold(result.right);
+                } catch (RuntimeException ex) {
+                    promise.fail(ex);
+                    return;
+                }
+                promise.follow(following);
+                following.onComplete(new Callback<T>() {
+                    public void completed(Either<IOException, T> r) {
+                        if (r.isLeft()) promise.fail(r.left);
+                        else promise.succeed(r.right);
+                    }
+                });
+            }
+        });
+        return new HttpFuture<>(promise);
+    }
+
+    /**
+     * Runs the listener when the underlying future completes. Futures that
+     * can't notify listeners are waited on by a shared thread pool.
+     */
+    private void whenDone(final Runnable listener) {
+        if (_base instanceof ListenableTask) {
+            ((ListenableTask<?>)_base).addListener(listener);
+        } else if (_base.isDone()) {
+            listener.run();
+        } else {
+            Waiters.POOL.execute(new Runnable() {
+                public void run() {
+                    try {
+                        _base.get();
+                    } catch (Exception _) {
+                        // reported through the listener
+                    }
+                    listener.run();
+                }
+            });
+        }
+    }
+
     /**
      * Converts a {@link java.util.concurrent.Future} that returns a JsonValue
      * or throws an Exception into an HttpFuture that returns an Either.
@@ -110,4 +276,53 @@ public final class HttpFuture<Result extends JsonValue>
     }
 
     private final Future<Result> _base;
+
+    /**
+     * The result of a composed operation, completed by a listener.
+     */
+    private static final class Promise<R> extends ListenableTask<R> {
+        Promise(Future<?> upstream) {
+            _upstream = upstream;
+        }
+
+        void succeed(R value) {
+            set(value);
+        }
+
+        void fail(Throwable error) {
+            setException(error);
+        }
+
+        /**
+         * Makes cancellation apply to a new upstream operation.
+         */
+        void follow(Future<?> upstream) {
+            _upstream = upstream;
+            if (isCancelled()) upstream.cancel(true);
+        }
+
+        @Override public boolean cancel(boolean mayInterrupt) {
+            if (!super.cancel(mayInterrupt)) return false;
+            _upstream.cancel(mayInterrupt);
+            return true;
+        }
+
+        /// The operation this promise is waiting for
+        private volatile Future<?> _upstream;
+    }
+
+    /**
+     * Lazily-created threads that wait for futures which can't notify
+     * listeners.
+     */
+    private static class Waiters {
+        static final ExecutorService POOL = Executors.newCachedThreadPool(
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "idibon-future-waiter");
+                t.setDaemon(true);
+                return t;
+            }
+          });
+    }
 }
@@ -20,7 +20,16 @@ public interface HttpInterface extends AutoCloseable {
         /**
          * Maximum number of simultaneous parallel requests.
          */
-        ParallelRequestLimit;
+        ParallelRequestLimit,
+        /**
+         * Number of requests waiting to be sent.
+         */
+        QueuedRequests,
+        /**
+         * Number of requests that have been sent (or are being sent) and
+         * are waiting for a response.
+         */
+        ActiveRequests;
     }
 
     /**
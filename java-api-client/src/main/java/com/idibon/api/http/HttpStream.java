@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import javax.json.JsonValue;
+
+import com.idibon.api.util.Either;
+
+/**
+ * The elements of a streaming HTTP response, returned as soon as each
+ * element is received from the server.
+ *
+ * The {@link com.idibon.api.http.StreamingHttpInterface} adds elements as
+ * each chunk of the response is parsed, and the caller iterates over them,
+ * blocking until the next element is available. If the request fails, the
+ * error is returned as the final element.
+ *
+ * At most a fixed number of parsed elements are buffered; the interface
+ * stops reading the response until the caller consumes more elements.
+ * Callers that stop iterating before the end of the response should
+ * {@link #close} the stream, so the connection can be released.
+ */
+public final class HttpStream
+      implements Iterator<Either<IOException, JsonValue>>, AutoCloseable {
+
+    /**
+     * Creates a new stream.
+     *
+     * @param capacity Maximum number of elements buffered before producers
+     *        must wait for the consumer.
+     * @param stallTimeout Time, in milliseconds, that a producer may wait
+     *        for the consumer before the stream is considered abandoned.
+     */
+    public HttpStream(int capacity, long stallTimeout) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid capacity");
+        _capacity = capacity;
+        _stallTimeout = stallTimeout;
+    }
+
+    /**
+     * Returns true if there are more elements (or an error) to read from the
+     * stream. Blocks until the next element is received.
+     */
+    public synchronized boolean hasNext() {
+        try {
+            while (_elements.isEmpty() && !_complete && _error == null &&
+                     !_closed) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            fail(new InterruptedIOException("Operation interrupted"));
+        }
+        if (!_elements.isEmpty()) return true;
+        return _error != null && !_errorReturned && !_closed;
+    }
+
+    /**
+     * Returns the next element from the stream, or the error that caused
+     * the request to fail.
+     */
+    public Either<IOException, JsonValue> next() {
+        Either<IOException, JsonValue> result;
+        Runnable resume = null;
+
+        synchronized (this) {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            if (!_elements.isEmpty()) {
+                result = Either.right(_elements.removeFirst());
+                _waitingSince = 0;
+                resume = _resume;
+                _resume = null;
+                notifyAll();
+            } else {
+                _errorReturned = true;
+                result = Either.left(_error);
+            }
+        }
+
+        if (resume != null) resume.run();
+        return result;
+    }
+
+    /**
+     * Unsupported.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Abandons the stream. Any buffered elements are discarded, and the
+     * rest of the response will not be read.
+     */
+    public void close() {
+        Runnable resume;
+        synchronized (this) {
+            _closed = true;
+            _elements.clear();
+            _done = null;
+            resume = _resume;
+            _resume = null;
+            notifyAll();
+        }
+        if (resume != null) resume.run();
+    }
+
+    /**
+     * Returns true if the consumer has closed the stream.
+     */
+    public synchronized boolean isClosed() {
+        return _closed;
+    }
+
+    /**
+     * Appends an element to the stream, waiting for the consumer if the
+     * stream is full. Used by blocking producers.
+     *
+     * @param value The next element
+     * @throws IOException if the stream is closed, or the consumer does
+     *         not make progress before the stall timeout.
+     */
+    public synchronized void put(JsonValue value) throws IOException {
+        try {
+            while (!_closed && _elements.size() >= _capacity) {
+                if (_waitingSince == 0)
+                    _waitingSince = System.currentTimeMillis();
+                long wait = _waitingSince + _stallTimeout -
+                    System.currentTimeMillis();
+                if (wait <= 0) {
+                    close();
+                    throw new IOException("Stream abandoned by consumer");
+                }
+                wait(wait);
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Operation interrupted");
+        }
+
+        if (_closed) throw new IOException("Stream closed");
+        _elements.addLast(value);
+        received(value);
+        notifyAll();
+    }
+
+    /**
+     * Appends an element to the stream without waiting, even if the stream
+     * is full. Used by non-blocking producers, which should then check
+     * {@link #whenReady} before reading more data. Elements added after the
+     * stream is closed are discarded.
+     *
+     * @param value The next element
+     */
+    public synchronized void add(JsonValue value) {
+        if (_closed) return;
+        _elements.addLast(value);
+        received(value);
+        notifyAll();
+    }
+
+    /**
+     * Checks if the stream has room for more elements. If not, the resume
+     * callback will be run (on the consumer's thread) once the consumer
+     * makes room or closes the stream.
+     *
+     * @param resume Called once the producer may continue
+     * @return true if the producer may continue immediately.
+     */
+    public synchronized boolean whenReady(Runnable resume) {
+        if (_closed || _elements.size() < _capacity) return true;
+        if (_waitingSince == 0) _waitingSince = System.currentTimeMillis();
+        _resume = resume;
+        return false;
+    }
+
+    /**
+     * Returns true if a producer has been waiting for the consumer for
+     * longer than the stall timeout.
+     */
+    public synchronized boolean isStalled() {
+        return _waitingSince != 0 &&
+            System.currentTimeMillis() - _waitingSince >= _stallTimeout;
+    }
+
+    /**
+     * Returns the time, in milliseconds, that producers may wait for the
+     * consumer before the stream is considered abandoned.
+     */
+    public long getStallTimeout() {
+        return _stallTimeout;
+    }
+
+    /**
+     * Returns the number of elements received so far, including any that
+     * the consumer has not read yet.
+     */
+    public synchronized long getReceivedCount() {
+        return _received;
+    }
+
+    /**
+     * Returns the last element received, which the consumer may not have
+     * read yet, or null if nothing has been received.
+     */
+    public synchronized JsonValue getLastReceived() {
+        return _last;
+    }
+
+    /**
+     * Registers a callback to run once the whole response has been
+     * received, typically before the consumer has read all of it. The
+     * callback runs on the producer's thread, or immediately if the
+     * response is already complete; it never runs if the request fails
+     * or the stream is closed first. Only one callback may be registered.
+     *
+     * @param done Called when the response is complete
+     */
+    public void whenComplete(Runnable done) {
+        synchronized (this) {
+            if (!_complete) {
+                if (_error == null && !_closed) _done = done;
+                return;
+            }
+        }
+        done.run();
+    }
+
+    /**
+     * Marks the end of the response.
+     */
+    public void complete() {
+        Runnable done;
+        synchronized (this) {
+            if (_error != null || _complete) return;
+            _complete = true;
+            done = _closed ? null : _done;
+            _done = null;
+            notifyAll();
+        }
+        if (done != null) done.run();
+    }
+
+    /**
+     * Marks the end of the response due to an error. The error is returned
+     * to the consumer after any elements already received.
+     *
+     * @param error The reason the request failed
+     */
+    public synchronized void fail(IOException error) {
+        if (_complete || _error != null) return;
+        _error = error;
+        _done = null;
+        notifyAll();
+    }
+
+    private void received(JsonValue value) {
+        _last = value;
+        _received++;
+    }
+
+    /// Maximum number of buffered elements
+    private final int _capacity;
+
+    /// Time a producer may wait for the consumer, in milliseconds
+    private final long _stallTimeout;
+
+    /// Elements received, but not yet consumed
+    private final Deque<JsonValue> _elements = new ArrayDeque<>();
+
+    /// Callback to resume a paused non-blocking producer
+    private Runnable _resume;
+
+    /// Time when a producer started waiting for space, or 0
+    private long _waitingSince;
+
+    /// Callback run when the response is complete
+    private Runnable _done;
+
+    /// Number of elements received, and the most recent one
+    private long _received;
+    private JsonValue _last;
+
+    private boolean _complete;
+    private boolean _closed;
+    private IOException _error;
+    private boolean _errorReturned;
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Reports that an HTTP request did not complete in time: the connection
+ * could not be established, the server stopped responding, or the
+ * request's deadline passed. The request may or may not have been
+ * processed by the server. The request is abandoned, unless the error was
+ * returned by {@link HttpFuture#get(long, java.util.concurrent.TimeUnit)},
+ * in which case it continues in the background.
+ */
+public class HttpTimeoutException extends SocketTimeoutException {
+    public HttpTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link com.idibon.api.http.MetricsListener} that keeps running totals
+ * in memory for each endpoint template (see
+ * {@link com.idibon.api.http.RequestMetrics#templateOf(String)}): request
+ * and error counts, status codes, retries, bytes transferred, a latency
+ * histogram, and the time spent in each phase of the requests.
+ *
+ * The totals may be read at any time, e.g. by a monitoring thread, and
+ * {@link #toString()} formats all of them as text, one measurement per
+ * line, in the Prometheus exposition format.
+ */
+public class InMemoryMetrics implements MetricsListener {
+
+    /**
+     * Reports the number of queued and active requests for an interface
+     * along with the per-endpoint totals.
+     *
+     * @param intf The interface that reports to this listener
+     * @return this
+     */
+    public InMemoryMetrics monitor(HttpInterface intf) {
+        _interface = intf;
+        return this;
+    }
+
+    public void requestCompleted(RequestMetrics request) {
+        String template = request.getEndpointTemplate();
+        Endpoint endpoint = _endpoints.get(template);
+        if (endpoint == null) {
+            Endpoint created = new Endpoint();
+            endpoint = _endpoints.putIfAbsent(template, created);
+            if (endpoint == null) endpoint = created;
+        }
+        endpoint.record(request);
+    }
+
+    /**
+     * Returns the templates of all endpoints with recorded requests.
+     */
+    public Set<String> getEndpointTemplates() {
+        return new TreeSet<>(_endpoints.keySet());
+    }
+
+    /**
+     * Returns the totals for an endpoint template, or null if no requests
+     * were recorded for it.
+     */
+    public Endpoint getEndpoint(String template) {
+        return _endpoints.get(template);
+    }
+
+    /**
+     * Discards all of the recorded totals.
+     */
+    public void reset() {
+        _endpoints.clear();
+    }
+
+    @Override public String toString() {
+        StringBuilder out = new StringBuilder();
+        HttpInterface intf = _interface;
+        if (intf != null) {
+            out.append(String.format("idibon_queued_requests %d\n",
+                intf.getProperty(HttpInterface.Property.QueuedRequests, 0)));
+            out.append(String.format("idibon_active_requests %d\n",
+                intf.getProperty(HttpInterface.Property.ActiveRequests, 0)));
+        }
+
+        for (String template : getEndpointTemplates()) {
+            Endpoint e = _endpoints.get(template);
+            String label = "endpoint=\"" + template + "\"";
+            out.append(String.format("idibon_requests_total{%s} %d\n",
+                label, e.getRequests()));
+            out.append(String.format("idibon_request_errors_total{%s} %d\n",
+                label, e.getErrors()));
+            out.append(String.format("idibon_request_retries_total{%s} %d\n",
+                label, e.getRetries()));
+            out.append(String.format("idibon_request_bytes_total{%s} %d\n",
+                label, e.getRequestBytes()));
+            out.append(String.format("idibon_response_bytes_total{%s} %d\n",
+                label, e.getResponseBytes()));
+            for (Map.Entry<Integer, Long> status :
+                     e.getStatusCounts().entrySet()) {
+                out.append(String.format(
+                    "idibon_responses_total{%s,status=\"%d\"} %d\n",
+                    label, status.getKey(), status.getValue()));
+            }
+
+            long[] counts = e.getLatencyHistogram();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = i < LATENCY_BUCKETS.length ?
+                    Double.toString(LATENCY_BUCKETS[i] / 1000.0) : "+Inf";
+                out.append(String.format(
+                    "idibon_request_latency_seconds_bucket{%s,le=\"%s\"} %d\n",
+                    label, le, cumulative));
+            }
+            out.append(String.format(Locale.ROOT,
+                "idibon_request_latency_seconds_sum{%s} %.6f\n", label,
+                e.getTotalLatency(TimeUnit.MICROSECONDS) / 1000000.0));
+            out.append(String.format(
+                "idibon_request_latency_seconds_count{%s} %d\n",
+                label, e.getRequests()));
+
+            for (RequestMetrics.Phase phase : RequestMetrics.Phase.values()) {
+                long count = e.getPhaseCount(phase);
+                if (count == 0) continue;
+                String phaseLabel = label + ",phase=\"" + phase + "\"";
+                out.append(String.format(Locale.ROOT,
+                    "idibon_request_phase_seconds_sum{%s} %.6f\n",
+                    phaseLabel, e.getTotalPhaseTime(phase,
+                        TimeUnit.MICROSECONDS) / 1000000.0));
+                out.append(String.format(
+                    "idibon_request_phase_seconds_count{%s} %d\n",
+                    phaseLabel, count));
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Running totals for all requests with the same endpoint template.
+     */
+    public static final class Endpoint {
+
+        /**
+         * Returns the number of completed requests.
+         */
+        public long getRequests() {
+            return _requests.get();
+        }
+
+        /**
+         * Returns the number of requests that failed.
+         */
+        public long getErrors() {
+            return _errors.get();
+        }
+
+        /**
+         * Returns the fraction of requests that failed, from 0 to 1.
+         */
+        public double getErrorRate() {
+            long requests = getRequests();
+            return requests == 0 ? 0.0 : (double)getErrors() / requests;
+        }
+
+        /**
+         * Returns the total number of retries.
+         */
+        public long getRetries() {
+            return _retries.get();
+        }
+
+        /**
+         * Returns the total size of the request bodies sent.
+         */
+        public long getRequestBytes() {
+            return _requestBytes.get();
+        }
+
+        /**
+         * Returns the total size of the response bodies received.
+         */
+        public long getResponseBytes() {
+            return _responseBytes.get();
+        }
+
+        /**
+         * Returns the number of responses with each HTTP status code.
+         * Requests that failed without a response are not included.
+         */
+        public Map<Integer, Long> getStatusCounts() {
+            Map<Integer, Long> counts = new TreeMap<>();
+            for (Map.Entry<Integer, AtomicLong> e : _statuses.entrySet())
+                counts.put(e.getKey(), e.getValue().get());
+            return counts;
+        }
+
+        /**
+         * Returns the sum of the latencies of all requests.
+         */
+        public long getTotalLatency(TimeUnit unit) {
+            return unit.convert(_totalLatency.get(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns the sum of the time spent in a phase by all requests
+         * that reached it.
+         */
+        public long getTotalPhaseTime(RequestMetrics.Phase phase,
+              TimeUnit unit) {
+            return unit.convert(_phaseTimes.get(phase.ordinal()),
+                                TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns the number of requests that reached a phase. Divide the
+         * total time by this count for the average time in the phase.
+         */
+        public long getPhaseCount(RequestMetrics.Phase phase) {
+            return _phaseCounts.get(phase.ordinal());
+        }
+
+        /**
+         * Returns the number of requests in each latency bucket. Element i
+         * counts the requests that took at most
+         * {@link InMemoryMetrics#getLatencyBuckets}()[i] milliseconds (and
+         * longer than the previous bucket); the last element counts all
+         * slower requests.
+         */
+        public long[] getLatencyHistogram() {
+            long[] counts = new long[_latencies.length()];
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = _latencies.get(i);
+            return counts;
+        }
+
+        /**
+         * Estimates a latency percentile from the histogram, as the upper
+         * bound of the bucket that contains it.
+         *
+         * @param percentile The percentile, e.g. 99.0
+         * @return The estimated latency in milliseconds, -1 if no requests
+         *         were recorded, or Long.MAX_VALUE if it is slower than
+         *         the largest bucket.
+         */
+        public long getLatencyPercentile(double percentile) {
+            if (percentile < 0.0 || percentile > 100.0)
+                throw new IllegalArgumentException("Invalid percentile");
+            long[] counts = getLatencyHistogram();
+            long total = 0;
+            for (long count : counts) total += count;
+            if (total == 0) return -1;
+
+            long rank = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return LATENCY_BUCKETS[i];
+            }
+            return Long.MAX_VALUE;
+        }
+
+        void record(RequestMetrics request) {
+            _requests.incrementAndGet();
+            if (request.isError()) _errors.incrementAndGet();
+            _retries.addAndGet(request.getRetries());
+            _requestBytes.addAndGet(request.getRequestBytes());
+            _responseBytes.addAndGet(request.getResponseBytes());
+
+            int status = request.getStatus();
+            if (status >= 0) {
+                AtomicLong count = _statuses.get(status);
+                if (count == null) {
+                    AtomicLong created = new AtomicLong();
+                    count = _statuses.putIfAbsent(status, created);
+                    if (count == null) count = created;
+                }
+                count.incrementAndGet();
+            }
+
+            for (RequestMetrics.Phase phase : RequestMetrics.Phase.values()) {
+                long time = request.getPhaseTime(phase, TimeUnit.NANOSECONDS);
+                if (time < 0) continue;
+                _phaseTimes.addAndGet(phase.ordinal(), time);
+                _phaseCounts.incrementAndGet(phase.ordinal());
+            }
+
+            long latency = request.getLatency(TimeUnit.NANOSECONDS);
+            _totalLatency.addAndGet(latency);
+            long millis = TimeUnit.NANOSECONDS.toMillis(latency);
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS.length &&
+                     millis > LATENCY_BUCKETS[bucket])
+                bucket++;
+            _latencies.incrementAndGet(bucket);
+        }
+
+        private Endpoint() { }
+
+        private final AtomicLong _requests = new AtomicLong();
+        private final AtomicLong _errors = new AtomicLong();
+        private final AtomicLong _retries = new AtomicLong();
+        private final AtomicLong _requestBytes = new AtomicLong();
+        private final AtomicLong _responseBytes = new AtomicLong();
+        private final AtomicLong _totalLatency = new AtomicLong();
+        private final ConcurrentMap<Integer, AtomicLong> _statuses =
+            new ConcurrentHashMap<>();
+        private final AtomicLongArray _latencies =
+            new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+        private final AtomicLongArray _phaseTimes =
+            new AtomicLongArray(RequestMetrics.Phase.values().length);
+        private final AtomicLongArray _phaseCounts =
+            new AtomicLongArray(RequestMetrics.Phase.values().length);
+    }
+
+    /**
+     * Returns the upper bounds of the latency histogram buckets, in
+     * milliseconds.
+     */
+    public static long[] getLatencyBuckets() {
+        return LATENCY_BUCKETS.clone();
+    }
+
+    /// Upper bounds of the latency histogram buckets, in milliseconds
+    private static final long[] LATENCY_BUCKETS = {
+        5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000
+    };
+
+    /// Totals for each endpoint template
+    private final ConcurrentMap<String, Endpoint> _endpoints =
+        new ConcurrentHashMap<>();
+
+    /// Reports queue depth and active requests, or null
+    private volatile HttpInterface _interface;
+}
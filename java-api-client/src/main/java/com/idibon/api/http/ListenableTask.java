@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A {@link java.util.concurrent.FutureTask} that notifies listeners when
+ * it completes, so that {@link com.idibon.api.http.HttpFuture} callbacks
+ * run as soon as the transport finishes a request, without a thread
+ * blocking on the result.
+ *
+ * HttpInterface implementations should return futures derived from this
+ * class; other futures are supported, but each pending callback ties up
+ * a thread until the future completes.
+ *
+ * Subclasses that override {@link #done} must call super.done().
+ */
+public class ListenableTask<V> extends FutureTask<V> {
+
+    /**
+     * Creates a task that runs the callable.
+     */
+    public ListenableTask(Callable<V> callable) {
+        super(callable);
+    }
+
+    /**
+     * Creates a task that is never run, and is instead completed
+     * explicitly with {@link #set} or {@link #setException}.
+     */
+    @SuppressWarnings("unchecked")
+    protected ListenableTask() {
+        super((Callable<V>)NOT_RUNNABLE);
+    }
+
+    /**
+     * Runs the listener once the task completes, on the
+     * {@link #listenerExecutor} or (by default) the thread that completes
+     * it. If the task is already done, the listener is run immediately on
+     * the calling thread.
+     *
+     * Listeners should return quickly: they may run on an I/O thread.
+     *
+     * @param listener Runnable to call when the task is done
+     */
+    public void addListener(Runnable listener) {
+        synchronized (_listeners) {
+            if (!_notified) {
+                _listeners.add(listener);
+                return;
+            }
+        }
+        runListener(listener);
+    }
+
+    @Override protected void done() {
+        final List<Runnable> listeners;
+        synchronized (_listeners) {
+            _notified = true;
+            listeners = new ArrayList<>(_listeners);
+            _listeners.clear();
+        }
+        if (listeners.isEmpty()) return;
+
+        Runnable notifier = new Runnable() {
+            public void run() {
+                for (Runnable listener : listeners) runListener(listener);
+            }
+        };
+        Executor executor = listenerExecutor();
+        if (executor != null) {
+            try {
+                executor.execute(notifier);
+                return;
+            } catch (RejectedExecutionException _) {
+                // notify on this thread instead
+            }
+        }
+        notifier.run();
+    }
+
+    /**
+     * Returns the executor used to notify listeners when the task
+     * completes, or null to notify them on the completing thread.
+     */
+    protected Executor listenerExecutor() {
+        return null;
+    }
+
+    /**
+     * Runs a listener, reporting any exception it throws to the current
+     * thread's uncaught exception handler rather than to the code that
+     * completed the task.
+     */
+    private static void runListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException ex) {
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+        }
+    }
+
+    /// Listeners waiting for the task to complete
+    private final List<Runnable> _listeners = new ArrayList<>();
+
+    /// True once the listeners have been notified
+    private boolean _notified;
+
+    private static final Callable<Object> NOT_RUNNABLE =
+      new Callable<Object>() {
+        public Object call() {
+            throw new IllegalStateException("Not runnable");
+        }
+      };
+}
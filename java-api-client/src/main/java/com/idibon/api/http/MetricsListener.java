@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+/**
+ * Receives a measurement of every request made by an HttpInterface, for
+ * monitoring. See {@link com.idibon.api.http.InMemoryMetrics} for an
+ * implementation that aggregates the measurements by endpoint.
+ *
+ * Each measurement includes the time spent in each phase of the request
+ * (see {@link com.idibon.api.http.RequestMetrics.Phase}), so a listener
+ * may also forward them to a tracing system as spans.
+ */
+public interface MetricsListener {
+
+    /**
+     * Called once each request completes, whether it succeeded, failed,
+     * timed out or was cancelled.
+     *
+     * Called on the thread that completed the request, which may be an
+     * I/O thread, so implementations must be thread-safe and should
+     * return quickly.
+     *
+     * @param request Measurements for the completed request
+     */
+    void requestCompleted(RequestMetrics request);
+}
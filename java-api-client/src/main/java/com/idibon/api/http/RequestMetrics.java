@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measurements for a single completed request, reported to a
+ * {@link com.idibon.api.http.MetricsListener}.
+ *
+ * The time spent in each {@link Phase} of the last attempt is also
+ * recorded, so that a request can be traced as a series of spans: the
+ * phases happened in order, starting at {@link #getStartTime}, and any
+ * gap between the queue phase and the others was spent on earlier
+ * attempts and retry delays.
+ */
+public final class RequestMetrics {
+
+    /**
+     * The phases of a request.
+     */
+    public enum Phase {
+        /**
+         * Waiting for a thread or connection to send the request.
+         */
+        Queue,
+        /**
+         * Opening the network connection, including DNS resolution. Zero
+         * if an idle connection was re-used. JdkHttpInterface includes
+         * the TLS handshake in this phase.
+         */
+        Connect,
+        /**
+         * Performing the TLS handshake for HTTPS connections.
+         */
+        Handshake,
+        /**
+         * Writing the request to the connection.
+         */
+        Send,
+        /**
+         * Waiting for the server to respond, after the request was sent
+         * (time to first byte).
+         */
+        Wait,
+        /**
+         * Receiving the response body from the network.
+         */
+        Download,
+        /**
+         * Decompressing and parsing the response. For streaming requests
+         * this includes time spent waiting for the stream consumer.
+         */
+        Parse;
+    }
+
+    /**
+     * Creates the measurements for a request.
+     *
+     * @param method HTTP method, e.g. "GET"
+     * @param endpoint Endpoint of the request, including any query
+     * @param status HTTP status code of the last response, or -1 if no
+     *        response was received
+     * @param error Why the request failed, or null if it succeeded
+     * @param queueTime Time spent waiting to be sent, in nanoseconds
+     * @param latency Total time from submission until completion, in
+     *        nanoseconds, including the queue time
+     * @param requestBytes Size of the request body sent to the server
+     * @param responseBytes Size of the response body received from the
+     *        server
+     * @param retries Number of times the request was retried
+     */
+    public RequestMetrics(String method, String endpoint, int status,
+          Throwable error, long queueTime, long latency, long requestBytes,
+          long responseBytes, int retries) {
+        this(method, endpoint, status, error, queueTime, latency,
+             requestBytes, responseBytes, retries,
+             System.currentTimeMillis() - latency / 1000000, null);
+    }
+
+    /**
+     * Creates the measurements for a request, including the time spent
+     * in each phase.
+     *
+     * @param startTime Time the request was submitted, in milliseconds
+     *        since the epoch
+     * @param phases Time spent in each phase of the last attempt, in
+     *        nanoseconds, indexed by {@link Phase#ordinal}; -1 for phases
+     *        that were not measured. The queue time is used for the
+     *        Queue phase.
+     * @see #RequestMetrics(String, String, int, Throwable, long, long,
+     *      long, long, int)
+     */
+    public RequestMetrics(String method, String endpoint, int status,
+          Throwable error, long queueTime, long latency, long requestBytes,
+          long responseBytes, int retries, long startTime, long[] phases) {
+        _method = method;
+        _endpoint = endpoint;
+        _status = status;
+        _error = error;
+        _queueTime = queueTime;
+        _latency = latency;
+        _requestBytes = requestBytes;
+        _responseBytes = responseBytes;
+        _retries = retries;
+        _startTime = startTime;
+        _phases = new long[PHASES.length];
+        for (int i = 0; i < _phases.length; i++) {
+            _phases[i] = phases != null && i < phases.length ?
+                phases[i] : -1;
+        }
+        _phases[Phase.Queue.ordinal()] = queueTime;
+    }
+
+    /**
+     * Returns the HTTP method.
+     */
+    public String getMethod() {
+        return _method;
+    }
+
+    /**
+     * Returns the requested endpoint.
+     */
+    public String getEndpoint() {
+        return _endpoint;
+    }
+
+    /**
+     * Returns the endpoint with the names of collections, tasks and
+     * documents replaced by placeholders, to group measurements for
+     * similar requests. See {@link #templateOf(String)}.
+     */
+    public String getEndpointTemplate() {
+        return templateOf(_endpoint);
+    }
+
+    /**
+     * Returns the HTTP status code of the last response, or -1 if the
+     * request failed before a response was received.
+     */
+    public int getStatus() {
+        return _status;
+    }
+
+    /**
+     * Returns the reason the request failed, or null if it succeeded.
+     */
+    public Throwable getError() {
+        return _error;
+    }
+
+    /**
+     * Returns true if the request failed.
+     */
+    public boolean isError() {
+        return _error != null;
+    }
+
+    /**
+     * Returns the time the request waited to be sent.
+     */
+    public long getQueueTime(TimeUnit unit) {
+        return unit.convert(_queueTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the total time from submission until the request completed,
+     * including time spent in the queue and waiting between retries.
+     */
+    public long getLatency(TimeUnit unit) {
+        return unit.convert(_latency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the time the request was submitted, in milliseconds since
+     * the epoch.
+     */
+    public long getStartTime() {
+        return _startTime;
+    }
+
+    /**
+     * Returns the time spent in a phase of the last attempt, or -1 if the
+     * phase was not measured (e.g., the request failed before reaching
+     * it).
+     */
+    public long getPhaseTime(Phase phase, TimeUnit unit) {
+        long nanos = _phases[phase.ordinal()];
+        return nanos < 0 ? -1 : unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the size of the request body sent to the server for the
+     * last attempt, after compression.
+     */
+    public long getRequestBytes() {
+        return _requestBytes;
+    }
+
+    /**
+     * Returns the size of the response body received from the server for
+     * the last attempt, before decompression.
+     */
+    public long getResponseBytes() {
+        return _responseBytes;
+    }
+
+    /**
+     * Returns the number of times the request was retried.
+     */
+    public int getRetries() {
+        return _retries;
+    }
+
+    @Override public String toString() {
+        StringBuilder phases = new StringBuilder();
+        for (Phase phase : PHASES) {
+            long time = getPhaseTime(phase, TimeUnit.MICROSECONDS);
+            if (time < 0) continue;
+            phases.append(phases.length() == 0 ? " (" : ", ");
+            phases.append(String.format("%s %.3f", phase, time / 1000.0));
+        }
+        if (phases.length() > 0) phases.append(')');
+
+        return String.format("%s %s: status %d, %d ms%s, " +
+            "%d bytes sent, %d bytes received, %d retries%s", _method,
+            _endpoint, _status, getLatency(TimeUnit.MILLISECONDS), phases,
+            _requestBytes, _responseBytes, _retries,
+            _error == null ? "" : ", " + _error);
+    }
+
+    /**
+     * Returns the template for an endpoint, which replaces each path
+     * segment other than "*" with a placeholder and removes any query.
+     * For example, "/General/Politics" becomes "/{collection}/{name}", and
+     * "/General/*" becomes "/{collection}/*". Tasks and documents share
+     * the same template, since both are named directly below their
+     * collection.
+     *
+     * @param endpoint An API endpoint
+     * @return The template for the endpoint
+     */
+    public static String templateOf(String endpoint) {
+        if (endpoint == null) return null;
+        int query = endpoint.indexOf('?');
+        if (query >= 0) endpoint = endpoint.substring(0, query);
+
+        StringBuilder template = new StringBuilder();
+        int segment = 0;
+        for (String part : endpoint.split("/")) {
+            if (part.isEmpty()) continue;
+            template.append('/');
+            if (part.equals("*"))
+                template.append(part);
+            else
+                template.append(PLACEHOLDERS[Math.min(segment,
+                    PLACEHOLDERS.length - 1)]);
+            segment++;
+        }
+        return template.length() == 0 ? "/" : template.toString();
+    }
+
+    /// Placeholders for the first, second and subsequent path segments
+    private static final String[] PLACEHOLDERS = {
+        "{collection}", "{name}", "{id}"
+    };
+
+    private final String _method;
+    private final String _endpoint;
+    private final int _status;
+    private final Throwable _error;
+    private final long _queueTime;
+    private final long _latency;
+    private final long _requestBytes;
+    private final long _responseBytes;
+    private final int _retries;
+    private final long _startTime;
+    private final long[] _phases;
+
+    private static final Phase[] PHASES = Phase.values();
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+/**
+ * Dispatch priority for requests queued by an HttpInterface.
+ *
+ * Queued requests are dispatched in order of the time at which they were
+ * queued plus the maximum delay for their priority, so higher-priority
+ * requests move ahead of lower-priority ones, but lower-priority requests
+ * are never starved: a Bulk request that has waited 10 seconds is
+ * dispatched ahead of a newly-queued Interactive request.
+ */
+public enum RequestPriority {
+    /**
+     * Requests that a user is waiting for, such as a single prediction.
+     */
+    Interactive(0),
+    /**
+     * The default priority.
+     */
+    Normal(1000),
+    /**
+     * Large batch jobs, such as document uploads.
+     */
+    Bulk(10000),
+    /**
+     * Work that may be delayed indefinitely behind other requests, as long
+     * as it eventually completes.
+     */
+    Background(60000);
+
+    RequestPriority(long maxDelay) {
+        _maxDelay = maxDelay;
+    }
+
+    /**
+     * Returns the time, in milliseconds, that a queued request may be
+     * overtaken by higher-priority requests.
+     */
+    public long getMaxDelay() {
+        return _maxDelay;
+    }
+
+    private final long _maxDelay;
+}
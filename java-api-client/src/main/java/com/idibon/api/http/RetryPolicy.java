@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Decides when an HttpInterface should automatically re-send a request
+ * that failed due to a transient error, and how long to wait first.
+ *
+ * Requests are retried after network errors (such as a connection reset
+ * by the server), and after HTTP errors with one of the retryable status
+ * codes (429, 502, 503 and 504 by default). Delays grow exponentially
+ * between attempts, with random jitter so that many clients which failed
+ * at the same time don't all retry at the same time.
+ *
+ * By default, only idempotent methods (GET, PUT and DELETE) are retried,
+ * since a POST that failed after reaching the server may already have
+ * taken effect.
+ *
+ * Configure the policy completely before passing it to an HttpInterface.
+ */
+public class RetryPolicy {
+
+    /**
+     * Sets the maximum number of times a request is sent, including the
+     * first attempt.
+     *
+     * @param attempts Maximum number of attempts, at least 1.
+     * @return this
+     */
+    public RetryPolicy maxAttempts(int attempts) {
+        if (attempts < 1)
+            throw new IllegalArgumentException("Invalid attempt limit");
+        _maxAttempts = attempts;
+        return this;
+    }
+
+    /**
+     * Sets the delay before the first retry. Each subsequent retry waits
+     * twice as long as the previous one, up to the maximum delay.
+     *
+     * @param initialDelay Delay before the first retry, in milliseconds
+     * @param maxDelay Longest delay between attempts, in milliseconds
+     * @return this
+     */
+    public RetryPolicy backoff(long initialDelay, long maxDelay) {
+        if (initialDelay < 0 || maxDelay < initialDelay)
+            throw new IllegalArgumentException("Invalid delay");
+        _initialDelay = initialDelay;
+        _maxDelay = maxDelay;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of each delay which is randomized. For example, a
+     * jitter of 0.5 waits between 50% and 100% of the computed delay.
+     *
+     * @param fraction Randomized fraction of each delay, 0 to 1
+     * @return this
+     */
+    public RetryPolicy jitter(double fraction) {
+        if (fraction < 0.0 || fraction > 1.0)
+            throw new IllegalArgumentException("Invalid jitter");
+        _jitter = fraction;
+        return this;
+    }
+
+    /**
+     * Sets the HTTP status codes that are considered transient, replacing
+     * the defaults.
+     *
+     * @param statusCodes HTTP status codes to retry
+     * @return this
+     */
+    public RetryPolicy retryOnStatus(int... statusCodes) {
+        int[] codes = statusCodes.clone();
+        Arrays.sort(codes);
+        _statusCodes = codes;
+        return this;
+    }
+
+    /**
+     * Allow non-idempotent requests (POST) to be retried. Only enable this
+     * if the API endpoints used can safely receive the same POST twice.
+     *
+     * @param retry True to retry all methods
+     * @return this
+     */
+    public RetryPolicy retryNonIdempotent(boolean retry) {
+        _retryNonIdempotent = retry;
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of times a request is sent.
+     */
+    public int getMaxAttempts() {
+        return _maxAttempts;
+    }
+
+    /**
+     * Returns true if a request should be sent again after it failed.
+     *
+     * @param method The HTTP method of the request (before any tunneling)
+     * @param attempts Number of times the request has been sent so far
+     * @param error The reason the last attempt failed
+     */
+    public boolean shouldRetry(String method, int attempts, IOException error) {
+        if (attempts >= _maxAttempts) return false;
+        if (!_retryNonIdempotent && !isIdempotent(method)) return false;
+
+        if (error instanceof HttpException) {
+            int status = ((HttpException)error).getHttpResponseCode();
+            return Arrays.binarySearch(_statusCodes, status) >= 0;
+        }
+
+        /* thread interruptions and cancellations are intentional, but read
+         * timeouts are treated like any other network error */
+        return !(error instanceof InterruptedIOException) ||
+            error instanceof SocketTimeoutException;
+    }
+
+    /**
+     * Returns the time to wait before the next attempt, in milliseconds.
+     *
+     * @param attempts Number of times the request has been sent so far
+     */
+    public long delay(int attempts) {
+        long delay = _initialDelay;
+        for (int i = 1; i < attempts && delay < _maxDelay; i++) delay *= 2;
+        delay = Math.min(delay, _maxDelay);
+
+        double random;
+        synchronized (_random) {
+            random = _random.nextDouble();
+        }
+        return delay - (long)(delay * _jitter * random);
+    }
+
+    /**
+     * Returns true for HTTP methods that have the same effect no matter
+     * how many times the request is sent.
+     *
+     * @param method An HTTP method, e.g. "GET"
+     */
+    public static boolean isIdempotent(String method) {
+        return method.equals("GET") || method.equals("PUT") ||
+            method.equals("DELETE") || method.equals("HEAD");
+    }
+
+    /* three attempts, starting 100ms apart, recover from most brief
+     * outages (such as a load balancer restarting) without holding
+     * failed requests for long. */
+    private int _maxAttempts = 3;
+    private long _initialDelay = 100;
+    private long _maxDelay = 10000;
+    private double _jitter = 0.5;
+
+    /// Sorted list of HTTP status codes that are retried
+    private int[] _statusCodes = { 429, 502, 503, 504 };
+
+    private boolean _retryNonIdempotent = false;
+
+    private final Random _random = new Random();
+}
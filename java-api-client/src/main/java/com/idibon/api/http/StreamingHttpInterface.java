@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+
+package com.idibon.api.http;
+
+import javax.json.*;
+
+/**
+ * An HttpInterface that can return the elements of multipart chunked
+ * responses incrementally, as each chunk is received, rather than
+ * buffering the entire response.
+ */
+public interface StreamingHttpInterface extends HttpInterface {
+
+    /**
+     * Executes an HTTP GET method and transmits the serialized body to the
+     * specified endpoint, returning each element of the response as it is
+     * received.
+     *
+     * Each chunk of a multipart response is returned as a separate element.
+     * Otherwise, each item in a JSON array response is returned as a
+     * separate element, and any other response is returned as a single
+     * element.
+     *
+     * @param endpoint URI-encoded endpoint for the request
+     * @param body HTTP request body
+     *
+     * @return Stream of decoded JSON elements from the server
+     */
+    public HttpStream httpGetStream(String endpoint, JsonObject body);
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.idibon.api.http.HttpException;
+
+/**
+ * Adjusts the number of parallel requests to the throughput that the API
+ * server can sustain, using additive-increase / multiplicative-decrease.
+ *
+ * The limit grows by one request per window of successful requests, as
+ * long as the window is in use and round-trip times stay close to the
+ * fastest recently observed. Once requests start queueing at the server
+ * (round-trip times grow), or the server reports that it is overloaded,
+ * the limit shrinks by a fixed fraction, at most once per round trip.
+ *
+ * Different kinds of requests (e.g., predicting one document versus a
+ * batch, or searching) take very different amounts of time, so round-trip
+ * times are only compared with earlier requests of the same class.
+ *
+ * All methods are thread-safe.
+ */
+final class AdaptiveLimit {
+
+    /**
+     * @param min Smallest limit
+     * @param max Largest limit
+     * @param initial Starting limit
+     */
+    AdaptiveLimit(int min, int max, int initial) {
+        if (min <= 0 || max < min)
+            throw new IllegalArgumentException("Invalid limit range");
+        _min = min;
+        _max = max;
+        _limit = Math.max(min, Math.min(max, initial));
+    }
+
+    /**
+     * Returns the current limit.
+     */
+    synchronized int getLimit() {
+        return (int)_limit;
+    }
+
+    /**
+     * Records a successful request.
+     *
+     * @param requestClass Identifies requests with comparable round-trip
+     *        times, e.g. the method and endpoint template
+     * @param rtt Round-trip time of the request, in nanoseconds
+     * @param inFlight Number of requests in flight when it completed
+     * @return true if the limit changed
+     */
+    synchronized boolean onSuccess(String requestClass, long rtt,
+          int inFlight) {
+        int previous = (int)_limit;
+        long now = System.nanoTime();
+
+        _smoothedRtt = _smoothedRtt == 0 ? rtt :
+            (_smoothedRtt * 7 + rtt) / 8;
+
+        Baseline b = _baselines.get(requestClass);
+        if (b == null) {
+            b = new Baseline();
+            _baselines.put(requestClass, b);
+        }
+        b.smoothedRtt = b.smoothedRtt == 0 ? rtt :
+            (b.smoothedRtt * 7 + rtt) / 8;
+        /* periodically forget the baseline, so that the limit can recover
+         * after a permanent change in server response time */
+        if (b.minRtt == 0 || rtt < b.minRtt ||
+              ++b.samples >= BASELINE_SAMPLES) {
+            b.minRtt = b.minRtt == 0 || rtt < b.minRtt ? rtt :
+                Math.min(b.smoothedRtt, rtt);
+            b.samples = 0;
+        }
+
+        if (b.smoothedRtt > b.minRtt * LATENCY_TOLERANCE) {
+            decrease(now, LATENCY_BACKOFF);
+        } else if (inFlight * 2 >= previous) {
+            /* only grow while the window is at least half used; otherwise
+             * the application, not the server, is limiting throughput */
+            _limit = Math.min(_max, _limit + 1.0 / _limit);
+        }
+        return (int)_limit != previous;
+    }
+
+    /**
+     * Records a failed request. Failures that show the server is
+     * overloaded reduce the limit.
+     *
+     * @param error The reason the request failed
+     * @return true if the limit changed
+     */
+    synchronized boolean onFailure(IOException error) {
+        if (!isOverload(error)) return false;
+        int previous = (int)_limit;
+        decrease(System.nanoTime(), OVERLOAD_BACKOFF);
+        return (int)_limit != previous;
+    }
+
+    /**
+     * Shrinks the limit, unless it was already reduced during the last
+     * round trip (i.e., by requests that were sent before the previous
+     * reduction took effect).
+     */
+    private void decrease(long now, double factor) {
+        if (now - _lastDecrease < Math.max(_smoothedRtt, MIN_DECREASE_INTERVAL))
+            return;
+        _lastDecrease = now;
+        _limit = Math.max(_min, _limit * factor);
+    }
+
+    /**
+     * Returns true if the error indicates the server can't keep up.
+     */
+    static boolean isOverload(IOException error) {
+        if (error instanceof HttpException) {
+            int status = ((HttpException)error).getHttpResponseCode();
+            return status == 429 || status == 503 || status == 504;
+        }
+        return error instanceof SocketTimeoutException ||
+            error instanceof ConnectException;
+    }
+
+    private final int _min;
+    private final int _max;
+
+    /// Current limit; fractional so the additive increase can accumulate
+    private double _limit;
+
+    /// Smoothed round-trip time of every request, in nanoseconds
+    private long _smoothedRtt;
+
+    /// Round-trip baselines for each request class, least-recently used first
+    private final Map<String, Baseline> _baselines =
+        new LinkedHashMap<String, Baseline>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(
+                  Map.Entry<String, Baseline> eldest) {
+                return size() > MAX_REQUEST_CLASSES;
+            }
+        };
+
+    /// Time of the last reduction, from System.nanoTime
+    private long _lastDecrease = System.nanoTime() - Long.MAX_VALUE / 2;
+
+    /* round-trip times up to twice the baseline are considered normal
+     * variation; beyond that, requests are queueing at the server */
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    /// Reduction applied when round-trip times grow
+    static final double LATENCY_BACKOFF = 0.9;
+
+    /// Reduction applied when the server reports that it is overloaded
+    static final double OVERLOAD_BACKOFF = 0.5;
+
+    /* reduce at most every 50ms, even if the round-trip time is shorter
+     * (or unknown), so that a burst of errors only counts once */
+    static final long MIN_DECREASE_INTERVAL = 50000000L;
+
+    /// Number of samples before the round-trip baseline is re-measured
+    static final int BASELINE_SAMPLES = 500;
+
+    /// Number of request classes whose baselines are kept
+    static final int MAX_REQUEST_CLASSES = 64;
+
+    /**
+     * Round-trip times of one class of requests.
+     */
+    private static class Baseline {
+        /// Smoothed round-trip time, in nanoseconds
+        long smoothedRtt;
+
+        /// Fastest recent round-trip time, in nanoseconds
+        long minRtt;
+
+        /// Number of samples since the baseline was reset
+        int samples;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.json.JsonValue;
+
+import com.idibon.api.util.BytePattern;
+import com.idibon.api.util.ExtendedByteArrayOutputStream;
+
+import static com.idibon.api.http.impl.HttpSupport.*;
+
+/**
+ * Splits the body of a multipart chunked response into the JSON elements
+ * of each chunk, as the data is written to the stream.
+ */
+final class ChunkSplitter extends OutputStream {
+
+    /**
+     * Receives each JSON element as soon as its chunk is complete.
+     */
+    interface Listener {
+        void chunk(JsonValue value) throws IOException;
+    }
+
+    /**
+     * @param boundary The chunk boundary from the HTTP header
+     * @param listener Receives each parsed chunk
+     */
+    ChunkSplitter(String boundary, Listener listener) {
+        _sep = new BytePattern(("--" + boundary).getBytes(UTF8));
+        _listener = listener;
+    }
+
+    @Override public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len)
+          throws IOException {
+        compact();
+        _bs.write(b, off, len);
+        /* the buffered read may result in multiple chunks existing in
+         * the byte stream. process each chunk in place, only advancing
+         * past the consumed bytes; the buffer is compacted later. */
+        for (int i = _bs.indexOf(_sep, Math.max(_consumed, _scanned));
+               i != -1; i = _bs.indexOf(_sep, _consumed)) {
+            // don't try to read a JSON stream if there is no data to read
+            if (i != _consumed) {
+                _listener.chunk(readJson(
+                    _bs.toInputStream(_consumed, i - _consumed)));
+            }
+            // skip past the chunk and separator that was just processed
+            _consumed = i + _sep.length();
+        }
+        /* no boundary starts before the last (length - 1) bytes, so the
+         * next write only needs to search from there, rather than rescan
+         * the entire partial chunk. */
+        _scanned = Math.max(_consumed, _bs.size() - _sep.length() + 1);
+    }
+
+    /**
+     * Discards the bytes that were already split into chunks. Shifting the
+     * unconsumed bytes is deferred until there are at least as many consumed
+     * bytes as unconsumed ones, so each byte is copied a bounded number of
+     * times no matter how many chunks the buffer holds.
+     */
+    private void compact() {
+        if (_consumed == 0) return;
+        int remaining = _bs.size() - _consumed;
+        if (remaining == 0) {
+            _bs.reset();
+        } else if (_consumed >= remaining) {
+            _bs.dropFirst(_consumed);
+        } else {
+            return;
+        }
+        _scanned -= _consumed;
+        _consumed = 0;
+    }
+
+    /**
+     * Verifies that the stream was terminated correctly, once all of the
+     * response has been written.
+     */
+    void finish() throws IOException {
+        /* per spec, the last chunk should be demarcated by two hyphens
+         * following the last boundary marker. since the last boundary marker
+         * should be consumed by the loop above, the unconsumed bytes should
+         * be just the two trailing hyphens (45 = ASCII for '-') */
+        if (_bs.size() - _consumed != 2 || !_bs.endsWith(new byte[]{ 45, 45 }))
+            throw new IOException("Invalid chunked transfer encoding");
+    }
+
+    /// The boundary marker, including the leading hyphens
+    private final BytePattern _sep;
+
+    /// Offset in the buffer before which the boundary can't start
+    private int _scanned;
+
+    /// Number of bytes at the start of the buffer already split into chunks
+    private int _consumed;
+
+    private final Listener _listener;
+
+    /// Data received but not yet split into chunks
+    private final ExtendedByteArrayOutputStream _bs =
+        new ExtendedByteArrayOutputStream();
+}
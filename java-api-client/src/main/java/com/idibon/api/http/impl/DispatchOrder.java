@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.idibon.api.http.RequestPriority;
+
+/**
+ * The position of a queued request in the dispatch queue. Requests are
+ * ordered by deadline (the time queued plus the maximum delay for their
+ * priority), then by the order in which they were queued.
+ */
+final class DispatchOrder implements Comparable<DispatchOrder> {
+
+    /**
+     * Implemented by queued tasks.
+     */
+    interface Ordered {
+        DispatchOrder order();
+    }
+
+    /**
+     * Creates the order for a request queued now.
+     *
+     * @param priority The priority of the request
+     */
+    DispatchOrder(RequestPriority priority) {
+        _deadline = System.nanoTime() +
+            TimeUnit.MILLISECONDS.toNanos(priority.getMaxDelay());
+        _sequence = SEQUENCE.incrementAndGet();
+    }
+
+    public int compareTo(DispatchOrder other) {
+        // nanoTime values may only be compared by their difference
+        long diff = _deadline - other._deadline;
+        if (diff != 0) return diff < 0 ? -1 : 1;
+        return _sequence < other._sequence ? -1 :
+            (_sequence == other._sequence ? 0 : 1);
+    }
+
+    /// Orders queued tasks
+    static final Comparator<Ordered> ORDERED = new Comparator<Ordered>() {
+        public int compare(Ordered a, Ordered b) {
+            return a.order().compareTo(b.order());
+        }
+    };
+
+    /// Orders Runnables that implement Ordered
+    static final Comparator<Runnable> RUNNABLES = new Comparator<Runnable>() {
+        public int compare(Runnable a, Runnable b) {
+            return ((Ordered)a).order().compareTo(((Ordered)b).order());
+        }
+    };
+
+    /// Dispatch deadline, from System.nanoTime
+    private final long _deadline;
+
+    /// Breaks ties in first-come, first-served order
+    private final long _sequence;
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+}
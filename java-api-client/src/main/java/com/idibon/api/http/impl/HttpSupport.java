@@ -0,0 +1,525 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.io.*;
+import java.net.URL;
+import javax.net.ssl.*;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.json.*;
+
+import com.idibon.api.http.HttpException;
+import com.idibon.api.http.HttpStream;
+import com.idibon.api.http.HttpTimeoutException;
+import com.idibon.api.http.MetricsListener;
+import com.idibon.api.http.RequestMetrics;
+import com.idibon.api.http.RequestMetrics.Phase;
+import com.idibon.api.util.ExtendedByteArrayOutputStream;
+
+import static java.net.HttpURLConnection.*;
+
+/**
+ * Wire-format helpers shared by the HttpInterface implementations: JSON
+ * encoding and decoding, multipart chunk splitting, content encoding,
+ * authentication headers and HTTP error mapping.
+ */
+final class HttpSupport {
+
+    /**
+     * Returns the multipart boundary marker from a Content-Type header, or
+     * null if the header does not define one.
+     *
+     * @param contentType The Content-Type header returned by the server
+     */
+    static String boundaryOf(String contentType) {
+        if (contentType == null) return null;
+        int boundaryIndex = contentType.indexOf("boundary=");
+        if (boundaryIndex == -1) return null;
+        /* strip off the "boundary=" prefix from the header, leaving just
+         * the random boundary marker text. */
+        return contentType.substring(boundaryIndex + 9);
+    }
+
+    /**
+     * Reads chunked data from the input stream, returning an array
+     * of the JSON elements from each chunk.
+     *
+     * @param is Data stream to read
+     * @param boundary The chunk boundary from the HTTP header
+     */
+    static JsonValue handleChunkedInput(InputStream is, String boundary)
+          throws IOException {
+
+        final JsonArrayBuilder array = Json.createArrayBuilder();
+        splitChunkedInput(is, boundary, new ChunkSplitter.Listener() {
+            public void chunk(JsonValue value) {
+                array.add(value);
+            }
+        });
+        return array.build();
+    }
+
+    /**
+     * Reads chunked data from the input stream, writing each JSON element to
+     * an HttpStream as soon as its chunk has been read. Blocks if the stream
+     * is full.
+     *
+     * @param is Data stream to read
+     * @param boundary The chunk boundary from the HTTP header
+     * @param stream Receives each element
+     */
+    static void streamChunkedInput(InputStream is, String boundary,
+          final HttpStream stream) throws IOException {
+        splitChunkedInput(is, boundary, new ChunkSplitter.Listener() {
+            public void chunk(JsonValue value) throws IOException {
+                stream.put(value);
+            }
+        });
+    }
+
+    /**
+     * Reads all of the data from the input stream, splitting it into chunks.
+     */
+    private static void splitChunkedInput(InputStream is, String boundary,
+          ChunkSplitter.Listener listener) throws IOException {
+        ChunkSplitter splitter = new ChunkSplitter(boundary, listener);
+        byte[] buffer = new byte[4096];
+        for (int len = is.read(buffer); len != -1; len = is.read(buffer))
+            splitter.write(buffer, 0, len);
+        splitter.finish();
+    }
+
+    /**
+     * Adds a complete (non-multipart) response to an HttpStream. Each item
+     * in an array is added as a separate element.
+     *
+     * @param stream Receives the elements
+     * @param value The decoded response
+     */
+    static void addElements(HttpStream stream, JsonValue value) {
+        if (value instanceof JsonArray) {
+            for (JsonValue v : (JsonArray)value) stream.add(v);
+        } else {
+            stream.add(value);
+        }
+    }
+
+    /**
+     * Returns the error as an IOException, wrapping it if needed.
+     */
+    static IOException asIOException(Throwable error) {
+        if (error instanceof InterruptedByTimeoutException) {
+            HttpTimeoutException timeout =
+                new HttpTimeoutException("Read timed out");
+            timeout.initCause(error);
+            return timeout;
+        }
+        if (error instanceof IOException) return (IOException)error;
+        return new IOException("Async exception", error);
+    }
+
+    /**
+     * Reads the input stream as a UTF-8 encoded String and parses a JSON
+     * element from it.
+     *
+     * @param stream InputStream to consume
+     * @return parsed JSON element
+     */
+    static JsonValue readJson(InputStream stream) {
+        try (JsonReader r = JSON_RF.createReader(stream, UTF8)) {
+            return r.read();
+        }
+    }
+
+    /**
+     * Encodes the JSON payload as a UTF-8 string and writes the bitstream
+     * to the output stream.
+     *
+     * @param body The JSON payload to write
+     * @param stream Where the payload should be written
+     */
+    static <T extends OutputStream> T writeJson(JsonObject body, T os) {
+        try (JsonWriter w = JSON_WF.createWriter(os, UTF8)) {
+            w.writeObject(body);
+        }
+        return os;
+    }
+
+    /**
+     * Wraps a response entity stream to decode its Content-Encoding,
+     * counting the bytes read before and after decoding.
+     *
+     * @param is The entity stream, as received from the server
+     * @param encoding The Content-Encoding header, or null
+     * @param stats Where the transferred bytes are counted, e.g. the
+     *        interface totals and the statistics for a single request
+     */
+    static InputStream decodeContent(InputStream is, String encoding,
+          TransferStatistics... stats) throws IOException {
+        AtomicLong[] received = new AtomicLong[stats.length];
+        AtomicLong[] decodedBytes = new AtomicLong[stats.length];
+        for (int i = 0; i < stats.length; i++) {
+            received[i] = stats[i]._responseBytesReceived;
+            decodedBytes[i] = stats[i]._responseBytes;
+        }
+        InputStream decoded = new CountingInputStream(is, received);
+
+        if (encoding != null && !encoding.equalsIgnoreCase("identity")) {
+            if (encoding.equalsIgnoreCase("gzip") ||
+                  encoding.equalsIgnoreCase("x-gzip"))
+                decoded = new GZIPInputStream(decoded);
+            else if (encoding.equalsIgnoreCase("deflate"))
+                decoded = new InflaterInputStream(decoded);
+            else
+                throw new IOException("Unsupported Content-Encoding: " +
+                                      encoding);
+        }
+
+        return new CountingInputStream(decoded, decodedBytes);
+    }
+
+    /**
+     * Returns the gzip-compressed copy of a request body.
+     *
+     * @param body The uncompressed request body
+     */
+    static ExtendedByteArrayOutputStream gzip(ByteArrayOutputStream body) {
+        ExtendedByteArrayOutputStream compressed =
+            new ExtendedByteArrayOutputStream(body.size() / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(compressed)) {
+            body.writeTo(gz);
+        } catch (IOException ex) {
+            // in-memory streams never throw
+            throw new IllegalStateException(ex);
+        }
+        return compressed;
+    }
+
+    /**
+     * Returns the value for the HTTP BASIC Authorization header, using the
+     * API key as the username and no password.
+     */
+    static String basicAuthorization(String apiKey) {
+        return "Basic " + base64Encode(apiKey + ":");
+    }
+
+    /**
+     * Returns the class of a request for the adaptive limit. Requests with
+     * the same method and endpoint template, and bodies of a similar size
+     * (within a power of two), have comparable round-trip times; e.g., a
+     * batch of predictions is sent to the same endpoint as one prediction.
+     *
+     * @param bodyBytes Size of the request body sent, in bytes
+     */
+    static String requestClass(String method, String endpoint,
+          long bodyBytes) {
+        return method + " " + RequestMetrics.templateOf(endpoint) + " " +
+            (64 - Long.numberOfLeadingZeros(bodyBytes));
+    }
+
+    /**
+     * Returns the value for the Host header when connecting to the server.
+     */
+    static String hostHeader(URL serverAddress) {
+        if (serverAddress.getPort() != -1) {
+            return String.format("%s:%d", serverAddress.getHost(),
+                                 serverAddress.getPort());
+        } else {
+            return serverAddress.getHost();
+        }
+    }
+
+    static String base64Encode(String raw) {
+        byte[] utf8 = raw.getBytes(UTF8);
+        String base64 = "";
+        for (int i = 0; i < utf8.length - 2; i += 3) {
+            int v = ((int)utf8[i] & 0xff) << 16;
+            v |= ((int)utf8[i + 1] & 0xff) << 8;
+            v |= ((int)utf8[i + 2] & 0xff);
+            base64 += BASE64_TABLE.charAt((v >> 18) & 0x3f);
+            base64 += BASE64_TABLE.charAt((v >> 12) & 0x3f);
+            base64 += BASE64_TABLE.charAt((v >> 6) & 0x3f);
+            base64 += BASE64_TABLE.charAt(v & 0x3f);
+        }
+        switch (utf8.length % 3) {
+        case 1: {
+            int v = ((int)utf8[utf8.length - 1] & 0xff);
+            base64 += BASE64_TABLE.charAt((v >> 2) & 0x3f);
+            base64 += BASE64_TABLE.charAt((v << 4) & 0x3f);
+            base64 += "==";
+            break;
+        }
+        case 2: {
+            int v = ((int)utf8[utf8.length - 2] & 0xff) << 8;
+            v |= ((int)utf8[utf8.length - 1] & 0xff);
+            base64 += BASE64_TABLE.charAt((v >> 10) & 0x3f);
+            base64 += BASE64_TABLE.charAt((v >> 4) & 0x3f);
+            base64 += BASE64_TABLE.charAt((v << 2) & 0x3f);
+            base64 += "=";
+            break;
+        }
+        default:
+            break;
+        }
+        return base64;
+    }
+
+    /**
+     * Generate specific exception instances for known HTTP response codes
+     */
+    static HttpException httpException(URL url, int code, String msg,
+          JsonObject obj, Throwable chain, String retryAfter) {
+
+        switch (code) {
+        case HTTP_TOO_MANY_REQUESTS:
+            return new HttpException.TooManyRequests(url, code, msg, obj,
+                chain, RateLimiter.parseRetryAfter(retryAfter));
+        case HTTP_BAD_REQUEST:
+            return new HttpException.BadRequest(url, code, msg, obj, chain);
+        case HTTP_UNAUTHORIZED:
+            return new HttpException.Unauthorized(url, code, msg, obj, chain);
+        case HTTP_FORBIDDEN:
+            return new HttpException.Forbidden(url, code, msg, obj, chain);
+        case HTTP_NOT_FOUND:
+            return new HttpException.NotFound(url, code, msg, obj, chain);
+        case HTTP_ENTITY_TOO_LARGE:
+            return new HttpException.EntityTooLarge(url, code, msg, obj, chain);
+        case HTTP_INTERNAL_ERROR:
+            return new HttpException.InternalServerError(url, code, msg, obj, chain);
+        case HTTP_UNAVAILABLE:
+            return new HttpException.ServiceUnavailable(url, code, msg, obj, chain);
+        case HTTP_GATEWAY_TIMEOUT:
+            return new HttpException.GatewayTimeout(url, code, msg, obj, chain);
+        }
+
+        if (code >= 400 && code < 500)
+            return new HttpException.ClientError(url, code, msg, obj, chain);
+        else if (code >= 500 && code < 600)
+            return new HttpException.ServerError(url, code, msg, obj, chain);
+
+        return new HttpException(url, code, msg, obj, chain);
+    }
+
+    /// Not defined by HttpURLConnection
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private HttpSupport() { }
+
+    /**
+     * Adds the number of bytes read through the stream to each counter.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in, AtomicLong... counters) {
+            super(in);
+            _counters = counters;
+        }
+
+        @Override public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) add(_counters, 1);
+            return b;
+        }
+
+        @Override public int read(byte[] b, int off, int len)
+              throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) add(_counters, count);
+            return count;
+        }
+
+        @Override public long skip(long n) throws IOException {
+            long count = super.skip(n);
+            add(_counters, count);
+            return count;
+        }
+
+        private final AtomicLong[] _counters;
+    }
+
+    /**
+     * Adds the number of bytes written through the stream to each counter.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out, AtomicLong... counters) {
+            super(out);
+            _counters = counters;
+        }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            add(_counters, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len)
+              throws IOException {
+            out.write(b, off, len);
+            add(_counters, len);
+        }
+
+        private final AtomicLong[] _counters;
+    }
+
+    /**
+     * Adds the time spent blocked in reads to an element of a phase
+     * timing array (see {@link #newPhases}).
+     */
+    static class TimedInputStream extends FilterInputStream {
+        TimedInputStream(InputStream in, long[] phases, Phase phase) {
+            super(in);
+            _phases = phases;
+            _index = phase.ordinal();
+            if (_phases[_index] < 0) _phases[_index] = 0;
+        }
+
+        @Override public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read();
+            } finally {
+                _phases[_index] += System.nanoTime() - start;
+            }
+        }
+
+        @Override public int read(byte[] b, int off, int len)
+              throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read(b, off, len);
+            } finally {
+                _phases[_index] += System.nanoTime() - start;
+            }
+        }
+
+        private final long[] _phases;
+        private final int _index;
+    }
+
+    /**
+     * Returns an array for the time spent in each phase of a request, in
+     * nanoseconds, with every phase unmeasured (-1).
+     */
+    static long[] newPhases() {
+        long[] phases = new long[Phase.values().length];
+        Arrays.fill(phases, -1);
+        return phases;
+    }
+
+    /**
+     * Adds a byte count to each counter.
+     */
+    private static void add(AtomicLong[] counters, long count) {
+        for (AtomicLong counter : counters) counter.addAndGet(count);
+    }
+
+    /**
+     * Returns the reason a completed request failed, or null if it
+     * succeeded.
+     */
+    static Throwable failureOf(Future<?> request) {
+        if (request.isCancelled())
+            return new IOException("Operation cancelled");
+        try {
+            request.get();
+            return null;
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        } catch (InterruptedException ex) {
+            // impossible, the request is done
+            return ex;
+        }
+    }
+
+    /**
+     * Reports a completed request to a metrics listener. Exceptions thrown
+     * by the listener are passed to the current thread's uncaught
+     * exception handler, rather than failing the request.
+     */
+    static void report(MetricsListener listener, RequestMetrics request) {
+        try {
+            listener.requestCompleted(request);
+        } catch (RuntimeException ex) {
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+        }
+    }
+
+    /* buffer a handful of parsed elements for streaming responses; each
+     * element may be a large document with tokens and annotations */
+    static final int STREAM_CAPACITY = 16;
+
+    /// Time to wait for a streaming response consumer before abandoning it
+    static final long STREAM_STALL_TIMEOUT = 60000;
+
+    /* runs delayed work (idle connection eviction, retries, rate-limit
+     * pauses and timeouts) for every interface instance. tasks must not
+     * block. */
+    static final ScheduledThreadPoolExecutor TIMER;
+
+    static {
+        TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "idibon-http-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    /// Content encodings accepted for responses when compression is enabled
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /// Base-64 encoding table
+    private static final String BASE64_TABLE =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private static final JsonWriterFactory JSON_WF = Json.createWriterFactory(null);
+    private static final JsonReaderFactory JSON_RF = Json.createReaderFactory(null);
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final HostnameVerifier NO_HOSTNAME_VALIDATION =
+      new HostnameVerifier() {
+        public boolean verify(String hostname, SSLSession session) {
+            return true;
+        }
+      };
+
+    static final String SDK_USER_AGENT;
+
+    private static final String POM_PROPERTIES =
+        "/META-INF/maven/com.idibon.api.java-sdk/java-api-client/pom.properties";
+
+    static {
+        String version = "1.0";
+        try {
+            java.util.Properties props = new java.util.Properties();
+            InputStream is = HttpSupport.class
+                .getResourceAsStream(POM_PROPERTIES);
+            try {
+                if (is != null) {
+                    props.load(is);
+                    version = props.getProperty("version");
+                }
+            } finally {
+                is.close();
+            }
+        } catch (Exception _) {
+            // ignore exceptions trying to load SDK version
+        }
+
+        SDK_USER_AGENT = "Idibon Java SDK/" + version;
+    }
+}
@@ -6,22 +6,25 @@ package com.idibon.api.http.impl;
 import java.io.*;
 import java.net.*;
 import javax.net.ssl.*;
+import java.util.*;
 import java.util.concurrent.*;
-import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
 
 import com.idibon.api.http.*;
+import com.idibon.api.http.RequestMetrics.Phase;
 
 import javax.json.*;
 
-import com.idibon.api.util.ExtendedByteArrayOutputStream;
-
 import static java.net.HttpURLConnection.*;
+import static com.idibon.api.http.impl.HttpSupport.*;
 
 /**
  * Implementation of the HttpInterface using the JDK's built-in
  * HttpURLConnection transport layer.
  */
-public class JdkHttpInterface implements HttpInterface {
+public class JdkHttpInterface implements StreamingHttpInterface {
 
     /**
      * Idibon production API server
@@ -62,23 +65,365 @@ public class JdkHttpInterface implements HttpInterface {
      * Reconfigures the interface to use more (or fewer) connections. Can be
      * changed dynamically as needed by the application.
      *
+     * Idle connections are cached by the JDK's process-wide keep-alive
+     * cache, which is sized by the http.maxConnections system property and
+     * is not affected by this setting.
+     *
      * @param limit The new number of parallel connections. Must be between
-     *        1 - 1000.
+     *        1 - 1000, or up to 10000 when using virtual threads.
      * @return this
      */
     public JdkHttpInterface maxConnections(int limit) {
-        if (limit <= 0 || limit > 1000)
+        if (limit <= 0 || limit > connectionLimit())
+            throw new IllegalArgumentException("Invalid connection limit");
+
+        if (_threadPool.isShutdown() || _threadPool.isTerminating())
+            throw new IllegalStateException("Already shut down");
+
+        synchronized (_threadPool) {
+            _limiter = null;
+            resizePool(limit);
+        }
+        return this;
+    }
+
+    /**
+     * Adjust the number of parallel connections automatically, based on
+     * observed round-trip times and server overload errors (HTTP 429,
+     * 503 and 504, connection failures and timeouts).
+     *
+     * The limit starts at the current number of connections, grows while
+     * the server keeps up, and shrinks as soon as requests start to queue.
+     * The current limit is reported as the ParallelRequestLimit property.
+     * Calling {@link #maxConnections} returns to a fixed limit.
+     *
+     * @param minLimit Smallest number of parallel connections, at least 1
+     * @param maxLimit Largest number of parallel connections, up to 1000
+     *        (or 10000 when using virtual threads)
+     * @return this
+     */
+    public JdkHttpInterface adaptiveConcurrency(int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit > connectionLimit() || maxLimit < minLimit)
             throw new IllegalArgumentException("Invalid connection limit");
 
         if (_threadPool.isShutdown() || _threadPool.isTerminating())
             throw new IllegalStateException("Already shut down");
 
-        System.setProperty("http.maxConnections", Integer.toString(limit));
-        _threadPool.setCorePoolSize(limit);
-        _threadPool.setMaximumPoolSize(limit);
+        synchronized (_threadPool) {
+            _limiter = new AdaptiveLimit(minLimit, maxLimit,
+                _threadPool.getMaximumPoolSize());
+            resizePool(_limiter.getLimit());
+        }
+        return this;
+    }
+
+    /**
+     * Run each request on a virtual thread, rather than a platform thread.
+     * Blocked requests then cost only a few kilobytes each, so the
+     * connection limit may be raised to 10000. Requires Java 21 or later;
+     * the default platform threads work on every runtime.
+     *
+     * The limits set by {@link #maxConnections} and
+     * {@link #adaptiveConcurrency} still apply, and requests are still
+     * started in priority order. Platform threads already started by this
+     * interface exit once they have been idle for 20 seconds.
+     *
+     * @return this
+     * @throws UnsupportedOperationException if the runtime does not
+     *         support virtual threads.
+     */
+    public JdkHttpInterface withVirtualThreads() {
+        ThreadFactory factory = virtualThreadFactory();
+        if (factory == null) {
+            throw new UnsupportedOperationException(
+                "Virtual threads require Java 21 or later");
+        }
+
+        if (_threadPool.isShutdown() || _threadPool.isTerminating())
+            throw new IllegalStateException("Already shut down");
+
+        synchronized (_threadPool) {
+            _threadPool.setThreadFactory(factory);
+            _threadPool.allowCoreThreadTimeOut(true);
+            _virtualThreads = true;
+        }
+        return this;
+    }
+
+    /**
+     * Returns true if the runtime supports
+     * {@link #withVirtualThreads virtual threads}.
+     */
+    public static boolean virtualThreadsSupported() {
+        return virtualThreadFactory() != null;
+    }
+
+    /**
+     * Returns a factory for virtual threads, or null if the runtime
+     * doesn't support them. Uses reflection, since the library is built
+     * for Java 7.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtual = builder.getMethod("name", String.class, long.class)
+                .invoke(virtual, "idibon-http-", 0L);
+            return (ThreadFactory)builder.getMethod("factory").invoke(virtual);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the largest allowed connection limit.
+     */
+    private int connectionLimit() {
+        return _virtualThreads ? MAX_VIRTUAL_CONNECTIONS : MAX_CONNECTIONS;
+    }
+
+    /**
+     * Run requests on an application-provided executor, instead of the
+     * interface's own thread pool, for requests issued afterwards.
+     *
+     * The interface still hands requests to the executor in priority
+     * order, and never more at once than the connection limit; further
+     * requests wait in the interface's queue. If the executor rejects a
+     * request (e.g., its bounded queue is full), the request fails with
+     * an IOException caused by the RejectedExecutionException, so the
+     * executor's rejection policy decides what happens under overload.
+     *
+     * The executor is not shut down by {@link #shutdown}.
+     *
+     * @param executor Runs requests, or null to use the interface's own
+     *        thread pool (default).
+     * @return this
+     */
+    public JdkHttpInterface withExecutor(Executor executor) {
+        _executor = executor;
+        return this;
+    }
+
+    /**
+     * Limit the number of requests waiting to be sent, so that a producer
+     * that issues requests faster than the API answers them can't queue
+     * them (and their bodies) without bound. When the queue is full, new
+     * requests either block the calling thread until space is available,
+     * or fail immediately with an IOException.
+     *
+     * Blocking should not be used from HttpFuture callbacks, which may run
+     * on the threads that empty the queue.
+     *
+     * The current number of waiting requests is reported as the
+     * QueuedRequests property.
+     *
+     * @param limit Maximum number of waiting requests, or 0 for no limit
+     *        (default).
+     * @param block True to block the caller when the queue is full, false
+     *        to fail the request.
+     * @return this
+     */
+    public JdkHttpInterface maxQueuedRequests(int limit, boolean block) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Invalid queue limit");
+        synchronized (_queueLock) {
+            _queueLimit = limit;
+            _blockWhenFull = block;
+            _queueLock.notifyAll();
+        }
+        return this;
+    }
+
+    /**
+     * Notify {@link com.idibon.api.http.HttpFuture} callbacks on the
+     * provided executor, rather than the thread that ran the request.
+     *
+     * @param executor Runs completion callbacks, or null to run them on
+     *        the request thread (default).
+     * @return this
+     */
+    public JdkHttpInterface withCompletionExecutor(Executor executor) {
+        _completionExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Report the latency, status, size and retries of every request to a
+     * listener, e.g. {@link com.idibon.api.http.InMemoryMetrics}.
+     *
+     * @param listener Receives request measurements, or null for none
+     * @return this
+     */
+    public JdkHttpInterface withMetrics(MetricsListener listener) {
+        _metrics = listener;
+        return this;
+    }
+
+    /**
+     * Resizes the thread pool to the new limit. Must be called while
+     * synchronized on _threadPool.
+     */
+    private void resizePool(int limit) {
+        /* the core size may never exceed the maximum size, so the order
+         * of these updates depends on the direction of the change */
+        if (limit > _threadPool.getMaximumPoolSize()) {
+            _threadPool.setMaximumPoolSize(limit);
+            _threadPool.setCorePoolSize(limit);
+        } else {
+            _threadPool.setCorePoolSize(limit);
+            _threadPool.setMaximumPoolSize(limit);
+        }
+    }
+
+    /**
+     * Updates the adaptive limit (if enabled) with the outcome of one
+     * attempt at a request, and resizes the pool if the limit changed.
+     *
+     * @param requestClass Groups requests with comparable round-trip times
+     * @param rtt Round-trip time of a successful attempt, in nanoseconds,
+     *        or -1 if the time isn't meaningful (e.g., streaming requests)
+     * @param error The reason the attempt failed, or null
+     */
+    private void adapt(String requestClass, long rtt, IOException error) {
+        AdaptiveLimit limiter = _limiter;
+        if (limiter == null) return;
+
+        boolean changed;
+        if (error != null)
+            changed = limiter.onFailure(error);
+        else if (rtt >= 0)
+            changed = limiter.onSuccess(requestClass, rtt, activeCount());
+        else
+            return;
+
+        if (changed) {
+            synchronized (_threadPool) {
+                // a fixed limit may have been configured concurrently
+                if (_limiter == limiter) resizePool(limiter.getLimit());
+            }
+        }
+    }
+
+    /**
+     * Stream request bodies to the server using chunked transfer encoding.
+     *
+     * By default, each request body is serialized into a buffer by the
+     * worker thread immediately before it is sent, so that the length is
+     * known in advance. In chunked mode the JSON is serialized straight
+     * into the connection, and no copy of the body is ever buffered;
+     * however, some proxies do not support chunked requests.
+     *
+     * @param chunkLength The number of bytes written in each chunk, or 0
+     *        to disable chunked mode.
+     * @return this
+     */
+    public JdkHttpInterface chunkedRequests(int chunkLength) {
+        if (chunkLength < 0)
+            throw new IllegalArgumentException("Invalid chunk length");
+        _chunkLength = chunkLength;
+        return this;
+    }
+
+    /**
+     * Enable HTTP compression.
+     *
+     * Responses are requested with gzip or deflate Content-Encoding, and
+     * request bodies at least as large as the threshold are sent with gzip
+     * Content-Encoding. In chunked mode the size of the body is not known
+     * in advance, so every request body is compressed.
+     *
+     * @param minimumRequestSize Smallest request body, in bytes, that will
+     *        be compressed.
+     * @return this
+     */
+    public JdkHttpInterface withCompression(int minimumRequestSize) {
+        if (minimumRequestSize < 0)
+            throw new IllegalArgumentException("Invalid size threshold");
+        _compressionThreshold = minimumRequestSize;
+        return this;
+    }
+
+    /**
+     * Configure socket timeouts. A request that fails to connect, or stops
+     * receiving data, for longer than the timeout fails with an
+     * {@link com.idibon.api.http.HttpTimeoutException}.
+     *
+     * @param connectTimeout Time to establish a connection, in
+     *        milliseconds, or 0 to wait indefinitely (default).
+     * @param readTimeout Time to wait for data from the server, in
+     *        milliseconds, or 0 to wait indefinitely (default).
+     * @return this
+     */
+    public JdkHttpInterface timeouts(int connectTimeout, int readTimeout) {
+        if (connectTimeout < 0 || readTimeout < 0)
+            throw new IllegalArgumentException("Invalid timeout");
+        _connectTimeout = connectTimeout;
+        _readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * Configure a deadline for every request, measured from the time it is
+     * queued, including any time spent waiting for a connection or to be
+     * retried. Requests that miss their deadline are abandoned (freeing
+     * their worker thread) and fail with an
+     * {@link com.idibon.api.http.HttpTimeoutException}.
+     *
+     * Individual requests may be given shorter deadlines with
+     * {@link com.idibon.api.http.HttpFuture#getOrCancel}.
+     *
+     * @param millis Request deadline, in milliseconds, or 0 for no
+     *        deadline (default).
+     * @return this
+     */
+    public JdkHttpInterface requestTimeout(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Invalid timeout");
+        _requestTimeout = millis;
         return this;
     }
 
+    /**
+     * Automatically re-send requests that fail due to transient errors.
+     *
+     * While waiting to retry, a request continues to count against the
+     * parallel request limit. Streaming requests are not retried once
+     * any part of the response has been returned.
+     *
+     * @param policy Retry policy, or null to disable retries (default).
+     * @return this
+     */
+    public JdkHttpInterface withRetryPolicy(RetryPolicy policy) {
+        _retryPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Limit the rate at which requests are sent, using a token bucket.
+     *
+     * Independently of this setting, all requests are paused when the
+     * server responds with HTTP 429 or a Retry-After header.
+     *
+     * @param requestsPerSecond Sustained request rate, or 0 for no limit
+     * @param burst Number of requests that may be sent at once after an
+     *        idle period, at least 1.
+     * @return this
+     */
+    public JdkHttpInterface withRateLimit(double requestsPerSecond, int burst) {
+        if (requestsPerSecond < 0 || burst < 1)
+            throw new IllegalArgumentException("Invalid rate limit");
+        _rateLimiter.setRate(requestsPerSecond, burst);
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes transferred by this interface, before and
+     * after compression.
+     */
+    public TransferStatistics getTransferStatistics() {
+        return _stats;
+    }
+
     /**
      * Disable SSL hostname validation for HTTPS API servers.
      *
@@ -111,36 +456,201 @@ public class JdkHttpInterface implements HttpInterface {
      * Implements {@link com.idibon.api.http.HttpInterface#httpGet(String, JsonObject)}
      */
     public HttpFuture<JsonValue> httpGet(String endpoint, JsonObject body) {
-        return HttpFuture.wrap(
-            _threadPool.submit(new HttpOp("GET", endpoint, body))
-        );
+        return dispatch("GET", endpoint, body, RequestPriority.Normal);
     }
 
     /**
      * Implements {@link com.idibon.api.http.HttpInterface#httpPut(String, JsonObject)}
      */
     public HttpFuture<JsonValue> httpPut(String endpoint, JsonObject body) {
-        return HttpFuture.wrap(
-            _threadPool.submit(new HttpOp("PUT", endpoint, body))
-        );
+        return dispatch("PUT", endpoint, body, RequestPriority.Normal);
     }
 
     /**
      * Implements {@link com.idibon.api.http.HttpInterface#httpPost(String, JsonObject)}
      */
     public HttpFuture<JsonValue> httpPost(String endpoint, JsonObject body) {
-        return HttpFuture.wrap(
-            _threadPool.submit(new HttpOp("POST", endpoint, body))
-        );
+        return dispatch("POST", endpoint, body, RequestPriority.Normal);
     }
 
     /**
      * Implements {@link com.idibon.api.http.HttpInterface#httpPost(String, JsonObject)}
      */
     public HttpFuture<JsonValue> httpDelete(String endpoint, JsonObject body) {
-        return HttpFuture.wrap(
-            _threadPool.submit(new HttpOp("DELETE", endpoint, body))
-        );
+        return dispatch("DELETE", endpoint, body, RequestPriority.Normal);
+    }
+
+    /**
+     * Implements {@link com.idibon.api.http.StreamingHttpInterface#httpGetStream(String, JsonObject)}
+     */
+    public HttpStream httpGetStream(String endpoint, JsonObject body) {
+        return dispatchStream(endpoint, body, RequestPriority.Normal);
+    }
+
+    /**
+     * Returns a view of this interface that sends every request at the
+     * specified priority. Requests made directly through this interface
+     * use {@link com.idibon.api.http.RequestPriority#Normal}.
+     *
+     * All views share the connections and limits of this interface, and
+     * shutting down any view shuts down this interface.
+     *
+     * @param priority Priority for requests sent through the view
+     * @return A new HttpInterface
+     */
+    public StreamingHttpInterface atPriority(RequestPriority priority) {
+        if (priority == null) throw new NullPointerException("priority");
+        return new PriorityView(this, _dispatcher, priority);
+    }
+
+    /**
+     * Queues a request on the thread pool.
+     */
+    private HttpFuture<JsonValue> dispatch(String method, String endpoint,
+          JsonObject body, RequestPriority priority) {
+        HttpTask task = new HttpTask(new HttpOp(method, endpoint, body),
+                                     priority, null);
+        execute(task);
+        return HttpFuture.wrap(task);
+    }
+
+    /**
+     * Queues a streaming GET request on the thread pool.
+     */
+    private HttpStream dispatchStream(String endpoint, JsonObject body,
+          RequestPriority priority) {
+        HttpStream stream =
+            new HttpStream(STREAM_CAPACITY, STREAM_STALL_TIMEOUT);
+        execute(new HttpTask(
+            new HttpOp("GET", endpoint, body, stream), priority, stream));
+        return stream;
+    }
+
+    /**
+     * Starts the request deadline, and queues the task.
+     */
+    private void execute(final HttpTask task) {
+        task._completions = _completionExecutor;
+        IOException full = reserveQueueSlot(task);
+        if (full != null) {
+            task.reject(full);
+            return;
+        }
+
+        long timeout = _requestTimeout;
+        if (timeout > 0) {
+            task._deadline = TIMER.schedule(new Runnable() {
+                public void run() {
+                    task.expire();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        Executor executor = _executor;
+        if (executor == null) {
+            try {
+                _threadPool.execute(task);
+            } catch (RejectedExecutionException ex) {
+                task.cancel(false);
+                throw ex;
+            }
+            return;
+        }
+        if (_threadPool.isShutdown()) {
+            task.cancel(false);
+            throw new RejectedExecutionException("Already shut down");
+        }
+        synchronized (_queued) {
+            _queued.add(task);
+        }
+        drainQueued(executor);
+    }
+
+    /**
+     * Counts the task against the queue limit until it starts running or
+     * is abandoned, waiting for space if configured to.
+     *
+     * @return null, or the reason the task can't be queued
+     */
+    private IOException reserveQueueSlot(HttpTask task) {
+        synchronized (_queueLock) {
+            try {
+                while (_queueLimit > 0 && _queueDepth >= _queueLimit) {
+                    if (!_blockWhenFull)
+                        return new IOException("Request queue is full");
+                    _queueLock.wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return new InterruptedIOException(
+                    "Interrupted waiting for queue space");
+            }
+            _queueDepth++;
+        }
+
+        task._dequeue.set(new Runnable() {
+            public void run() {
+                synchronized (_queueLock) {
+                    _queueDepth--;
+                    _queueLock.notify();
+                }
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Hands queued tasks to the application's executor, until the
+     * connection limit is reached. Re-entrant calls (e.g., from an
+     * executor that runs tasks on the calling thread) are folded into the
+     * outermost call.
+     */
+    private void drainQueued(final Executor executor) {
+        if (_drains.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            while (true) {
+                final HttpTask next;
+                synchronized (_queued) {
+                    if (_running >= _threadPool.getMaximumPoolSize() ||
+                          _queued.isEmpty())
+                        break;
+                    next = _queued.poll();
+                    _running++;
+                }
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                next.run();
+                            } finally {
+                                synchronized (_queued) {
+                                    _running--;
+                                    _queued.notifyAll();
+                                }
+                                drainQueued(executor);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    synchronized (_queued) {
+                        _running--;
+                        _queued.notifyAll();
+                    }
+                    next.reject(new IOException("Request rejected", ex));
+                }
+            }
+            missed = _drains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Returns the number of requests currently running.
+     */
+    private int activeCount() {
+        synchronized (_queued) {
+            return _threadPool.getActiveCount() + _running;
+        }
     }
 
     /**
@@ -150,6 +660,12 @@ public class JdkHttpInterface implements HttpInterface {
         switch (prop) {
         case ParallelRequestLimit:
             return _threadPool.getMaximumPoolSize();
+        case QueuedRequests:
+            synchronized (_queueLock) {
+                return _queueDepth;
+            }
+        case ActiveRequests:
+            return activeCount();
         default:
             return defaultValue;
         }
@@ -168,115 +684,82 @@ public class JdkHttpInterface implements HttpInterface {
      * @param quiesceTime Time to wait for the connections to become idle
      */
     public void shutdown(long quiesceTime) {
+        long deadline = System.currentTimeMillis() + quiesceTime;
         _threadPool.shutdown();
         boolean clean = false;
         try {
             clean = _threadPool.awaitTermination(quiesceTime,
                                                  TimeUnit.MILLISECONDS);
+            // wait for requests on the application's executor, too
+            synchronized (_queued) {
+                for (long wait = deadline - System.currentTimeMillis();
+                       clean && (_running > 0 || !_queued.isEmpty());
+                       wait = deadline - System.currentTimeMillis()) {
+                    if (wait <= 0) clean = false;
+                    else _queued.wait(wait);
+                }
+            }
         } catch (InterruptedException ex) {
             // ignore
         } finally {
-            if (!clean) _threadPool.shutdownNow();
+            if (!clean) {
+                // fail any requests that never started
+                for (Runnable r : _threadPool.shutdownNow())
+                    if (r instanceof Future) ((Future<?>)r).cancel(false);
+                List<HttpTask> queued;
+                synchronized (_queued) {
+                    queued = new ArrayList<>(_queued);
+                    _queued.clear();
+                }
+                for (HttpTask task : queued) task.cancel(false);
+            }
         }
     }
 
     /**
      * Reads the HTTP response from the server and parses the embedded JSON.
-     * If the response uses chunked encoding, each of the chunks will be
-     * parsed and added to an array
+     * If the response is a multipart chunked stream, each of the chunks will
+     * be parsed and added to an array
      *
      * @param conn HttpURLConnection instance that has data to read
+     * @param stream Receives the elements of the response as they are read,
+     *        or null to return the entire response.
      * @return A JsonValue containing the parsed data from the connection
      */
-    private JsonValue maybeHandleChunkedInput(HttpURLConnection conn)
-        throws IOException {
-
-        try (InputStream is = new BufferedInputStream(conn.getInputStream())) {
-            String transferEncoding = conn.getHeaderField("Transfer-Encoding");
-            if (transferEncoding == null)
-                return readJson(is);
-
-            String contentType = conn.getHeaderField("Content-Type");
-            if (contentType == null)
-                throw new IOException("Missing header field Content-Type");
-
-            int boundaryIndex = contentType.indexOf("boundary=");
-            if (boundaryIndex == -1)
-                throw new IOException("Chunk boundary missing");
-
-            /* strip off the "boundary=" prefix from the header, leaving just
-             * the random boundary marker text. */
-            String boundary = contentType.substring(boundaryIndex + 9);
-            return handleChunkedInput(is, boundary);
-        }
-    }
-
-    /**
-     * Reads chunked data from the input stream, returning an array
-     * of the JSON elements from each chunk.
-     *
-     * @param is Data stream to read
-     * @param boundary The chunk boundary from the HTTP header
-     */
-    private static JsonValue handleChunkedInput(InputStream is,
-        String boundary) throws IOException {
-
-        byte[] sep = ("--" + boundary).getBytes(UTF8);
-
-        JsonArrayBuilder array = Json.createArrayBuilder();
-        ExtendedByteArrayOutputStream bs = new ExtendedByteArrayOutputStream();
-        byte[] buffer = new byte[4096];
-
-        /* read from the input stream until all data has been consumed,
-         * appending the intermediate data to the byte stream */
-        for (int len = is.read(buffer); len != -1; len = is.read(buffer)) {
-            bs.write(buffer, 0, len);
-            /* the buffered read may result in multiple chunks existing in
-             * the byte stream. process each chunk and then consume the
-             * parsed bytes from the byte stream. */
-            for (int i = bs.indexOf(sep); i != -1; i = bs.indexOf(sep)) {
-                // don't try to read a JSON stream if there is no data to read
-                if (i != 0) array.add(readJson(bs.toInputStream(0, i)));
-                // discard the chunk and separator that was just processed
-                bs.dropFirst(i + sep.length);
+    private JsonValue maybeHandleChunkedInput(HttpURLConnection conn,
+          HttpOp op) throws IOException {
+        HttpStream stream = op._stream;
+        long[] phases = op._phases;
+        long start = System.nanoTime();
+
+        try (InputStream is = new BufferedInputStream(decodeContent(
+                 new TimedInputStream(conn.getInputStream(), phases,
+                                      Phase.Download),
+                 conn.getContentEncoding(), _stats, op._transfer))) {
+            /* compressed responses may also use chunked transfer encoding,
+             * so only multipart responses are split into chunks */
+            String boundary = boundaryOf(conn.getHeaderField("Content-Type"));
+            if (stream == null) {
+                if (boundary == null) return readJson(is);
+                return handleChunkedInput(is, boundary);
             }
-        }
-
-        /* per spec, the last chunk should be demarcated by two hyphens
-         * following the last boundary marker. since the last boundary marker
-         * should be dropped by the loop above, the byte stream should be
-         * just the two trailing hyphens (45 = ASCII for '-') */
-        if (bs.size() != 2 || !bs.endsWith(new byte[]{ 45, 45 }))
-            throw new IOException("Invalid chunked transfer encoding");
-
-        return array.build();
-    }
-
-    /**
-     * Reads the input stream as a UTF-8 encoded String and parses a JSON
-     * element from it.
-     *
-     * @param stream InputStream to consume
-     * @return parsed JSON element
-     */
-    private static JsonValue readJson(InputStream stream) {
-        try (JsonReader r = JSON_RF.createReader(stream, UTF8)) {
-            return r.read();
-        }
-    }
 
-    /**
-     * Encodes the JSON payload as a UTF-8 string and writes the bitstream
-     * to the output stream.
-     *
-     * @param body The JSON payload to write
-     * @param stream Where the payload should be written
-     */
-    private static <T extends OutputStream> T writeJson(JsonObject body, T os) {
-        try (JsonWriter w = JSON_WF.createWriter(os, UTF8)) {
-            w.writeObject(body);
+            if (boundary == null) {
+                addElements(stream, readJson(is));
+            } else {
+                // once any chunk is delivered, the request can't be retried
+                op._streamed = true;
+                streamChunkedInput(is, boundary, stream);
+            }
+            return JsonValue.NULL;
+        } finally {
+            // reads and parsing are interleaved, so parsing is the rest
+            long download = phases[Phase.Download.ordinal()];
+            if (download >= 0) {
+                phases[Phase.Parse.ordinal()] =
+                    System.nanoTime() - start - download;
+            }
         }
-        return os;
     }
 
     /**
@@ -317,60 +800,24 @@ public class JdkHttpInterface implements HttpInterface {
         HttpURLConnection http = (HttpURLConnection)conn;
         if (_apiKey != null) {
             // BASIC auth, with the API key as the username and no password
-            String credentials = base64Encode(_apiKey + ":");
-            http.setRequestProperty("Authorization", "Basic " + credentials);
+            http.setRequestProperty("Authorization",
+                                    basicAuthorization(_apiKey));
         }
 
         http.setRequestProperty("User-Agent", SDK_USER_AGENT);
 
-        if (_serverAddress.getPort() != -1) {
-            String host = String.format("%s:%d", _serverAddress.getHost(),
-                                        _serverAddress.getPort());
-            http.setRequestProperty("Host", host);
-        } else {
-            http.setRequestProperty("Host", _serverAddress.getHost());
-        }
+        if (_compressionThreshold >= 0)
+            http.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+
+        http.setRequestProperty("Host", hostHeader(_serverAddress));
 
         http.setUseCaches(false);
+        http.setConnectTimeout(_connectTimeout);
+        http.setReadTimeout(_readTimeout);
 
         return http;
     }
 
-    private static String base64Encode(String raw) {
-        byte[] utf8 = raw.getBytes(UTF8);
-        String base64 = "";
-        for (int i = 0; i < utf8.length - 2; i += 3) {
-            int v = ((int)utf8[i] & 0xff) << 16;
-            v |= ((int)utf8[i + 1] & 0xff) << 8;
-            v |= ((int)utf8[i + 2] & 0xff);
-            base64 += BASE64_TABLE.charAt((v >> 18) & 0x3f);
-            base64 += BASE64_TABLE.charAt((v >> 12) & 0x3f);
-            base64 += BASE64_TABLE.charAt((v >> 6) & 0x3f);
-            base64 += BASE64_TABLE.charAt(v & 0x3f);
-        }
-        switch (utf8.length % 3) {
-        case 1: {
-            int v = ((int)utf8[utf8.length - 1] & 0xff);
-            base64 += BASE64_TABLE.charAt((v >> 2) & 0x3f);
-            base64 += BASE64_TABLE.charAt((v << 4) & 0x3f);
-            base64 += "==";
-            break;
-        }
-        case 2: {
-            int v = ((int)utf8[utf8.length - 2] & 0xff) << 8;
-            v |= ((int)utf8[utf8.length - 1] & 0xff);
-            base64 += BASE64_TABLE.charAt((v >> 10) & 0x3f);
-            base64 += BASE64_TABLE.charAt((v >> 4) & 0x3f);
-            base64 += BASE64_TABLE.charAt((v << 2) & 0x3f);
-            base64 += "=";
-            break;
-        }
-        default:
-            break;
-        }
-        return base64;
-    }
-
     /// Scheme, hostname and port of the API server
     private URL _serverAddress;
 
@@ -383,25 +830,87 @@ public class JdkHttpInterface implements HttpInterface {
     /// The API Key used for authentication, or null if no auth needed.
     private String _apiKey = null;
 
-    /// Asynchronous execution threads for FutureTasks
-    private final ThreadPoolExecutor _threadPool =
-        new ThreadPoolExecutor(DEFAULT_CONNECTION_LIMIT,
-            DEFAULT_CONNECTION_LIMIT, 20, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<Runnable>());
+    /// Chunk length for streamed request bodies, or 0 for fixed-length
+    private volatile int _chunkLength = 0;
 
-    /// Base-64 encoding table
-    private static final String BASE64_TABLE =
-        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    /// Minimum request body size to compress, or -1 if disabled
+    private volatile int _compressionThreshold = -1;
 
-    private static final JsonWriterFactory JSON_WF = Json.createWriterFactory(null);
-    private static final JsonReaderFactory JSON_RF = Json.createReaderFactory(null);
+    /// Socket timeouts, in milliseconds, or 0 for no timeout
+    private volatile int _connectTimeout = 0;
+    private volatile int _readTimeout = 0;
 
-    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /// Deadline for each request, in milliseconds, or 0 for none
+    private volatile long _requestTimeout = 0;
 
-    private static final HostnameVerifier NO_HOSTNAME_VALIDATION =
-      new HostnameVerifier() {
-        public boolean verify(String hostname, SSLSession session) {
-            return true;
+    /// Retries failed requests, or null to report every failure
+    private volatile RetryPolicy _retryPolicy = null;
+
+    /// Paces requests and pauses them when the server is overloaded
+    private final RateLimiter _rateLimiter = new RateLimiter();
+
+    /// Adjusts the pool size automatically, or null for a fixed size
+    private volatile AdaptiveLimit _limiter = null;
+
+    /// True if requests run on virtual threads
+    private volatile boolean _virtualThreads = false;
+
+    /// Runs requests instead of _threadPool, or null
+    private volatile Executor _executor = null;
+
+    /// Notifies completion callbacks, or null to use the request thread
+    private volatile Executor _completionExecutor = null;
+
+    /// Receives request measurements, or null
+    private volatile MetricsListener _metrics = null;
+
+    /* Requests waiting to be handed to _executor, in priority order. Also
+     * protects _running, and is notified when a request finishes. */
+    private final Queue<HttpTask> _queued =
+        new PriorityQueue<HttpTask>(11, DispatchOrder.ORDERED);
+
+    /// Number of requests handed to _executor that haven't finished
+    private int _running = 0;
+
+    /// Number of pending calls to drainQueued
+    private final AtomicInteger _drains = new AtomicInteger();
+
+    /* Bounds the number of requests waiting to run, and is notified when
+     * one leaves the queue. Protects the fields below. */
+    private final Object _queueLock = new Object();
+
+    /// Number of requests waiting to run
+    private int _queueDepth = 0;
+
+    /// Maximum number of waiting requests, or 0 for no limit
+    private int _queueLimit = 0;
+
+    /// Block callers when the queue is full, rather than failing requests
+    private boolean _blockWhenFull = true;
+
+    /// Bytes transferred by this interface
+    private final TransferStatistics _stats = new TransferStatistics();
+
+    /* Asynchronous execution threads for HttpTasks, which are queued in
+     * priority order */
+    private final ThreadPoolExecutor _threadPool =
+        new ThreadPoolExecutor(DEFAULT_CONNECTION_LIMIT,
+            DEFAULT_CONNECTION_LIMIT, 20, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(11, DispatchOrder.RUNNABLES));
+
+    /// Queues requests for the views returned by atPriority
+    private final PriorityView.Dispatcher _dispatcher =
+      new PriorityView.Dispatcher() {
+        public HttpFuture<JsonValue> dispatch(String method, String endpoint,
+              JsonObject body, RequestPriority priority) {
+            return JdkHttpInterface.this.dispatch(method, endpoint, body,
+                                                  priority);
+        }
+
+        public HttpStream dispatchStream(String endpoint, JsonObject body,
+              RequestPriority priority) {
+            return JdkHttpInterface.this.dispatchStream(endpoint, body,
+                                                        priority);
         }
       };
 
@@ -410,33 +919,106 @@ public class JdkHttpInterface implements HttpInterface {
      * performance is needed. */
     static final int DEFAULT_CONNECTION_LIMIT = 10;
 
-    static final String SDK_USER_AGENT;
-
-    private static final String POM_PROPERTIES =
-        "/META-INF/maven/com.idibon.api.java-sdk/java-api-client/pom.properties";
+    /* every platform thread reserves a full stack, so limit the pool to
+     * 1000 threads; virtual threads are cheap enough for far more */
+    static final int MAX_CONNECTIONS = 1000;
+    static final int MAX_VIRTUAL_CONNECTIONS = 10000;
 
+    /* the JDK's keep-alive cache is shared by every HttpURLConnection in
+     * the process, and only reads this setting once. raise it from the
+     * JDK default of 5 so that the default number of parallel requests
+     * can re-use connections, but never override a value configured by
+     * the application. use NioHttpInterface for per-client pools. */
     static {
-        System.setProperty("http.maxConnections",
-                           Integer.toString(DEFAULT_CONNECTION_LIMIT));
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                               Integer.toString(DEFAULT_CONNECTION_LIMIT));
+        }
+    }
 
-        String version = "1.0";
-        try {
-            java.util.Properties props = new java.util.Properties();
-            InputStream is = JdkHttpInterface.class
-                .getResourceAsStream(POM_PROPERTIES);
-            try {
-                if (is != null) {
-                    props.load(is);
-                    version = props.getProperty("version");
-                }
-            } finally {
-                is.close();
-            }
-        } catch (Exception _) {
-            // ignore exceptions trying to load SDK version
+    /**
+     * A queued HTTP operation, ordered by priority.
+     */
+    private static class HttpTask extends ListenableTask<JsonValue>
+          implements DispatchOrder.Ordered {
+        HttpTask(HttpOp op, RequestPriority priority, HttpStream stream) {
+            super(op);
+            _op = op;
+            _order = new DispatchOrder(priority);
+            _stream = stream;
+        }
+
+        public DispatchOrder order() {
+            return _order;
         }
 
-        SDK_USER_AGENT = "Idibon Java SDK/" + version;
+        @Override public void run() {
+            leaveQueue();
+            super.run();
+        }
+
+        /**
+         * Releases the request's place in the queue, once.
+         */
+        private void leaveQueue() {
+            Runnable dequeue = _dequeue.getAndSet(null);
+            if (dequeue != null) dequeue.run();
+        }
+
+        /**
+         * Cancels the request, closing its connection if it is running.
+         */
+        @Override public boolean cancel(boolean mayInterrupt) {
+            if (!super.cancel(mayInterrupt)) return false;
+            _op.abandon();
+            return true;
+        }
+
+        /**
+         * Fails a request that could not be run.
+         */
+        void reject(IOException error) {
+            setException(error);
+        }
+
+        @Override protected Executor listenerExecutor() {
+            return _completions;
+        }
+
+        /**
+         * Fails the request once its deadline has passed.
+         */
+        void expire() {
+            if (isDone()) return;
+            setException(new HttpTimeoutException("Request deadline exceeded"));
+            _op.abandon();
+        }
+
+        @Override protected void done() {
+            leaveQueue();
+            ScheduledFuture<?> deadline = _deadline;
+            if (deadline != null) deadline.cancel(false);
+
+            Throwable error = failureOf(this);
+            if (_stream != null && error != null)
+                _stream.fail(asIOException(error));
+            _op.finished(error);
+            super.done();
+        }
+
+        private final HttpOp _op;
+        private final DispatchOrder _order;
+        private final HttpStream _stream;
+
+        /// Expires the request, or null if there is no deadline
+        volatile ScheduledFuture<?> _deadline;
+
+        /// Notifies completion callbacks, or null
+        Executor _completions;
+
+        /// Releases the request's place in the queue, or null
+        final AtomicReference<Runnable> _dequeue =
+            new AtomicReference<Runnable>();
     }
 
     /**
@@ -444,18 +1026,214 @@ public class JdkHttpInterface implements HttpInterface {
      */
     private class HttpOp implements Callable<JsonValue> {
         HttpOp(String method, String endpoint, JsonObject body) {
+            this(method, endpoint, body, null);
+        }
+
+        HttpOp(String method, String endpoint, JsonObject body,
+              HttpStream stream) {
             _method = method;
             _endpoint = endpoint;
-            _body = toBytes(body);
+            _body = body;
+            _stream = stream;
         }
 
-        private byte[] toBytes(JsonObject body) {
-            if (body == null) return null;
-            return writeJson(body, new ByteArrayOutputStream()).toByteArray();
+        /**
+         * Serializes the body and writes it to the connection. Streaming
+         * modes are used so that HttpURLConnection does not buffer its own
+         * copy of the body.
+         */
+        private void writeBody(HttpURLConnection conn) throws IOException {
+            int chunkLength = _chunkLength;
+            int threshold = _compressionThreshold;
+            if (chunkLength > 0) {
+                conn.setChunkedStreamingMode(chunkLength);
+                if (threshold >= 0)
+                    conn.setRequestProperty("Content-Encoding", "gzip");
+                connect(conn);
+                long start = System.nanoTime();
+                try (OutputStream os = conn.getOutputStream()) {
+                    OutputStream body = new CountingOutputStream(os,
+                        _stats._requestBytesSent, _transfer._requestBytesSent);
+                    if (threshold >= 0)
+                        body = new GZIPOutputStream(body, chunkLength);
+                    writeJson(_body, new CountingOutputStream(body,
+                        _stats._requestBytes, _transfer._requestBytes));
+                }
+                record(Phase.Send, start);
+            } else {
+                ByteArrayOutputStream bytes =
+                    writeJson(_body, new ByteArrayOutputStream());
+                _stats._requestBytes.addAndGet(bytes.size());
+                _transfer._requestBytes.addAndGet(bytes.size());
+                if (threshold >= 0 && bytes.size() >= threshold) {
+                    bytes = gzip(bytes);
+                    conn.setRequestProperty("Content-Encoding", "gzip");
+                }
+                _stats._requestBytesSent.addAndGet(bytes.size());
+                _transfer._requestBytesSent.addAndGet(bytes.size());
+                conn.setFixedLengthStreamingMode(bytes.size());
+                connect(conn);
+                long start = System.nanoTime();
+                try (OutputStream os = conn.getOutputStream()) {
+                    bytes.writeTo(os);
+                }
+                record(Phase.Send, start);
+            }
         }
 
         public JsonValue call() throws IOException {
+            _queueTime = System.nanoTime() - _created;
+            try {
+                JsonValue result = performWithRetries();
+                if (_stream != null) _stream.complete();
+                return result;
+            } catch (IOException | RuntimeException ex) {
+                if (_stream != null) _stream.fail(asIOException(ex));
+                throw ex;
+            }
+        }
+
+        /**
+         * Performs the request, re-sending it after transient failures as
+         * allowed by the retry policy. The worker thread waits between
+         * attempts, until the delay passes or the request is abandoned.
+         */
+        private JsonValue performWithRetries() throws IOException {
+            for (int attempts = 1; ; attempts++) {
+                _attempts = attempts;
+                throttle();
+                long start = System.nanoTime();
+                try {
+                    JsonValue result = perform();
+                    adapt(requestClass(_method, _endpoint,
+                                       _transfer._requestBytesSent.get()),
+                          _stream == null ? System.nanoTime() - start : -1,
+                          null);
+                    return result;
+                } catch (IOException ex) {
+                    if (ex instanceof SocketTimeoutException &&
+                          !(ex instanceof HttpTimeoutException)) {
+                        IOException timeout =
+                            new HttpTimeoutException(ex.getMessage());
+                        timeout.initCause(ex);
+                        ex = timeout;
+                    }
+                    adapt(null, -1, ex);
+                    RetryPolicy policy = _retryPolicy;
+                    if (policy == null || _streamed || _abandoned ||
+                          !policy.shouldRetry(_method, attempts, ex))
+                        throw ex;
+
+                    _stats._retries.incrementAndGet();
+                    try {
+                        if (!pause(TimeUnit.MILLISECONDS.toNanos(
+                                 policy.delay(attempts))))
+                            throw ex;
+                    } catch (InterruptedException _) {
+                        Thread.currentThread().interrupt();
+                        throw ex;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits until the rate limiter allows another request.
+         */
+        private void throttle() throws IOException {
+            if (_abandoned) throw new IOException("Operation abandoned");
+            try {
+                for (long wait = _rateLimiter.acquire(); wait > 0;
+                       wait = _rateLimiter.acquire()) {
+                    if (!pause(wait))
+                        throw new IOException("Operation abandoned");
+                }
+            } catch (InterruptedException _) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Operation interrupted");
+            }
+        }
+
+        /**
+         * Waits for a delay between attempts. Cancelling the request, or
+         * its deadline passing, ends the wait early so that the worker
+         * thread is released immediately.
+         *
+         * @param nanos Time to wait, in nanoseconds
+         * @return false if the request was abandoned
+         */
+        private boolean pause(long nanos) throws InterruptedException {
+            long until = System.nanoTime() + nanos;
+            synchronized (_pauseLock) {
+                while (!_abandoned) {
+                    long remain = until - System.nanoTime();
+                    if (remain <= 0) return true;
+                    TimeUnit.NANOSECONDS.timedWait(_pauseLock, remain);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Stops the request: the current connection (if any) is closed,
+         * which fails any blocked reads or writes, and no more attempts
+         * are made.
+         */
+        void abandon() {
+            _abandoned = true;
+            synchronized (_pauseLock) {
+                _pauseLock.notifyAll();
+            }
+            HttpURLConnection conn = _conn;
+            if (conn != null) conn.disconnect();
+        }
+
+        /**
+         * Reports the completed request to the metrics listener, if any.
+         *
+         * @param error Why the request failed, or null
+         */
+        void finished(Throwable error) {
+            MetricsListener metrics = _metrics;
+            if (metrics == null) return;
+            long latency = System.nanoTime() - _created;
+            long queueTime = _queueTime < 0 ? latency : _queueTime;
+            report(metrics, new RequestMetrics(_method, _endpoint, _status,
+                error, queueTime, latency,
+                _transfer.getRequestBytesSent(),
+                _transfer.getResponseBytesReceived(),
+                Math.max(_attempts - 1, 0), _startTime, _phases));
+        }
+
+        /**
+         * Opens the connection (or re-uses an idle one), once the request
+         * headers are final, and times it.
+         */
+        private void connect(HttpURLConnection conn) throws IOException {
+            long start = System.nanoTime();
+            conn.connect();
+            record(Phase.Connect, start);
+        }
+
+        /**
+         * Records the time since start as the duration of a phase of the
+         * current attempt.
+         */
+        private void record(Phase phase, long start) {
+            _phases[phase.ordinal()] = System.nanoTime() - start;
+        }
+
+        private JsonValue perform() throws IOException {
+            _transfer = new TransferStatistics();
+            _phases = newPhases();
+            _status = -1;
             HttpURLConnection conn = getConnection(_endpoint);
+            _conn = conn;
+            // abandoned while connecting
+            if (_abandoned) {
+                conn.disconnect();
+                throw new IOException("Operation abandoned");
+            }
             conn.setDoInput(true);
             conn.setDoOutput(_body != null);
             /* Java's HttpURLConnection has a (major) bug in getOutputStream
@@ -471,16 +1249,20 @@ public class JdkHttpInterface implements HttpInterface {
 
             if (_body != null) {
                 conn.setRequestProperty("X-HTTP-Method-Override", _method);
-                conn.setRequestProperty("Content-Length",
-                                        Integer.toString(_body.length));
-
-                try (OutputStream os = conn.getOutputStream()) {
-                    os.write(_body);
-                }
+                writeBody(conn);
+            } else {
+                connect(conn);
             }
 
             try {
-                return maybeHandleChunkedInput(conn);
+                long waiting = System.nanoTime();
+                _status = conn.getResponseCode();
+                record(Phase.Wait, waiting);
+                _rateLimiter.onResponse(_status,
+                    conn.getHeaderField("Retry-After"),
+                    conn.getHeaderField("X-RateLimit-Remaining"),
+                    conn.getHeaderField("X-RateLimit-Reset"));
+                return maybeHandleChunkedInput(conn, this);
             } catch (IOException ex) {
                 /* if an HTTP protocol (3xx, 4xx, 5xx) error caused this
                  * exception, convert it to a more meaningful exception tree
@@ -490,8 +1272,9 @@ public class JdkHttpInterface implements HttpInterface {
                     responseCode = conn.getResponseCode();
                 } catch (IOException _) { }
 
+                _status = responseCode;
                 if (responseCode != -1 && responseCode != HTTP_OK)
-                    throw httpException(conn, ex);
+                    throw httpException(conn, ex, _transfer);
 
                 // otherwise, re-throw the original exception
                 throw ex;
@@ -500,14 +1283,46 @@ public class JdkHttpInterface implements HttpInterface {
 
         private String _endpoint;
         private String _method;
-        private byte[] _body;
+        private JsonObject _body;
+        private HttpStream _stream;
+
+        /// True once part of the response was added to the stream
+        private boolean _streamed;
+
+        /// The connection for the current attempt
+        private volatile HttpURLConnection _conn;
+
+        /// True once the request was cancelled or missed its deadline
+        private volatile boolean _abandoned;
+
+        /// Signalled when the request is abandoned, to end any pause
+        private final Object _pauseLock = new Object();
+
+        /// Time the request was submitted
+        private final long _created = System.nanoTime();
+        private final long _startTime = System.currentTimeMillis();
+
+        /// Time spent waiting for a thread, or -1 until the request runs
+        private volatile long _queueTime = -1;
+
+        /// Number of the current attempt
+        private volatile int _attempts;
+
+        /// HTTP status of the current attempt, or -1 if not yet received
+        private volatile int _status = -1;
+
+        /// Bytes transferred by the current attempt
+        volatile TransferStatistics _transfer = new TransferStatistics();
+
+        /// Time spent in each phase of the current attempt
+        volatile long[] _phases = newPhases();
     }
 
     /**
      * Generate specific exception instances for known HTTP response codes
      */
-    private static HttpException httpException(HttpURLConnection conn,
-                                               Throwable chain) {
+    private HttpException httpException(HttpURLConnection conn,
+          Throwable chain, TransferStatistics transfer) {
         int code = -1;
         String msg = "";
         JsonObject obj = null;
@@ -516,36 +1331,14 @@ public class JdkHttpInterface implements HttpInterface {
             code = conn.getResponseCode();
             msg = conn.getResponseMessage();
             if (conn.getContentType().equals("application/json")) {
-                try (InputStream is = conn.getErrorStream()) {
+                try (InputStream is = decodeContent(conn.getErrorStream(),
+                         conn.getContentEncoding(), _stats, transfer)) {
                     obj = (JsonObject)readJson(is);
                 }
             }
         } catch (Exception _) { }
 
-        switch (code) {
-        case HTTP_BAD_REQUEST:
-            return new HttpException.BadRequest(url, code, msg, obj, chain);
-        case HTTP_UNAUTHORIZED:
-            return new HttpException.Unauthorized(url, code, msg, obj, chain);
-        case HTTP_FORBIDDEN:
-            return new HttpException.Forbidden(url, code, msg, obj, chain);
-        case HTTP_NOT_FOUND:
-            return new HttpException.NotFound(url, code, msg, obj, chain);
-        case HTTP_ENTITY_TOO_LARGE:
-            return new HttpException.EntityTooLarge(url, code, msg, obj, chain);
-        case HTTP_INTERNAL_ERROR:
-            return new HttpException.InternalServerError(url, code, msg, obj, chain);
-        case HTTP_UNAVAILABLE:
-            return new HttpException.ServiceUnavailable(url, code, msg, obj, chain);
-        case HTTP_GATEWAY_TIMEOUT:
-            return new HttpException.GatewayTimeout(url, code, msg, obj, chain);
-        }
-
-        if (code >= 400 && code < 500)
-            return new HttpException.ClientError(url, code, msg, obj, chain);
-        else if (code >= 500 && code < 600)
-            return new HttpException.ServerError(url, code, msg, obj, chain);
-
-        return new HttpException(url, code, msg, obj, chain);
+        return HttpSupport.httpException(url, code, msg, obj, chain,
+            conn.getHeaderField("Retry-After"));
     }
 }
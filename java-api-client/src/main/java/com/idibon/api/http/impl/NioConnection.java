@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.*;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import static javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * A single non-blocking socket connection to the API server, optionally
+ * secured with TLS through an {@link javax.net.ssl.SSLEngine}.
+ *
+ * All operations complete through {@link java.nio.channels.CompletionHandler}
+ * callbacks on the threads of the owning channel group. At most one read
+ * and one write may be outstanding at any time, but a read may proceed
+ * while a write is in progress.
+ */
+final class NioConnection {
+
+    /**
+     * Opens a new connection to the server, performing the TLS handshake
+     * if an SSLContext is provided.
+     *
+     * @param group Channel group that will service I/O for the connection
+     * @param address Resolved server address
+     * @param tls SSL context used for HTTPS servers, or null for plain HTTP
+     * @param validateHostname Perform HTTPS hostname validation when true
+     * @param handler Notified with the connected instance or the failure
+     */
+    static void open(AsynchronousChannelGroup group,
+          final InetSocketAddress address, SSLContext tls,
+          boolean validateHostname,
+          final CompletionHandler<NioConnection, Void> handler) {
+
+        final NioConnection conn;
+        try {
+            conn = new NioConnection(AsynchronousSocketChannel.open(group),
+                                     address, tls, validateHostname);
+        } catch (IOException ex) {
+            handler.failed(ex, null);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        conn._channel.connect(address, null,
+          new CompletionHandler<Void, Void>() {
+            public void completed(Void v, Void a) {
+                final long connected = System.nanoTime();
+                conn._connectTime = connected - start;
+                if (conn._engine == null) {
+                    handler.completed(conn, null);
+                    return;
+                }
+                try {
+                    conn._engine.beginHandshake();
+                } catch (SSLException ex) {
+                    failed(ex, null);
+                    return;
+                }
+                conn.handshake(new CompletionHandler<Void, Void>() {
+                    public void completed(Void v, Void a) {
+                        conn._handshakeTime = System.nanoTime() - connected;
+                        handler.completed(conn, null);
+                    }
+                    public void failed(Throwable t, Void a) {
+                        conn.close();
+                        handler.failed(t, null);
+                    }
+                });
+            }
+            public void failed(Throwable t, Void a) {
+                conn.close();
+                handler.failed(t, null);
+            }
+        });
+    }
+
+    /**
+     * Writes all of the remaining bytes in the buffer to the connection.
+     *
+     * @param src Data to write
+     * @param handler Notified after all of the data is written
+     */
+    void write(final ByteBuffer src,
+          final CompletionHandler<Void, Void> handler) {
+
+        if (_engine == null) {
+            writeFully(src, handler);
+            return;
+        }
+
+        if (!src.hasRemaining()) {
+            handler.completed(null, null);
+            return;
+        }
+
+        /* records must reach the socket in the order they were wrapped,
+         * so wrapping and queueing the write happen atomically with respect
+         * to handshake messages generated by the reader */
+        synchronized (_wrapLock) {
+            try {
+                _netOut.clear();
+                SSLEngineResult r = _engine.wrap(src, _netOut);
+                _netOut.flip();
+                if (r.getStatus() == Status.CLOSED) {
+                    throw new SSLException("Connection closed during write");
+                } else if (r.getStatus() == Status.BUFFER_OVERFLOW) {
+                    _netOut = emptyBuffer(2 * _netOut.capacity());
+                    write(src, handler);
+                    return;
+                }
+            } catch (SSLException ex) {
+                handler.failed(ex, null);
+                return;
+            }
+
+            writeFully(_netOut, new CompletionHandler<Void, Void>() {
+                public void completed(Void v, Void a) {
+                    write(src, handler);
+                }
+                public void failed(Throwable t, Void a) {
+                    handler.failed(t, null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes all of the remaining bytes in each buffer to the connection,
+     * in order.
+     *
+     * @param srcs Data to write
+     * @param handler Notified after all of the data is written
+     */
+    void write(final ByteBuffer[] srcs,
+          final CompletionHandler<Void, Void> handler) {
+        write(srcs, 0, handler);
+    }
+
+    private void write(final ByteBuffer[] srcs, final int index,
+          final CompletionHandler<Void, Void> handler) {
+        if (index == srcs.length) {
+            handler.completed(null, null);
+            return;
+        }
+        write(srcs[index], new CompletionHandler<Void, Void>() {
+            public void completed(Void v, Void a) {
+                write(srcs, index + 1, handler);
+            }
+            public void failed(Throwable t, Void a) {
+                handler.failed(t, null);
+            }
+        });
+    }
+
+    /**
+     * Reads the next available bytes from the connection into the buffer.
+     *
+     * @param dst Buffer to receive data
+     * @param handler Notified with the number of bytes read, or -1 if the
+     *        server closed the connection.
+     */
+    void read(final ByteBuffer dst,
+          final CompletionHandler<Integer, Void> handler) {
+
+        if (_engine == null) {
+            _channel.read(dst, _readTimeout, TimeUnit.MILLISECONDS, null,
+                          new CompletionHandler<Integer, Void>() {
+                public void completed(Integer count, Void a) {
+                    handler.completed(count, null);
+                }
+                public void failed(Throwable t, Void a) {
+                    handler.failed(t, null);
+                }
+            });
+            return;
+        }
+
+        try {
+            while (!_appIn.hasRemaining()) {
+                _appIn.compact();
+                SSLEngineResult r = _engine.unwrap(_netIn, _appIn);
+                _appIn.flip();
+
+                if (r.getStatus() == Status.CLOSED) {
+                    handler.completed(-1, null);
+                    return;
+                } else if (r.getStatus() == Status.BUFFER_OVERFLOW) {
+                    _appIn = grow(_appIn,
+                        _engine.getSession().getApplicationBufferSize());
+                } else if (r.getStatus() == Status.BUFFER_UNDERFLOW) {
+                    fillNetIn(new CompletionHandler<Integer, Void>() {
+                        public void completed(Integer count, Void a) {
+                            if (count < 0) handler.completed(-1, null);
+                            else read(dst, handler);
+                        }
+                        public void failed(Throwable t, Void a) {
+                            handler.failed(t, null);
+                        }
+                    });
+                    return;
+                } else if (needsHandshake(r.getHandshakeStatus())) {
+                    /* post-handshake messages (e.g., session tickets or
+                     * renegotiation) need to be processed before more
+                     * application data can be read */
+                    handshake(new CompletionHandler<Void, Void>() {
+                        public void completed(Void v, Void a) {
+                            read(dst, handler);
+                        }
+                        public void failed(Throwable t, Void a) {
+                            handler.failed(t, null);
+                        }
+                    });
+                    return;
+                }
+            }
+        } catch (SSLException ex) {
+            handler.failed(ex, null);
+            return;
+        }
+
+        int count = Math.min(dst.remaining(), _appIn.remaining());
+        ByteBuffer slice = _appIn.duplicate();
+        slice.limit(slice.position() + count);
+        dst.put(slice);
+        _appIn.position(_appIn.position() + count);
+        handler.completed(count, null);
+    }
+
+    /**
+     * Sets the longest time a read may wait for data before failing with
+     * an {@link java.nio.channels.InterruptedByTimeoutException}.
+     *
+     * @param millis Read timeout in milliseconds, or 0 to wait forever
+     */
+    void setReadTimeout(long millis) {
+        _readTimeout = millis;
+    }
+
+    /**
+     * Returns true if the channel is still open.
+     */
+    boolean isOpen() {
+        return _channel.isOpen();
+    }
+
+    /**
+     * Closes the connection, suppressing any errors.
+     */
+    void close() {
+        try {
+            _channel.close();
+        } catch (IOException _) {
+            // ignore
+        }
+    }
+
+    /**
+     * Returns the address of the server this connection is attached to.
+     */
+    InetSocketAddress getAddress() {
+        return _address;
+    }
+
+    /**
+     * Drives the SSLEngine handshake state machine until the engine is
+     * ready to exchange application data.
+     */
+    private void handshake(final CompletionHandler<Void, Void> handler) {
+        try {
+            while (true) {
+                switch (_engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    for (Runnable task = _engine.getDelegatedTask();
+                           task != null; task = _engine.getDelegatedTask())
+                        task.run();
+                    break;
+                case NEED_WRAP: {
+                    /* use a separate buffer, since an application write may
+                     * still be flushing _netOut */
+                    ByteBuffer out = ByteBuffer.allocate(
+                        _engine.getSession().getPacketBufferSize());
+                    synchronized (_wrapLock) {
+                        SSLEngineResult r = _engine.wrap(EMPTY, out);
+                        out.flip();
+                        if (r.getStatus() == Status.CLOSED)
+                            throw new SSLException("Connection closed in handshake");
+                        writeFully(out, new CompletionHandler<Void, Void>() {
+                            public void completed(Void v, Void a) {
+                                handshake(handler);
+                            }
+                            public void failed(Throwable t, Void a) {
+                                handler.failed(t, null);
+                            }
+                        });
+                    }
+                    return;
+                }
+                case NEED_UNWRAP: {
+                    _appIn.compact();
+                    SSLEngineResult r = _engine.unwrap(_netIn, _appIn);
+                    _appIn.flip();
+                    if (r.getStatus() == Status.CLOSED) {
+                        throw new SSLException("Connection closed in handshake");
+                    } else if (r.getStatus() == Status.BUFFER_OVERFLOW) {
+                        _appIn = grow(_appIn,
+                            _engine.getSession().getApplicationBufferSize());
+                    } else if (r.getStatus() == Status.BUFFER_UNDERFLOW) {
+                        fillNetIn(new CompletionHandler<Integer, Void>() {
+                            public void completed(Integer count, Void a) {
+                                if (count < 0)
+                                    handler.failed(new EOFException(
+                                        "Connection closed in handshake"), null);
+                                else
+                                    handshake(handler);
+                            }
+                            public void failed(Throwable t, Void a) {
+                                handler.failed(t, null);
+                            }
+                        });
+                        return;
+                    }
+                    break;
+                }
+                default:
+                    handler.completed(null, null);
+                    return;
+                }
+            }
+        } catch (SSLException ex) {
+            handler.failed(ex, null);
+        }
+    }
+
+    /**
+     * Reads more encrypted data from the socket into the network buffer.
+     */
+    private void fillNetIn(final CompletionHandler<Integer, Void> handler) {
+        // make room for another packet if the buffer is full
+        if (_netIn.remaining() == _netIn.capacity())
+            _netIn = grow(_netIn, _engine.getSession().getPacketBufferSize());
+        _netIn.compact();
+
+        _channel.read(_netIn, _readTimeout, TimeUnit.MILLISECONDS, null,
+                      new CompletionHandler<Integer, Void>() {
+            public void completed(Integer count, Void a) {
+                _netIn.flip();
+                handler.completed(count, null);
+            }
+            public void failed(Throwable t, Void a) {
+                _netIn.flip();
+                handler.failed(t, null);
+            }
+        });
+    }
+
+    /**
+     * Writes the entire buffer to the socket, re-issuing partial writes.
+     * Writes are queued if another write is already in progress.
+     */
+    private void writeFully(ByteBuffer src,
+          CompletionHandler<Void, Void> handler) {
+        synchronized (_writes) {
+            _writes.addLast(new PendingWrite(src, handler));
+            if (_writes.size() > 1) return;
+        }
+        drainWrites();
+    }
+
+    /**
+     * Writes the buffer at the head of the write queue, then continues
+     * with the next queued write.
+     */
+    private void drainWrites() {
+        final PendingWrite head;
+        synchronized (_writes) {
+            head = _writes.peekFirst();
+        }
+        _channel.write(head.src, null, new CompletionHandler<Integer, Void>() {
+            public void completed(Integer count, Void a) {
+                if (head.src.hasRemaining()) {
+                    _channel.write(head.src, null, this);
+                    return;
+                }
+                boolean more;
+                synchronized (_writes) {
+                    _writes.removeFirst();
+                    more = !_writes.isEmpty();
+                }
+                head.handler.completed(null, null);
+                if (more) drainWrites();
+            }
+            public void failed(Throwable t, Void a) {
+                List<PendingWrite> failed;
+                synchronized (_writes) {
+                    failed = new ArrayList<>(_writes);
+                    _writes.clear();
+                }
+                for (PendingWrite w : failed) w.handler.failed(t, null);
+            }
+        });
+    }
+
+    private static boolean needsHandshake(HandshakeStatus status) {
+        return status == HandshakeStatus.NEED_TASK ||
+            status == HandshakeStatus.NEED_WRAP;
+    }
+
+    /**
+     * Returns a larger copy of buffer (in read mode), with at least
+     * minimum bytes of free space.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int minimum) {
+        ByteBuffer larger = ByteBuffer.allocate(
+            Math.max(buffer.capacity() * 2, buffer.remaining() + minimum));
+        larger.put(buffer);
+        larger.flip();
+        return larger;
+    }
+
+    private NioConnection(AsynchronousSocketChannel channel,
+          InetSocketAddress address, SSLContext tls,
+          boolean validateHostname) {
+        _channel = channel;
+        _address = address;
+
+        if (tls != null) {
+            _engine = tls.createSSLEngine(address.getHostString(),
+                                          address.getPort());
+            _engine.setUseClientMode(true);
+            if (validateHostname) {
+                SSLParameters params = _engine.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                _engine.setSSLParameters(params);
+            }
+            SSLSession session = _engine.getSession();
+            _netIn = emptyBuffer(session.getPacketBufferSize());
+            _netOut = emptyBuffer(session.getPacketBufferSize());
+            _appIn = emptyBuffer(session.getApplicationBufferSize());
+        } else {
+            _engine = null;
+        }
+    }
+
+    /**
+     * Returns a new buffer, in read mode, with no readable data.
+     */
+    private static ByteBuffer emptyBuffer(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A buffer waiting to be written to the socket.
+     */
+    private static class PendingWrite {
+        PendingWrite(ByteBuffer src, CompletionHandler<Void, Void> handler) {
+            this.src = src;
+            this.handler = handler;
+        }
+
+        final ByteBuffer src;
+        final CompletionHandler<Void, Void> handler;
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /// The underlying socket
+    private final AsynchronousSocketChannel _channel;
+
+    /// The remote address
+    private final InetSocketAddress _address;
+
+    /// TLS engine for HTTPS connections, or null for plain-text HTTP
+    private final SSLEngine _engine;
+
+    /// Encrypted bytes read from the socket, not yet unwrapped (read mode)
+    private ByteBuffer _netIn;
+
+    /// Encrypted bytes waiting to be written to the socket
+    private ByteBuffer _netOut;
+
+    /// Serializes SSLEngine wraps with queueing the wrapped records
+    private final Object _wrapLock = new Object();
+
+    /// Socket writes in progress or waiting for an earlier write
+    private final Deque<PendingWrite> _writes = new ArrayDeque<>();
+
+    /// Decrypted application data not yet delivered to a reader (read mode)
+    private ByteBuffer _appIn;
+
+    /// Read timeout in milliseconds, or 0 for none
+    private volatile long _readTimeout;
+
+    /// Time taken to connect the socket, in nanoseconds
+    volatile long _connectTime = -1;
+
+    /// Time taken by the TLS handshake in nanoseconds, or -1 for HTTP
+    volatile long _handshakeTime = -1;
+}
@@ -0,0 +1,1674 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.CompletionHandler;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+
+import com.idibon.api.http.*;
+import com.idibon.api.http.RequestMetrics.Phase;
+import com.idibon.api.util.ExtendedByteArrayOutputStream;
+
+import javax.json.*;
+
+import static com.idibon.api.http.impl.HttpSupport.*;
+
+/**
+ * Implementation of the HttpInterface using non-blocking sockets.
+ *
+ * Requests are written and responses are read asynchronously by a small,
+ * fixed number of I/O threads, and each {@link com.idibon.api.http.HttpFuture}
+ * is completed directly from the I/O callbacks. Unlike
+ * {@link com.idibon.api.http.impl.JdkHttpInterface}, no thread is parked
+ * while a request is in flight, so the number of parallel requests may be
+ * much larger than the number of threads.
+ *
+ * Connections are made directly to the API server; proxies are not
+ * supported.
+ */
+public class NioHttpInterface implements StreamingHttpInterface {
+
+    /**
+     * Configure the scheme, host name, and port of the Idibon API server.
+     *
+     * @param serverAddress Fully qualified address, including scheme, of the
+     *        API server to use. e.g., https://api.idibon.com/
+     * @return this
+     */
+    public NioHttpInterface forServer(String serverAddress)
+        throws MalformedURLException {
+
+        return forServer(new URL(serverAddress));
+    }
+
+    public NioHttpInterface forServer(URL serverAddress) {
+        String scheme = serverAddress.getProtocol();
+        if (!scheme.equals("http") && !scheme.equals("https"))
+            throw new IllegalArgumentException("Server is not HTTP/HTTPS");
+        _serverAddress = serverAddress;
+        return this;
+    }
+
+    /**
+     * Configure the maximum number of parallel requests.
+     *
+     * Each in-flight request occupies one connection to the server (unless
+     * pipelining is enabled with {@link #maxRequestsPerConnection}), but
+     * no threads. Can be changed dynamically as needed by the application.
+     *
+     * @param limit The new number of parallel requests. Must be between
+     *        1 - 10000.
+     * @return this
+     */
+    public NioHttpInterface maxConnections(int limit) {
+        if (limit <= 0 || limit > 10000)
+            throw new IllegalArgumentException("Invalid connection limit");
+
+        synchronized (_lock) {
+            if (_shutdown) throw new IllegalStateException("Already shut down");
+            _connectionLimit = limit;
+            _limiter = null;
+        }
+        pump();
+        return this;
+    }
+
+    /**
+     * Adjust the maximum number of parallel requests automatically, based
+     * on observed round-trip times and server overload errors (HTTP 429,
+     * 503 and 504, connection failures and timeouts).
+     *
+     * The limit starts at the current maximum, grows while the server
+     * keeps up, and shrinks as soon as requests start to queue. The
+     * current limit is reported as the ParallelRequestLimit property.
+     * Calling {@link #maxConnections} returns to a fixed limit.
+     *
+     * @param minLimit Smallest number of parallel requests, at least 1
+     * @param maxLimit Largest number of parallel requests, up to 10000
+     * @return this
+     */
+    public NioHttpInterface adaptiveConcurrency(int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit > 10000 || maxLimit < minLimit)
+            throw new IllegalArgumentException("Invalid connection limit");
+
+        synchronized (_lock) {
+            if (_shutdown) throw new IllegalStateException("Already shut down");
+            _limiter = new AdaptiveLimit(minLimit, maxLimit, _connectionLimit);
+        }
+        pump();
+        return this;
+    }
+
+    /**
+     * Configure the maximum number of requests that may be in flight on a
+     * single connection at once, using HTTP/1.1 pipelining.
+     *
+     * With a depth greater than 1, the parallel request limit is carried
+     * over proportionally fewer connections, reducing the number of TCP
+     * and TLS handshakes and the connection count at the server. Responses
+     * on a connection are returned in order, so one slow request delays
+     * the requests queued behind it.
+     *
+     * Only idempotent requests (GET, PUT, DELETE) are pipelined; POST
+     * requests are always sent on a connection of their own, as RFC 7230
+     * recommends.
+     *
+     * @param depth The maximum number of requests per connection. Must be
+     *        between 1 - 100; 1 disables pipelining.
+     * @return this
+     */
+    public NioHttpInterface maxRequestsPerConnection(int depth) {
+        if (depth <= 0 || depth > 100)
+            throw new IllegalArgumentException("Invalid pipeline depth");
+
+        synchronized (_lock) {
+            _pipelineDepth = depth;
+        }
+        pump();
+        return this;
+    }
+
+    /**
+     * Configure how long an idle connection is kept open for re-use before
+     * it is closed.
+     *
+     * @param millis Idle time, in milliseconds. Must be positive.
+     * @return this
+     */
+    public NioHttpInterface idleTimeout(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("Invalid idle timeout");
+
+        synchronized (_lock) {
+            _idleTimeout = millis;
+        }
+        return this;
+    }
+
+    /**
+     * Configure the maximum number of idle connections kept open for
+     * re-use. Connections in excess of the limit are closed as soon as
+     * they become idle. There is no limit by default, other than the
+     * number of connections needed for the parallel request limit.
+     *
+     * @param limit Maximum number of idle connections. Zero disables
+     *        connection re-use.
+     * @return this
+     */
+    public NioHttpInterface maxIdleConnections(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Invalid idle connection limit");
+
+        synchronized (_lock) {
+            _maxIdleConnections = limit;
+        }
+        return this;
+    }
+
+    /**
+     * Configure the maximum number of requests sent over a single
+     * connection before it is retired and replaced with a new connection.
+     * There is no limit by default.
+     *
+     * @param limit Maximum number of requests per connection, at least 1.
+     * @return this
+     */
+    public NioHttpInterface maxKeepAliveRequests(int limit) {
+        if (limit <= 0)
+            throw new IllegalArgumentException("Invalid keep-alive limit");
+
+        synchronized (_lock) {
+            _maxKeepAliveRequests = limit;
+        }
+        return this;
+    }
+
+    /**
+     * Configure the number of threads used to service network I/O and
+     * decode responses. Must be called before the first request is issued.
+     *
+     * @param threads The number of I/O threads, at least 1.
+     * @return this
+     */
+    public NioHttpInterface ioThreads(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Invalid thread count");
+
+        synchronized (_lock) {
+            if (_group != null)
+                throw new IllegalStateException("Already started");
+            _ioThreads = threads;
+        }
+        return this;
+    }
+
+    /**
+     * Enable HTTP compression.
+     *
+     * Responses are requested with gzip or deflate Content-Encoding, and
+     * request bodies at least as large as the threshold are sent with gzip
+     * Content-Encoding.
+     *
+     * @param minimumRequestSize Smallest request body, in bytes, that will
+     *        be compressed.
+     * @return this
+     */
+    public NioHttpInterface withCompression(int minimumRequestSize) {
+        if (minimumRequestSize < 0)
+            throw new IllegalArgumentException("Invalid size threshold");
+        _compressionThreshold = minimumRequestSize;
+        return this;
+    }
+
+    /**
+     * Automatically re-send requests that fail due to transient errors.
+     *
+     * While waiting to retry, a request continues to count against the
+     * parallel request limit. Streaming requests are not retried once
+     * any part of the response has been returned.
+     *
+     * @param policy Retry policy, or null to disable retries (default).
+     * @return this
+     */
+    public NioHttpInterface withRetryPolicy(RetryPolicy policy) {
+        _retryPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Configure socket timeouts. A request that fails to connect, or stops
+     * receiving data, for longer than the timeout fails with an
+     * {@link com.idibon.api.http.HttpTimeoutException}.
+     *
+     * @param connectTimeout Time to establish a connection (including the
+     *        TLS handshake), in milliseconds, or 0 to wait indefinitely
+     *        (default).
+     * @param readTimeout Time to wait for data from the server while a
+     *        response is expected, in milliseconds, or 0 to wait
+     *        indefinitely (default).
+     * @return this
+     */
+    public NioHttpInterface timeouts(int connectTimeout, int readTimeout) {
+        if (connectTimeout < 0 || readTimeout < 0)
+            throw new IllegalArgumentException("Invalid timeout");
+        _connectTimeout = connectTimeout;
+        _readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * Configure a deadline for every request, measured from the time it is
+     * queued, including any time spent waiting for a connection or to be
+     * retried. Requests that miss their deadline fail with an
+     * {@link com.idibon.api.http.HttpTimeoutException}; if the request was
+     * already sent, its connection is closed.
+     *
+     * Individual requests may be given shorter deadlines with
+     * {@link com.idibon.api.http.HttpFuture#getOrCancel}.
+     *
+     * @param millis Request deadline, in milliseconds, or 0 for no
+     *        deadline (default).
+     * @return this
+     */
+    public NioHttpInterface requestTimeout(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Invalid timeout");
+        _requestTimeout = millis;
+        return this;
+    }
+
+    /**
+     * Notify {@link com.idibon.api.http.HttpFuture} callbacks on the
+     * provided executor, rather than the I/O thread that completed the
+     * request. Recommended if callbacks may block or are expensive, since
+     * they otherwise delay I/O for other requests.
+     *
+     * @param executor Runs completion callbacks, or null to run them on
+     *        the I/O threads (default).
+     * @return this
+     */
+    public NioHttpInterface withCompletionExecutor(Executor executor) {
+        _completionExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Report the latency, status, size and retries of every request to a
+     * listener, e.g. {@link com.idibon.api.http.InMemoryMetrics}. The
+     * listener is called on the I/O threads, so it must return quickly.
+     *
+     * @param listener Receives request measurements, or null for none
+     * @return this
+     */
+    public NioHttpInterface withMetrics(MetricsListener listener) {
+        _metrics = listener;
+        return this;
+    }
+
+    /**
+     * Limit the rate at which requests are sent, using a token bucket.
+     *
+     * Independently of this setting, all requests are paused when the
+     * server responds with HTTP 429 or a Retry-After header.
+     *
+     * @param requestsPerSecond Sustained request rate, or 0 for no limit
+     * @param burst Number of requests that may be sent at once after an
+     *        idle period, at least 1.
+     * @return this
+     */
+    public NioHttpInterface withRateLimit(double requestsPerSecond, int burst) {
+        if (requestsPerSecond < 0 || burst < 1)
+            throw new IllegalArgumentException("Invalid rate limit");
+        _rateLimiter.setRate(requestsPerSecond, burst);
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes transferred by this interface, before and
+     * after compression.
+     */
+    public TransferStatistics getTransferStatistics() {
+        return _stats;
+    }
+
+    /**
+     * Disable SSL hostname validation for HTTPS API servers.
+     *
+     * @return this
+     */
+    public NioHttpInterface withoutHostnameValidation() {
+        _hostnameValidation = false;
+        return this;
+    }
+
+    /**
+     * Configure HTTP BASIC Authentication
+     *
+     * @param apiKey Idibon API key.
+     * @return this
+     */
+    public NioHttpInterface withApiKey(String apiKey) {
+        _apiKey = apiKey;
+        return this;
+    }
+
+    /**
+     * Implements {@link com.idibon.api.http.HttpInterface#httpGet(String)}
+     */
+    public HttpFuture<JsonValue> httpGet(String endpoint) {
+        return httpGet(endpoint, null);
+    }
+
+    /**
+     * Implements {@link com.idibon.api.http.HttpInterface#httpGet(String, JsonObject)}
+     */
+    public HttpFuture<JsonValue> httpGet(String endpoint, JsonObject body) {
+        return HttpFuture.wrap(submit("GET", endpoint, body, null,
+            RequestPriority.Normal));
+    }
+
+    /**
+     * Implements {@link com.idibon.api.http.HttpInterface#httpPut(String, JsonObject)}
+     */
+    public HttpFuture<JsonValue> httpPut(String endpoint, JsonObject body) {
+        return HttpFuture.wrap(submit("PUT", endpoint, body, null,
+            RequestPriority.Normal));
+    }
+
+    /**
+     * Implements {@link com.idibon.api.http.HttpInterface#httpPost(String, JsonObject)}
+     */
+    public HttpFuture<JsonValue> httpPost(String endpoint, JsonObject body) {
+        return HttpFuture.wrap(submit("POST", endpoint, body, null,
+            RequestPriority.Normal));
+    }
+
+    /**
+     * Implements {@link com.idibon.api.http.HttpInterface#httpDelete(String, JsonObject)}
+     */
+    public HttpFuture<JsonValue> httpDelete(String endpoint, JsonObject body) {
+        return HttpFuture.wrap(submit("DELETE", endpoint, body, null,
+            RequestPriority.Normal));
+    }
+
+    /**
+     * Implements {@link com.idibon.api.http.StreamingHttpInterface#httpGetStream(String, JsonObject)}
+     *
+     * The response is read from the network only as fast as the caller
+     * consumes the stream.
+     */
+    public HttpStream httpGetStream(String endpoint, JsonObject body) {
+        return dispatchStream(endpoint, body, RequestPriority.Normal);
+    }
+
+    /**
+     * Returns a view of this interface that sends every request at the
+     * specified priority. Requests made directly through this interface
+     * use {@link com.idibon.api.http.RequestPriority#Normal}.
+     *
+     * All views share the connections and limits of this interface, and
+     * shutting down any view shuts down this interface.
+     *
+     * @param priority Priority for requests sent through the view
+     * @return A new HttpInterface
+     */
+    public StreamingHttpInterface atPriority(RequestPriority priority) {
+        if (priority == null) throw new NullPointerException("priority");
+        return new PriorityView(this, _dispatcher, priority);
+    }
+
+    /**
+     * Queues a streaming GET request.
+     */
+    private HttpStream dispatchStream(String endpoint, JsonObject body,
+          RequestPriority priority) {
+        HttpStream stream =
+            new HttpStream(STREAM_CAPACITY, STREAM_STALL_TIMEOUT);
+        submit("GET", endpoint, body, stream, priority);
+        return stream;
+    }
+
+    /**
+     * Implements {@link com.idibon.api.http.HttpInterface#getProperty(Property, int)}
+     */
+    public int getProperty(HttpInterface.Property prop, int defaultValue) {
+        switch (prop) {
+        case ParallelRequestLimit:
+            synchronized (_lock) {
+                return requestLimit();
+            }
+        case QueuedRequests:
+            synchronized (_lock) {
+                return _pending.size();
+            }
+        case ActiveRequests:
+            synchronized (_lock) {
+                return _inFlight.size();
+            }
+        default:
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Implements {@link com.idibon.api.http.HttpInterface#close}
+     */
+    public void close() {
+        shutdown(60000);
+    }
+
+    /**
+     * Implements {@link com.idibon.api.http.HttpInterface#shutdown(long)}
+     *
+     * @param quiesceTime Time to wait for the in-flight requests to complete
+     */
+    public void shutdown(long quiesceTime) {
+        List<Exchange> abandoned;
+        List<Channel> channels;
+        AsynchronousChannelGroup group;
+
+        synchronized (_lock) {
+            _shutdown = true;
+            long deadline = System.currentTimeMillis() + quiesceTime;
+            try {
+                for (long wait = quiesceTime; wait > 0 &&
+                         !(_pending.isEmpty() && _inFlight.isEmpty());
+                       wait = deadline - System.currentTimeMillis()) {
+                    _lock.wait(wait);
+                }
+            } catch (InterruptedException ex) {
+                // ignore
+            }
+
+            abandoned = new ArrayList<>(_pending);
+            abandoned.addAll(_inFlight);
+            _pending.clear();
+            _inFlight.clear();
+            channels = new ArrayList<>(_channels);
+            for (Channel ch : channels) {
+                ch.closed = true;
+                if (ch.evictor != null) ch.evictor.cancel(false);
+            }
+            _channels.clear();
+            group = _group;
+        }
+
+        for (Channel ch : channels)
+            if (ch.conn != null) ch.conn.close();
+
+        for (Exchange ex : abandoned)
+            ex.fail(new IOException("Interface shut down"));
+
+        if (group != null) {
+            try {
+                group.shutdownNow();
+            } catch (IOException _) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Queues a request for dispatch.
+     */
+    private Exchange submit(String method, String endpoint, JsonObject body,
+          HttpStream stream, RequestPriority priority) {
+        Exchange ex = new Exchange(endpoint, stream, priority);
+        try {
+            ex.prepare(method, body);
+        } catch (RuntimeException err) {
+            // report configuration errors through the future
+            ex.fail(err);
+            return ex;
+        }
+
+        final Exchange expiring = ex;
+        long timeout = _requestTimeout;
+        if (timeout > 0) {
+            ex._deadline = TIMER.schedule(new Runnable() {
+                public void run() {
+                    terminate(expiring, new HttpTimeoutException(
+                        "Request deadline exceeded"));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized (_lock) {
+            if (_shutdown) {
+                if (ex._deadline != null) ex._deadline.cancel(false);
+                throw new RejectedExecutionException("Already shut down");
+            }
+            _pending.add(ex);
+        }
+        pump();
+        return ex;
+    }
+
+    /**
+     * Fails a request that was cancelled or missed its deadline. Queued
+     * requests are simply removed; if the request was already sent, its
+     * connection is closed, since the response can't be skipped.
+     */
+    private void terminate(Exchange ex, IOException error) {
+        Channel carrier = null;
+        synchronized (_lock) {
+            if (!_pending.remove(ex)) {
+                for (Channel ch : _channels) {
+                    if (ch.unsent.remove(ex)) break;
+                    if (ch.unanswered.contains(ex)) {
+                        carrier = ch;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // fail the request first, so that it isn't retried or re-sent
+        ex.fail(error);
+        if (carrier != null) {
+            /* requests pipelined behind it lose their connection, but
+             * weren't cancelled themselves */
+            abort(carrier, new EOFException("Connection closed to " +
+                  "abandon another request"), false, true);
+        } else {
+            finish(ex, null, error);
+        }
+    }
+
+    /**
+     * Assigns pending requests to connections until the parallel request
+     * limit is reached, or every connection is fully loaded.
+     */
+    private void pump() {
+        while (true) {
+            Channel channel;
+            boolean connect = false, write = false;
+            synchronized (_lock) {
+                if (_inFlight.size() >= requestLimit() || _pending.isEmpty())
+                    return;
+
+                long wait = _rateLimiter.acquire();
+                if (wait > 0) {
+                    schedulePump(wait);
+                    return;
+                }
+
+                channel = selectChannel(
+                    RetryPolicy.isIdempotent(_pending.peek()._method));
+                if (channel == null) {
+                    _rateLimiter.refund();
+                    return;
+                }
+
+                Exchange next = _pending.poll();
+                next._dispatched = System.nanoTime();
+                if (next._queueTime < 0)
+                    next._queueTime = next._dispatched - next._created;
+                _inFlight.add(next);
+                channel.unsent.addLast(next);
+                channel.assigned++;
+                if (channel.evictor != null) {
+                    channel.evictor.cancel(false);
+                    channel.evictor = null;
+                }
+
+                if (channel.conn == null && !channel.connecting) {
+                    channel.connecting = true;
+                    connect = true;
+                } else if (channel.conn != null && !channel.writing) {
+                    channel.writing = true;
+                    write = true;
+                }
+            }
+            if (connect) connect(channel);
+            else if (write) writeNext(channel);
+        }
+    }
+
+    /**
+     * Runs pump again once the rate limiter allows more requests. Must be
+     * called while holding _lock.
+     *
+     * @param wait Time to wait, in nanoseconds
+     */
+    private void schedulePump(long wait) {
+        if (_pumpScheduled) return;
+        _pumpScheduled = true;
+        TIMER.schedule(new Runnable() {
+            public void run() {
+                synchronized (_lock) {
+                    _pumpScheduled = false;
+                }
+                pump();
+            }
+        }, wait, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the connection that should carry the next request, or null
+     * if every connection already has the maximum number of requests.
+     *
+     * Idle connections are preferred, followed by opening new connections
+     * (up to the number needed to carry the parallel request limit), and
+     * finally pipelining behind other requests on the least-loaded
+     * connection. Non-idempotent requests are never pipelined: they are
+     * only sent on idle connections (opening extra connections up to the
+     * parallel request limit if needed), and nothing is queued behind
+     * them. Must be called while holding _lock.
+     *
+     * @param idempotent True if the request may be pipelined
+     */
+    private Channel selectChannel(boolean idempotent) {
+        Channel best = null;
+        for (Iterator<Channel> it = _channels.iterator(); it.hasNext(); ) {
+            Channel ch = it.next();
+            if (ch.conn != null && !ch.conn.isOpen() && ch.load() == 0) {
+                // closed by the server while idle
+                ch.closed = true;
+                it.remove();
+                continue;
+            }
+            if (ch.load() >= _pipelineDepth ||
+                  ch.assigned >= _maxKeepAliveRequests)
+                continue;
+            if (ch.load() > 0 && (!idempotent || !ch.isPipelinable()))
+                continue;
+            if (best == null || ch.load() < best.load()) best = ch;
+        }
+
+        int maxChannels = idempotent ?
+            (requestLimit() + _pipelineDepth - 1) / _pipelineDepth :
+            requestLimit();
+        if ((best == null || best.load() > 0) && _channels.size() < maxChannels) {
+            best = new Channel();
+            _channels.add(best);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the current maximum number of in-flight requests. Must be
+     * called while holding _lock.
+     */
+    private int requestLimit() {
+        return _limiter == null ? _connectionLimit : _limiter.getLimit();
+    }
+
+    /**
+     * Opens the network connection for a new channel, then starts writing
+     * the requests assigned to it.
+     */
+    private void connect(final Channel ch) {
+        int timeout = _connectTimeout;
+        if (timeout > 0) {
+            TIMER.schedule(new Runnable() {
+                public void run() {
+                    synchronized (_lock) {
+                        if (!ch.connecting || ch.closed) return;
+                    }
+                    abort(ch, new HttpTimeoutException("Connect timed out"),
+                          false, false);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            NioConnection.open(group(), serverSocketAddress(), sslContext(),
+                               _hostnameValidation,
+              new CompletionHandler<NioConnection, Void>() {
+                public void completed(NioConnection conn, Void a) {
+                    boolean write;
+                    conn.setReadTimeout(_readTimeout);
+                    synchronized (_lock) {
+                        ch.conn = conn;
+                        ch.connecting = false;
+                        ch.fresh = true;
+                        write = !ch.closed && !ch.unsent.isEmpty();
+                        ch.writing = write;
+                    }
+                    if (write) writeNext(ch);
+                    else if (ch.closed) conn.close();
+                }
+                public void failed(Throwable t, Void a) {
+                    abort(ch, t, false, false);
+                }
+            });
+        } catch (IOException | RuntimeException err) {
+            abort(ch, err, false, false);
+        }
+    }
+
+    /**
+     * Writes the next unsent request on the channel, and starts reading
+     * responses if the channel is not already doing so. Requests are
+     * written one at a time, in the order they were assigned.
+     */
+    private void writeNext(final Channel ch) {
+        final Exchange ex;
+        synchronized (_lock) {
+            ex = ch.unsent.peekFirst();
+            if (ex == null || ch.closed) {
+                ch.writing = false;
+                return;
+            }
+        }
+
+        // serialize the request outside of the lock
+        ByteBuffer[] request;
+        try {
+            request = ex.request();
+        } catch (RuntimeException err) {
+            boolean removed;
+            synchronized (_lock) {
+                removed = ch.unsent.remove(ex);
+            }
+            if (removed) finish(ex, null, err);
+            writeNext(ch);
+            return;
+        }
+
+        final boolean startReading;
+        boolean skipped = false;
+        synchronized (_lock) {
+            // the channel may have been aborted while encoding
+            if (ch.closed) {
+                ch.writing = false;
+                return;
+            }
+            if (ch.unsent.peekFirst() != ex) {
+                /* the request was cancelled (or missed its deadline) while
+                 * encoding; requests behind it still need to be written */
+                skipped = true;
+                startReading = false;
+            } else {
+                ch.unsent.removeFirst();
+                ch.unanswered.addLast(ex);
+                startReading = !ch.reading;
+                ch.reading = true;
+
+                // the first request on a new connection waited for it to open
+                if (ch.fresh) {
+                    ex._phases[Phase.Connect.ordinal()] = ch.conn._connectTime;
+                    ex._phases[Phase.Handshake.ordinal()] =
+                        ch.conn._handshakeTime;
+                    ch.fresh = false;
+                } else {
+                    ex._phases[Phase.Connect.ordinal()] = 0;
+                }
+            }
+        }
+        if (skipped) {
+            writeNext(ch);
+            return;
+        }
+
+        final long sending = System.nanoTime();
+        ch.conn.write(request, new CompletionHandler<Void, Void>() {
+            public void completed(Void v, Void a) {
+                ex._sent = System.nanoTime();
+                ex._phases[Phase.Send.ordinal()] = ex._sent - sending;
+                if (startReading) {
+                    receive(ch, new ResponseParser(),
+                            ByteBuffer.allocate(READ_BUFFER_SIZE));
+                }
+                writeNext(ch);
+            }
+            public void failed(Throwable t, Void a) {
+                abort(ch, t, false, lostWhileIdle(ch, t));
+            }
+        });
+    }
+
+    /**
+     * Reads responses from the channel, completing each request in the
+     * order they were sent, until no more responses are expected.
+     */
+    private void receive(final Channel ch, final ResponseParser parser,
+          final ByteBuffer buffer) {
+
+        ch.conn.read(buffer, new CompletionHandler<Integer, Void>() {
+            public void completed(Integer count, Void a) {
+                ResponseParser current = parser;
+                try {
+                    if (count < 0) {
+                        boolean complete = current.finish();
+                        if (complete) deliver(ch, current, true);
+                        EOFException eof =
+                            new EOFException("Connection closed by server");
+                        abort(ch, eof, !complete && current.hasStarted(),
+                              lostWhileIdle(ch, eof));
+                        return;
+                    }
+
+                    buffer.flip();
+                    while (true) {
+                        Exchange head = oldestUnanswered(ch);
+                        boolean done = current.feed(buffer);
+                        if (head != null && current.hasStarted())
+                            head.responding();
+                        if (head != null) maybeStream(head, current);
+                        if (!done) break;
+
+                        if (!deliver(ch, current, false)) {
+                            /* nothing more is expected on this connection
+                             * for now, so any left-over data is garbage */
+                            if (buffer.hasRemaining()) {
+                                abort(ch, new IOException("Unexpected data " +
+                                    "from server"), false, false);
+                            }
+                            return;
+                        }
+                        current = new ResponseParser();
+                    }
+                    buffer.clear();
+
+                    /* if the response is being streamed, wait for the
+                     * consumer to catch up before reading more */
+                    final ResponseParser next = current;
+                    Exchange head = oldestUnanswered(ch);
+                    final HttpStream stream = head == null ? null : head._stream;
+                    if (stream != null) {
+                        boolean ready = stream.whenReady(new Runnable() {
+                            public void run() {
+                                receive(ch, next, buffer);
+                            }
+                        });
+                        if (!ready) {
+                            abandonIfStalled(stream);
+                            return;
+                        }
+                        if (stream.isClosed()) {
+                            abort(ch, new IOException("Stream closed"),
+                                  true, true);
+                            return;
+                        }
+                    }
+                    receive(ch, next, buffer);
+                } catch (IOException | RuntimeException err) {
+                    abort(ch, err, current.hasStarted(), false);
+                }
+            }
+            public void failed(Throwable t, Void a) {
+                /* a read timeout is final for the request that timed out;
+                 * the server may still be processing it */
+                abort(ch, asIOException(t), parser.hasStarted(),
+                      lostWhileIdle(ch, t));
+            }
+        });
+    }
+
+    /**
+     * Returns the request that the next response on the channel answers.
+     */
+    private Exchange oldestUnanswered(Channel ch) {
+        synchronized (_lock) {
+            return ch.unanswered.peekFirst();
+        }
+    }
+
+    /**
+     * Starts streaming the response body to the request's HttpStream, once
+     * the headers show a successful multipart response. Other responses
+     * (including compressed responses) are buffered and added to the
+     * stream when complete.
+     */
+    private void maybeStream(Exchange ex, ResponseParser parser)
+          throws IOException {
+        if (ex._stream == null || ex._splitter != null || !parser.hasHeaders())
+            return;
+
+        int status = parser.getStatus();
+        String boundary = boundaryOf(parser.getHeader("Content-Type"));
+        if (status < 200 || status >= 300 || boundary == null ||
+              parser.getHeader("Content-Encoding") != null)
+            return;
+
+        final HttpStream stream = ex._stream;
+        ex._splitter = new ChunkSplitter(boundary, new ChunkSplitter.Listener() {
+            public void chunk(JsonValue value) {
+                stream.add(value);
+            }
+        });
+        TransferStatistics transfer = ex._transfer;
+        parser.streamBodyTo(new CountingOutputStream(
+            new CountingOutputStream(ex._splitter, _stats._responseBytes,
+                                     transfer._responseBytes),
+            _stats._responseBytesReceived, transfer._responseBytesReceived));
+    }
+
+    /**
+     * Closes a stream if its consumer is still not keeping up after the
+     * stall timeout, which will abort the response.
+     */
+    private void abandonIfStalled(final HttpStream stream) {
+        TIMER.schedule(new Runnable() {
+            public void run() {
+                if (stream.isStalled()) stream.close();
+            }
+        }, stream.getStallTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Completes the oldest unanswered request on the channel with the
+     * parsed response.
+     *
+     * @param closing True if the connection is known to be closed.
+     * @return true if the channel should continue reading responses.
+     */
+    private boolean deliver(Channel ch, ResponseParser parser,
+          boolean closing) {
+        Exchange ex;
+        synchronized (_lock) {
+            ex = ch.unanswered.pollFirst();
+            if (ex != null) ch.answered++;
+        }
+        if (ex == null) return false;
+
+        JsonValue result = null;
+        Throwable error = null;
+        long decoding = System.nanoTime();
+        if (ex._responding) {
+            ex._phases[Phase.Download.ordinal()] =
+                decoding - ex._responseStarted;
+        }
+        try {
+            result = decode(ex, parser);
+        } catch (IOException | RuntimeException err) {
+            error = err;
+        }
+        ex._phases[Phase.Parse.ordinal()] = System.nanoTime() - decoding;
+
+        boolean more = false;
+        if (!closing && parser.isKeepAlive()) {
+            boolean retire = false;
+            synchronized (_lock) {
+                more = !ch.unanswered.isEmpty();
+                ch.reading = more;
+                if (ch.load() == 0) retire = !release(ch);
+            }
+            if (retire) ch.conn.close();
+        } else if (!closing) {
+            // any requests pipelined behind this one will be re-sent
+            abort(ch, new EOFException("Connection closed by server"),
+                  false, true);
+        }
+
+        finish(ex, result, error);
+        return more;
+    }
+
+    /**
+     * Returns a channel with no outstanding requests to the idle pool, and
+     * schedules it to be closed if it remains idle. Must be called while
+     * holding _lock.
+     *
+     * @return false if the channel was retired instead, and the caller
+     *         must close the connection.
+     */
+    private boolean release(final Channel ch) {
+        if (ch.closed || _shutdown) return true;
+
+        int idle = 0;
+        for (Channel other : _channels)
+            if (other != ch && other.conn != null && other.load() == 0) idle++;
+
+        if (idle >= _maxIdleConnections ||
+              ch.assigned >= _maxKeepAliveRequests) {
+            ch.closed = true;
+            _channels.remove(ch);
+            return false;
+        }
+
+        ch.evictor = TIMER.schedule(new Runnable() {
+            public void run() {
+                synchronized (_lock) {
+                    if (ch.closed || ch.load() > 0) return;
+                    ch.closed = true;
+                    _channels.remove(ch);
+                }
+                ch.conn.close();
+            }
+        }, _idleTimeout, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Closes a channel after an error, or after the connection was closed
+     * deliberately. Requests on the channel are failed with the error,
+     * leaving any retries to the RetryPolicy, unless <tt>resend</tt> is
+     * true: then requests that have not received any part of a response
+     * are re-sent on another connection, once, if they were never
+     * written or are idempotent.
+     *
+     * @param headStarted True if the oldest unanswered request has
+     *        received a partial response.
+     * @param resend True if the remaining requests were not at fault and
+     *        may be re-sent, see {@link #lostWhileIdle}.
+     */
+    private void abort(Channel ch, Throwable error, boolean headStarted,
+          boolean resend) {
+        List<Exchange> failed = new ArrayList<>();
+        synchronized (_lock) {
+            if (ch.closed && ch.unanswered.isEmpty() && ch.unsent.isEmpty())
+                return;
+            ch.closed = true;
+            _channels.remove(ch);
+
+            int written = ch.unanswered.size();
+            List<Exchange> orphans = new ArrayList<>(ch.unanswered);
+            orphans.addAll(ch.unsent);
+            ch.unanswered.clear();
+            ch.unsent.clear();
+
+            for (int i = orphans.size() - 1; i >= 0; i--) {
+                Exchange ex = orphans.get(i);
+                if ((i == 0 && headStarted) || !resend || ex._resent ||
+                      ex.isDone() || _shutdown || (i < written &&
+                      !RetryPolicy.isIdempotent(ex._method))) {
+                    failed.add(ex);
+                } else {
+                    ex._resent = true;
+                    _inFlight.remove(ex);
+                    _pending.add(ex);
+                }
+            }
+        }
+
+        if (ch.conn != null) ch.conn.close();
+        for (Exchange ex : failed) finish(ex, null, error);
+        pump();
+    }
+
+    /**
+     * Returns true if a failure is a keep-alive connection being closed
+     * or reset by the server (typically because it was idle too long)
+     * after answering earlier requests. Requests that fail this way are
+     * safe to re-send, if they haven't received a response. Timeouts and
+     * failures on new connections are never re-sent quietly.
+     */
+    private boolean lostWhileIdle(Channel ch, Throwable error) {
+        if (error instanceof InterruptedByTimeoutException ||
+              error instanceof SocketTimeoutException)
+            return false;
+        boolean lost = error instanceof EOFException ||
+            error instanceof ClosedChannelException ||
+            (error instanceof IOException && error.getMessage() != null &&
+             (error.getMessage().contains("reset") ||
+              error.getMessage().contains("Broken pipe")));
+        if (!lost) return false;
+        synchronized (_lock) {
+            return ch.answered > 0;
+        }
+    }
+
+    /**
+     * Converts a complete HTTP response into the JSON result, or throws
+     * an exception for HTTP protocol errors.
+     */
+    private JsonValue decode(Exchange ex, ResponseParser parser)
+          throws IOException {
+
+        ex._status = parser.getStatus();
+        _rateLimiter.onResponse(parser.getStatus(),
+            parser.getHeader("Retry-After"),
+            parser.getHeader("X-RateLimit-Remaining"),
+            parser.getHeader("X-RateLimit-Reset"));
+
+        if (ex._splitter != null) {
+            // the body was already streamed to the caller
+            ex._splitter.finish();
+            return null;
+        }
+
+        String contentType = parser.getHeader("Content-Type");
+        int status = parser.getStatus();
+        InputStream body = decodeContent(parser.getBody().toInputStream(),
+            parser.getHeader("Content-Encoding"), _stats, ex._transfer);
+
+        if (status < 200 || status >= 300) {
+            JsonObject obj = null;
+            if (contentType != null &&
+                  contentType.startsWith("application/json")) {
+                try {
+                    obj = (JsonObject)readJson(body);
+                } catch (Exception _) { }
+            }
+            throw HttpSupport.httpException(ex.url(), status,
+                parser.getReason(), obj, null, parser.getHeader("Retry-After"));
+        }
+
+        String boundary = boundaryOf(contentType);
+        if (boundary != null) return handleChunkedInput(body, boundary);
+        return readJson(body);
+    }
+
+    /**
+     * Completes a request and dispatches more work.
+     */
+    private void finish(Exchange ex, JsonValue result, Throwable error) {
+        adapt(ex, error);
+        if (error != null && retry(ex, error)) return;
+
+        if (error != null) ex.fail(error);
+        else ex.complete(result);
+
+        synchronized (_lock) {
+            _inFlight.remove(ex);
+            _lock.notifyAll();
+        }
+        pump();
+    }
+
+    /**
+     * Updates the adaptive limit (if enabled) with the outcome of one
+     * attempt at a request. The round-trip time of streaming requests
+     * depends on the consumer, so it isn't measured.
+     */
+    private void adapt(Exchange ex, Throwable error) {
+        AdaptiveLimit limiter;
+        int inFlight;
+        synchronized (_lock) {
+            limiter = _limiter;
+            inFlight = _inFlight.size();
+        }
+        if (limiter == null) return;
+
+        if (error instanceof IOException)
+            limiter.onFailure((IOException)error);
+        else if (error == null && ex._stream == null)
+            limiter.onSuccess(requestClass(ex._method, ex._endpoint,
+                              ex._transfer._requestBytesSent.get()),
+                              System.nanoTime() - ex._dispatched, inFlight);
+    }
+
+    /**
+     * Schedules a failed request to be re-sent, if the retry policy allows
+     * it. The request remains in flight while it waits.
+     *
+     * @return true if the request will be retried.
+     */
+    private boolean retry(final Exchange ex, Throwable error) {
+        RetryPolicy policy = _retryPolicy;
+        if (policy == null || ex._splitter != null || ex.isDone() ||
+              !(error instanceof IOException) ||
+              !policy.shouldRetry(ex._method, ex._attempts, (IOException)error))
+            return false;
+
+        synchronized (_lock) {
+            if (_shutdown) return false;
+        }
+
+        long delay = policy.delay(ex._attempts);
+        ex._attempts++;
+        _stats._retries.incrementAndGet();
+        TIMER.schedule(new Runnable() {
+            public void run() {
+                synchronized (_lock) {
+                    // the request may have been failed by shutdown
+                    if (ex.isDone() || !_inFlight.remove(ex)) return;
+                    _pending.add(ex);
+                }
+                pump();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Returns the channel group used for I/O, creating it if needed.
+     */
+    private AsynchronousChannelGroup group() throws IOException {
+        synchronized (_lock) {
+            if (_group == null) {
+                _group = AsynchronousChannelGroup.withFixedThreadPool(
+                    _ioThreads, IO_THREAD_FACTORY);
+            }
+            return _group;
+        }
+    }
+
+    /**
+     * Returns the address of the API server.
+     */
+    private InetSocketAddress serverSocketAddress() {
+        int port = _serverAddress.getPort();
+        if (port == -1) port = _serverAddress.getDefaultPort();
+        return new InetSocketAddress(_serverAddress.getHost(), port);
+    }
+
+    /**
+     * Returns the SSLContext for HTTPS servers, or null for HTTP servers.
+     */
+    private SSLContext sslContext() throws IOException {
+        if (!_serverAddress.getProtocol().equals("https")) return null;
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("TLS not available", ex);
+        }
+    }
+
+    /**
+     * Serializes the request line, headers and body.
+     *
+     * @return The request head and the body (if any), to be written in
+     *         order.
+     */
+    private ByteBuffer[] encodeRequest(String method, String endpoint,
+          JsonObject json) {
+        int threshold = _compressionThreshold;
+        ByteBuffer body = null;
+        boolean compressed = false;
+        if (json != null) {
+            ExtendedByteArrayOutputStream bytes =
+                writeJson(json, new ExtendedByteArrayOutputStream());
+            _stats._requestBytes.addAndGet(bytes.size());
+            if (threshold >= 0 && bytes.size() >= threshold) {
+                bytes = gzip(bytes);
+                compressed = true;
+            }
+            _stats._requestBytesSent.addAndGet(bytes.size());
+            body = bytes.toByteBuffer();
+        }
+
+        /* send the same requests as JdkHttpInterface, which tunnels GET and
+         * DELETE requests that have bodies through POST */
+        String wireMethod = method;
+        if (body != null && !method.equals("PUT") && !method.equals("POST"))
+            wireMethod = "POST";
+
+        StringBuilder head = new StringBuilder(256);
+        head.append(wireMethod).append(' ').append(endpoint)
+            .append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(hostHeader(_serverAddress)).append("\r\n");
+        head.append("User-Agent: ").append(SDK_USER_AGENT).append("\r\n");
+        if (_apiKey != null) {
+            head.append("Authorization: ")
+                .append(basicAuthorization(_apiKey)).append("\r\n");
+        }
+        if (threshold >= 0)
+            head.append("Accept-Encoding: ").append(ACCEPT_ENCODING)
+                .append("\r\n");
+        if (body != null) {
+            head.append("X-HTTP-Method-Override: ").append(method).append("\r\n");
+            head.append("Content-Type: application/json\r\n");
+            if (compressed) head.append("Content-Encoding: gzip\r\n");
+            head.append("Content-Length: ").append(body.remaining())
+                .append("\r\n");
+        }
+        head.append("\r\n");
+
+        ByteBuffer headBytes = ByteBuffer.wrap(head.toString().getBytes(UTF8));
+        if (body == null) return new ByteBuffer[] { headBytes };
+        return new ByteBuffer[] { headBytes, body };
+    }
+
+    /// Scheme, hostname and port of the API server
+    private URL _serverAddress;
+
+    /// Perform SSL hostname validation when true and scheme is https
+    private volatile boolean _hostnameValidation = true;
+
+    /// The API Key used for authentication, or null if no auth needed.
+    private volatile String _apiKey = null;
+
+    /// Minimum request body size to compress, or -1 if disabled
+    private volatile int _compressionThreshold = -1;
+
+    /// Socket timeouts, in milliseconds, or 0 for no timeout
+    private volatile int _connectTimeout = 0;
+    private volatile int _readTimeout = 0;
+
+    /// Deadline for each request, in milliseconds, or 0 for none
+    private volatile long _requestTimeout = 0;
+
+    /// Retries failed requests, or null to report every failure
+    private volatile RetryPolicy _retryPolicy = null;
+
+    /// Notifies completion callbacks, or null to use the I/O threads
+    private volatile Executor _completionExecutor = null;
+
+    /// Receives request measurements, or null
+    private volatile MetricsListener _metrics = null;
+
+    /// Paces requests and pauses them when the server is overloaded
+    private final RateLimiter _rateLimiter = new RateLimiter();
+
+    /// Bytes transferred by this interface
+    private final TransferStatistics _stats = new TransferStatistics();
+
+    /// Protects all of the dispatch state below
+    private final Object _lock = new Object();
+
+    /* Requests waiting for a free connection slot, in priority order.
+     * Re-sent requests keep their original position. */
+    private final Queue<Exchange> _pending =
+        new PriorityQueue<Exchange>(11, DispatchOrder.ORDERED);
+
+    /// Queues requests for the views returned by atPriority
+    private final PriorityView.Dispatcher _dispatcher =
+      new PriorityView.Dispatcher() {
+        public HttpFuture<JsonValue> dispatch(String method, String endpoint,
+              JsonObject body, RequestPriority priority) {
+            return HttpFuture.wrap(submit(method, endpoint, body, null,
+                                          priority));
+        }
+
+        public HttpStream dispatchStream(String endpoint, JsonObject body,
+              RequestPriority priority) {
+            return NioHttpInterface.this.dispatchStream(endpoint, body,
+                                                        priority);
+        }
+      };
+
+    /// Requests that have been dispatched but not completed
+    private final Set<Exchange> _inFlight = new HashSet<>();
+
+    /// Open (or opening) connections to the server
+    private final List<Channel> _channels = new ArrayList<>();
+
+    /// Maximum number of simultaneous in-flight requests
+    private int _connectionLimit = DEFAULT_CONNECTION_LIMIT;
+
+    /// Adjusts the request limit automatically, or null for a fixed limit
+    private AdaptiveLimit _limiter;
+
+    /// Maximum number of in-flight requests sharing one connection
+    private int _pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+
+    /// Time before an idle connection is closed, in milliseconds
+    private long _idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /// Maximum number of idle connections kept open
+    private int _maxIdleConnections = Integer.MAX_VALUE;
+
+    /// Maximum number of requests sent over one connection
+    private int _maxKeepAliveRequests = Integer.MAX_VALUE;
+
+    /// Number of I/O threads created when the channel group starts
+    private int _ioThreads = DEFAULT_IO_THREADS;
+
+    /// Services all socket I/O; lazily started by the first request
+    private AsynchronousChannelGroup _group;
+
+    /// True once shutdown has started; new requests are rejected
+    private boolean _shutdown;
+
+    /// True while a rate-limited pump is scheduled
+    private boolean _pumpScheduled;
+
+    /* use up to 10 parallel connections by default, the same as the
+     * JdkHttpInterface. */
+    static final int DEFAULT_CONNECTION_LIMIT = 10;
+
+    /* pipelining is disabled by default, since a slow response delays
+     * every response queued behind it on the same connection */
+    static final int DEFAULT_PIPELINE_DEPTH = 1;
+
+    /* close connections after 20 seconds of inactivity, the same time
+     * JdkHttpInterface keeps idle worker threads alive */
+    static final long DEFAULT_IDLE_TIMEOUT = 20000;
+
+    /* a couple of threads are sufficient to saturate the network for all
+     * but the most extreme workloads, since no thread ever blocks */
+    static final int DEFAULT_IO_THREADS = 2;
+
+    /// Size of the per-request network read buffer
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    private static final ThreadFactory IO_THREAD_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "idibon-nio-" + THREAD_ID.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+    /**
+     * A single HTTP request and its pending result.
+     */
+    private class Exchange extends ListenableTask<JsonValue>
+          implements DispatchOrder.Ordered {
+        Exchange(String endpoint, HttpStream stream, RequestPriority priority) {
+            _endpoint = endpoint;
+            _stream = stream;
+            _order = new DispatchOrder(priority);
+        }
+
+        public DispatchOrder order() {
+            return _order;
+        }
+
+        /**
+         * Validates the request. The body is not serialized until the
+         * request is written to a connection, so queued requests don't
+         * hold a second copy of their payload.
+         */
+        void prepare(String method, JsonObject body) {
+            if (_endpoint == null)
+                throw new NullPointerException("endpoint");
+
+            if (_serverAddress == null)
+                throw new IllegalStateException("server address not configured");
+
+            if (_endpoint.isEmpty() || _endpoint.charAt(0) != '/')
+                throw new IllegalArgumentException("endpoint is not a valid path");
+
+            _method = method;
+            _body = body;
+        }
+
+        /**
+         * Returns a fresh view of the serialized request, for each attempt.
+         * The request is serialized on the first call.
+         */
+        ByteBuffer[] request() {
+            if (_request == null) {
+                _request = encodeRequest(_method, _endpoint, _body);
+                _body = null;
+            }
+            ByteBuffer[] view = new ByteBuffer[_request.length];
+            for (int i = 0; i < view.length; i++)
+                view[i] = _request[i].duplicate();
+
+            // measure each attempt separately
+            TransferStatistics transfer = new TransferStatistics();
+            if (view.length > 1)
+                transfer._requestBytesSent.set(view[1].remaining());
+            _transfer = transfer;
+            _status = -1;
+            _phases = newPhases();
+            _responding = false;
+            return view;
+        }
+
+        /**
+         * Returns the full URL of the request.
+         */
+        URL url() {
+            try {
+                return new URL(_serverAddress.getProtocol(),
+                    _serverAddress.getHost(), _serverAddress.getPort(),
+                    _endpoint);
+            } catch (MalformedURLException ex) {
+                return _serverAddress;
+            }
+        }
+
+        /**
+         * Records the time to the first byte of the response, once.
+         */
+        void responding() {
+            if (_responding) return;
+            _responding = true;
+            _responseStarted = System.nanoTime();
+            // the write completion may not have been handled yet
+            if (_phases[Phase.Send.ordinal()] >= 0)
+                _phases[Phase.Wait.ordinal()] = _responseStarted - _sent;
+        }
+
+        /**
+         * Completes the request. For streaming requests, any part of the
+         * response that was not already streamed is added to the stream.
+         */
+        void complete(JsonValue value) {
+            if (_stream != null) {
+                if (value != null) addElements(_stream, value);
+                _stream.complete();
+                value = JsonValue.NULL;
+            }
+            set(value);
+        }
+
+        void fail(Throwable error) {
+            if (_stream != null) _stream.fail(asIOException(error));
+            setException(error);
+        }
+
+        /**
+         * Cancels the request, closing its connection if it was already
+         * sent.
+         */
+        @Override public boolean cancel(boolean mayInterrupt) {
+            if (!super.cancel(mayInterrupt)) return false;
+            terminate(this, new IOException("Operation cancelled"));
+            return true;
+        }
+
+        @Override protected Executor listenerExecutor() {
+            return _completionExecutor;
+        }
+
+        @Override protected void done() {
+            ScheduledFuture<?> deadline = _deadline;
+            if (deadline != null) deadline.cancel(false);
+            if (_stream != null && isCancelled())
+                _stream.fail(new IOException("Operation cancelled"));
+
+            MetricsListener metrics = _metrics;
+            if (metrics != null) {
+                long latency = System.nanoTime() - _created;
+                TransferStatistics transfer = _transfer;
+                report(metrics, new RequestMetrics(_method, _endpoint,
+                    _status, failureOf(this),
+                    _queueTime < 0 ? latency : _queueTime, latency,
+                    transfer.getRequestBytesSent(),
+                    transfer.getResponseBytesReceived(), _attempts - 1,
+                    _startTime, _phases));
+            }
+            super.done();
+        }
+
+        private final String _endpoint;
+        private final DispatchOrder _order;
+        private String _method;
+        private JsonObject _body;
+        private ByteBuffer[] _request;
+
+        /// True if the request was re-sent after a connection was lost
+        boolean _resent;
+
+        /// Number of times the request has been attempted
+        int _attempts = 1;
+
+        /// Time the current attempt was assigned to a connection
+        long _dispatched;
+
+        /// Receives the elements of a streaming response, or null
+        final HttpStream _stream;
+
+        /// Splits the body of a streaming multipart response into chunks
+        ChunkSplitter _splitter;
+
+        /// Fails the request once its deadline passes, or null
+        volatile ScheduledFuture<?> _deadline;
+
+        /// Time the request was submitted
+        final long _created = System.nanoTime();
+        final long _startTime = System.currentTimeMillis();
+
+        /// Time spent waiting for a connection, or -1 until dispatched
+        volatile long _queueTime = -1;
+
+        /// HTTP status of the current attempt, or -1 if not yet received
+        volatile int _status = -1;
+
+        /// Bytes transferred by the current attempt
+        volatile TransferStatistics _transfer = new TransferStatistics();
+
+        /* time spent in each phase of the current attempt, updated by the
+         * I/O threads in the order that the phases occur */
+        volatile long[] _phases = newPhases();
+
+        /// Times the current attempt was written, and its response began
+        long _sent, _responseStarted;
+
+        /// True once the response to the current attempt began
+        boolean _responding;
+    }
+
+    /**
+     * A connection to the server and the requests assigned to it. All
+     * fields are protected by _lock.
+     */
+    private static class Channel {
+        /**
+         * Returns the number of requests assigned to the connection that
+         * have not been answered.
+         */
+        int load() {
+            return unsent.size() + unanswered.size();
+        }
+
+        /**
+         * Returns true if more requests may be pipelined behind the ones
+         * assigned to this connection, i.e., they are all idempotent.
+         */
+        boolean isPipelinable() {
+            for (Exchange ex : unsent)
+                if (!RetryPolicy.isIdempotent(ex._method)) return false;
+            for (Exchange ex : unanswered)
+                if (!RetryPolicy.isIdempotent(ex._method)) return false;
+            return true;
+        }
+
+        /// The network connection; null until the connection is opened
+        NioConnection conn;
+
+        /// Total number of requests ever assigned to this connection
+        int assigned;
+
+        /// Number of responses received on this connection
+        int answered;
+
+        /// Closes the connection once it has been idle too long
+        ScheduledFuture<?> evictor;
+
+        /// Requests assigned to this connection but not yet written
+        final Deque<Exchange> unsent = new ArrayDeque<>();
+
+        /// Requests written (or being written), in order, awaiting responses
+        final Deque<Exchange> unanswered = new ArrayDeque<>();
+
+        boolean connecting, writing, reading;
+
+        /// True until a request is written on a newly opened connection
+        boolean fresh;
+
+        /// True once the connection is unusable
+        boolean closed;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import javax.json.*;
+
+import com.idibon.api.http.*;
+
+/**
+ * An HttpInterface that sends every request through another interface at
+ * a fixed priority. Returned by the atPriority methods of the built-in
+ * interfaces.
+ */
+final class PriorityView implements StreamingHttpInterface {
+
+    /**
+     * Queues requests on the underlying interface.
+     */
+    interface Dispatcher {
+        HttpFuture<JsonValue> dispatch(String method, String endpoint,
+            JsonObject body, RequestPriority priority);
+
+        HttpStream dispatchStream(String endpoint, JsonObject body,
+            RequestPriority priority);
+    }
+
+    /**
+     * @param base The underlying interface
+     * @param dispatcher Queues requests on the underlying interface
+     * @param priority Priority of every request sent through this view
+     */
+    PriorityView(HttpInterface base, Dispatcher dispatcher,
+          RequestPriority priority) {
+        _base = base;
+        _dispatcher = dispatcher;
+        _priority = priority;
+    }
+
+    public HttpFuture<JsonValue> httpGet(String endpoint) {
+        return httpGet(endpoint, null);
+    }
+
+    public HttpFuture<JsonValue> httpGet(String endpoint, JsonObject body) {
+        return _dispatcher.dispatch("GET", endpoint, body, _priority);
+    }
+
+    public HttpFuture<JsonValue> httpPut(String endpoint, JsonObject body) {
+        return _dispatcher.dispatch("PUT", endpoint, body, _priority);
+    }
+
+    public HttpFuture<JsonValue> httpPost(String endpoint, JsonObject body) {
+        return _dispatcher.dispatch("POST", endpoint, body, _priority);
+    }
+
+    public HttpFuture<JsonValue> httpDelete(String endpoint, JsonObject body) {
+        return _dispatcher.dispatch("DELETE", endpoint, body, _priority);
+    }
+
+    public HttpStream httpGetStream(String endpoint, JsonObject body) {
+        return _dispatcher.dispatchStream(endpoint, body, _priority);
+    }
+
+    public int getProperty(HttpInterface.Property prop, int defaultValue) {
+        return _base.getProperty(prop, defaultValue);
+    }
+
+    /**
+     * Shuts down the underlying interface, and every other view of it.
+     */
+    public void close() {
+        _base.close();
+    }
+
+    /**
+     * Shuts down the underlying interface, and every other view of it.
+     */
+    public void shutdown(long quiesceTime) {
+        _base.shutdown(quiesceTime);
+    }
+
+    private final HttpInterface _base;
+    private final Dispatcher _dispatcher;
+    private final RequestPriority _priority;
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+import static com.idibon.api.http.impl.HttpSupport.*;
+
+/**
+ * Limits the rate at which an HttpInterface sends requests, using a token
+ * bucket, and pauses all requests when the server asks clients to slow
+ * down.
+ *
+ * Pauses are triggered by a Retry-After header on a 429 or 503 response
+ * (or a 429 response without one), and by X-RateLimit-Remaining: 0, which
+ * pauses until the time in X-RateLimit-Reset. Since every request made
+ * through the interface shares the limiter, all of the iterators using
+ * the interface back off together.
+ *
+ * All methods are thread-safe.
+ */
+final class RateLimiter {
+
+    /**
+     * Configures the token bucket.
+     *
+     * @param perSecond Sustained requests per second, or 0 for no limit
+     * @param burst Number of requests that may be sent at once after an
+     *        idle period.
+     */
+    synchronized void setRate(double perSecond, int burst) {
+        _perSecond = perSecond;
+        _burst = Math.max(1, burst);
+        _tokens = _burst;
+        _refilled = System.nanoTime();
+    }
+
+    /**
+     * Takes a token for a request, if one is available and requests are
+     * not paused.
+     *
+     * @return 0 if the request may be sent now, otherwise the time to
+     *         wait before trying again, in nanoseconds.
+     */
+    synchronized long acquire() {
+        long now = System.nanoTime();
+        if (_pausedUntil - now > 0) return _pausedUntil - now;
+        if (_perSecond <= 0) return 0;
+
+        _tokens = Math.min(_burst,
+            _tokens + (now - _refilled) * _perSecond / NANOS_PER_SECOND);
+        _refilled = now;
+        if (_tokens >= 1.0) {
+            _tokens -= 1.0;
+            return 0;
+        }
+        return Math.max(1, (long)((1.0 - _tokens) * NANOS_PER_SECOND / _perSecond));
+    }
+
+    /**
+     * Returns a token that was acquired but not used.
+     */
+    synchronized void refund() {
+        if (_perSecond > 0) _tokens = Math.min(_burst, _tokens + 1.0);
+    }
+
+    /**
+     * Stops all requests from being sent for a period of time. Overlapping
+     * pauses are not cumulative; the latest end time wins.
+     *
+     * @param millis Length of the pause, in milliseconds
+     */
+    synchronized void pause(long millis) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        if (until - _pausedUntil > 0) _pausedUntil = until;
+    }
+
+    /**
+     * Checks the headers of a response for requests to slow down.
+     *
+     * @param status HTTP status code
+     * @param retryAfter The Retry-After header, or null
+     * @param remaining The X-RateLimit-Remaining header, or null
+     * @param reset The X-RateLimit-Reset header, or null
+     */
+    void onResponse(int status, String retryAfter, String remaining,
+          String reset) {
+        long delay = -1;
+        if (status == HTTP_TOO_MANY_REQUESTS || status == HTTP_UNAVAILABLE) {
+            delay = parseRetryAfter(retryAfter);
+            if (delay < 0 && status == HTTP_TOO_MANY_REQUESTS)
+                delay = DEFAULT_PAUSE;
+        }
+        if (delay < 0 && remaining != null && remaining.trim().equals("0"))
+            delay = parseReset(reset);
+        if (delay > 0) pause(Math.min(delay, MAX_PAUSE));
+    }
+
+    /**
+     * Parses a Retry-After header, which is either a number of seconds or
+     * an HTTP date.
+     *
+     * @return The delay in milliseconds, or -1 if absent or invalid.
+     */
+    static long parseRetryAfter(String header) {
+        if (header == null) return -1;
+        header = header.trim();
+        try {
+            return Math.max(0, Long.parseLong(header) * 1000);
+        } catch (NumberFormatException _) { }
+
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(header).getTime() -
+                            System.currentTimeMillis());
+        } catch (ParseException _) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses an X-RateLimit-Reset header. Servers use either the number of
+     * seconds until the reset, or the UNIX time of the reset; values too
+     * large to be a reasonable delay are treated as UNIX times.
+     *
+     * @return The delay in milliseconds, or -1 if absent or invalid.
+     */
+    static long parseReset(String header) {
+        if (header == null) return -1;
+        try {
+            long seconds = Long.parseLong(header.trim());
+            if (seconds > UNIX_TIME_THRESHOLD)
+                return Math.max(0, seconds * 1000 - System.currentTimeMillis());
+            return Math.max(0, seconds * 1000);
+        } catch (NumberFormatException _) {
+            return -1;
+        }
+    }
+
+    /// Sustained request rate; 0 disables the token bucket
+    private double _perSecond = 0;
+
+    /// Maximum number of accumulated tokens
+    private int _burst = 1;
+
+    /// Currently available tokens
+    private double _tokens;
+
+    /// Time the tokens were last refilled, from System.nanoTime
+    private long _refilled;
+
+    /// End of the current pause, from System.nanoTime
+    private long _pausedUntil = System.nanoTime();
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /// Pause after a 429 response without a Retry-After header, in ms
+    static final long DEFAULT_PAUSE = 1000;
+
+    /// Longest pause honored, in ms, in case of a misconfigured server
+    static final long MAX_PAUSE = 300000;
+
+    /// Reset values above this (~1 year in seconds) are UNIX times
+    private static final long UNIX_TIME_THRESHOLD = 31536000L;
+
+    private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss zzz";
+}
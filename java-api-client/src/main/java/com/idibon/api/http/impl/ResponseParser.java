@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.idibon.api.util.ExtendedByteArrayOutputStream;
+
+/**
+ * Incremental parser for HTTP/1.1 responses, used by the non-blocking
+ * transport. Bytes are pushed into the parser as they arrive from the
+ * network; the parser decodes the status line, headers and (possibly
+ * chunked) entity body.
+ *
+ * This class is not thread-safe.
+ */
+final class ResponseParser {
+
+    /**
+     * Consumes bytes from the buffer.
+     *
+     * @param in Data received from the server (in read mode). Any bytes
+     *        following the end of the response are left in the buffer.
+     * @return true if the entire response has been received.
+     */
+    boolean feed(ByteBuffer in) throws IOException {
+        if (in.hasRemaining()) _started = true;
+
+        while (_state != State.DONE && in.hasRemaining()) {
+            switch (_state) {
+            case STATUS:
+                if (readLine(in)) parseStatus(takeLine());
+                break;
+            case HEADERS:
+                if (readLine(in)) parseHeader(takeLine());
+                break;
+            case FIXED_BODY:
+            case CHUNK_DATA:
+            case UNTIL_CLOSE: {
+                int count = in.remaining();
+                if (_state != State.UNTIL_CLOSE)
+                    count = (int)Math.min(count, _remaining);
+                _sink.write(in.array(), in.arrayOffset() + in.position(),
+                            count);
+                in.position(in.position() + count);
+                _remaining -= count;
+                if (_remaining == 0 && _state == State.FIXED_BODY)
+                    _state = State.DONE;
+                else if (_remaining == 0 && _state == State.CHUNK_DATA)
+                    _state = State.CHUNK_END;
+                break;
+            }
+            case CHUNK_SIZE:
+                if (readLine(in)) parseChunkSize(takeLine());
+                break;
+            case CHUNK_END:
+                if (readLine(in)) {
+                    if (!takeLine().isEmpty())
+                        throw new IOException("Invalid chunk terminator");
+                    _state = State.CHUNK_SIZE;
+                }
+                break;
+            case TRAILERS:
+                // trailing headers are not used, discard them
+                if (readLine(in) && takeLine().isEmpty())
+                    _state = State.DONE;
+                break;
+            default:
+                throw new IllegalStateException(_state.name());
+            }
+        }
+        return _state == State.DONE;
+    }
+
+    /**
+     * Notifies the parser that the server closed the connection.
+     *
+     * @return true if the response was complete, false if no data was
+     *         received at all.
+     * @throws IOException if the connection closed mid-response
+     */
+    boolean finish() throws IOException {
+        if (_state == State.UNTIL_CLOSE) _state = State.DONE;
+        if (_state == State.DONE) return true;
+        if (!_started) return false;
+        throw new IOException("Connection closed before response completed");
+    }
+
+    /**
+     * Returns true once the status line and headers have been parsed.
+     */
+    boolean hasHeaders() {
+        return _state != State.STATUS && _state != State.HEADERS;
+    }
+
+    /**
+     * Writes the rest of the entity body to the output stream as it is
+     * received, rather than buffering it. Any part of the body that has
+     * already been received is written immediately.
+     *
+     * @param sink Receives the (de-chunked) entity body
+     */
+    void streamBodyTo(OutputStream sink) throws IOException {
+        _body.writeTo(sink);
+        _body.reset();
+        _sink = sink;
+    }
+
+    /**
+     * Returns true once any response data has been received.
+     */
+    boolean hasStarted() {
+        return _started;
+    }
+
+    /**
+     * Returns the HTTP response code.
+     */
+    int getStatus() {
+        return _status;
+    }
+
+    /**
+     * Returns the reason phrase from the status line.
+     */
+    String getReason() {
+        return _reason;
+    }
+
+    /**
+     * Returns the value of a response header, or null.
+     *
+     * @param name Case-insensitive header name
+     */
+    String getHeader(String name) {
+        return _headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Returns the decoded entity body. Empty if the body was streamed.
+     */
+    ExtendedByteArrayOutputStream getBody() {
+        return _body;
+    }
+
+    /**
+     * Returns true if the server allows the connection to be re-used for
+     * additional requests.
+     */
+    boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        if (_state == State.UNTIL_CLOSE || (connection != null &&
+              connection.toLowerCase().contains("close")))
+            return false;
+        if (_http10)
+            return connection != null &&
+                connection.toLowerCase().contains("keep-alive");
+        return true;
+    }
+
+    /**
+     * Accumulates bytes into the line buffer until a CRLF is read.
+     *
+     * @return true if a complete line is available.
+     */
+    private boolean readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') return true;
+            if (b != '\r') _line.write(b);
+            if (_line.size() > MAX_LINE_LENGTH)
+                throw new IOException("Response header too long");
+        }
+        return false;
+    }
+
+    /**
+     * Returns the current line as a String and resets the line buffer.
+     */
+    private String takeLine() {
+        String line = new String(_line.toByteArray(), HttpSupport.UTF8);
+        _line.reset();
+        return line;
+    }
+
+    private void parseStatus(String line) throws IOException {
+        if (line.isEmpty()) return; // tolerate leading blank lines
+        // HTTP/1.1 200 OK
+        String[] parts = line.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+            throw new IOException("Invalid status line: " + line);
+
+        _http10 = parts[0].equals("HTTP/1.0");
+        try {
+            _status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid status line: " + line);
+        }
+        _reason = parts.length > 2 ? parts[2] : "";
+        _state = State.HEADERS;
+    }
+
+    private void parseHeader(String line) throws IOException {
+        if (!line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) throw new IOException("Invalid header: " + line);
+            String name = line.substring(0, colon).trim().toLowerCase();
+            String value = line.substring(colon + 1).trim();
+            String existing = _headers.get(name);
+            _headers.put(name, existing == null ? value : existing + ", " + value);
+            return;
+        }
+
+        // blank line: end of the headers, figure out how to read the body
+        if (_status >= 100 && _status < 200) {
+            // interim response; the real one follows
+            _headers.clear();
+            _state = State.STATUS;
+            return;
+        }
+
+        String transferEncoding = getHeader("Transfer-Encoding");
+        String contentLength = getHeader("Content-Length");
+
+        if (_status == 204 || _status == 304) {
+            _state = State.DONE;
+        } else if (transferEncoding != null &&
+              transferEncoding.toLowerCase().contains("chunked")) {
+            _state = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                _remaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid Content-Length");
+            }
+            _state = _remaining == 0 ? State.DONE : State.FIXED_BODY;
+        } else {
+            _state = State.UNTIL_CLOSE;
+        }
+    }
+
+    private void parseChunkSize(String line) throws IOException {
+        // ignore any chunk extensions
+        int semi = line.indexOf(';');
+        if (semi != -1) line = line.substring(0, semi);
+        try {
+            _remaining = Long.parseLong(line.trim(), 16);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid chunk size: " + line);
+        }
+        _state = _remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+    }
+
+    private enum State {
+        STATUS, HEADERS, FIXED_BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END,
+        TRAILERS, UNTIL_CLOSE, DONE
+    }
+
+    // Longest accepted status or header line
+    private static final int MAX_LINE_LENGTH = 65536;
+
+    private State _state = State.STATUS;
+    private boolean _started;
+    private boolean _http10;
+    private int _status;
+    private String _reason;
+    private long _remaining;
+
+    // Response headers, keyed by lower-case name
+    private final Map<String, String> _headers = new HashMap<>();
+
+    // Partially-read status or header line
+    private final ExtendedByteArrayOutputStream _line =
+        new ExtendedByteArrayOutputStream(128);
+
+    // Decoded entity body
+    private final ExtendedByteArrayOutputStream _body =
+        new ExtendedByteArrayOutputStream();
+
+    // Where entity body data is written
+    private OutputStream _sink = _body;
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of the entity bytes transferred by an HttpInterface,
+ * before and after content encoding, to measure the benefit of
+ * compression.
+ *
+ * Only request and response bodies are counted; HTTP headers and chunked
+ * transfer encoding framing are not included. The number of requests that
+ * were automatically retried is also counted.
+ */
+public class TransferStatistics {
+
+    /**
+     * Returns the total size of all request bodies, before compression.
+     */
+    public long getRequestBytes() {
+        return _requestBytes.get();
+    }
+
+    /**
+     * Returns the total size of all request bodies as sent to the server,
+     * after compression.
+     */
+    public long getRequestBytesSent() {
+        return _requestBytesSent.get();
+    }
+
+    /**
+     * Returns the total size of all response bodies, after decompression.
+     */
+    public long getResponseBytes() {
+        return _responseBytes.get();
+    }
+
+    /**
+     * Returns the total size of all response bodies as received from the
+     * server, before decompression.
+     */
+    public long getResponseBytesReceived() {
+        return _responseBytesReceived.get();
+    }
+
+    /**
+     * Returns the number of times a failed request was sent again, as
+     * allowed by the interface's {@link com.idibon.api.http.RetryPolicy}.
+     */
+    public long getRetries() {
+        return _retries.get();
+    }
+
+    @Override public String toString() {
+        return String.format("sent %d of %d request bytes, " +
+            "received %d of %d response bytes, %d retries",
+            getRequestBytesSent(), getRequestBytes(),
+            getResponseBytesReceived(), getResponseBytes(), getRetries());
+    }
+
+    final AtomicLong _requestBytes = new AtomicLong();
+    final AtomicLong _requestBytesSent = new AtomicLong();
+    final AtomicLong _responseBytes = new AtomicLong();
+    final AtomicLong _responseBytesReceived = new AtomicLong();
+    final AtomicLong _retries = new AtomicLong();
+}
@@ -253,6 +253,31 @@ public class Collection extends IdibonHash {
         }
     }
 
+    /**
+     * Returns an upload of new content to the API, which runs as the
+     * returned Iterable is consumed. Each result acknowledges one uploaded
+     * document (or reports a failed batch). Nothing is uploaded until
+     * iteration starts, and each iteration uploads the documents again.
+     *
+     * The upload will terminate if an error is encountered.
+     *
+     * See {@link com.idibon.api.util.Adapters#toPublisher(Iterable)} to
+     * drive the upload from a reactive pipeline.
+     *
+     * @param documents The list of new documents that should be uploaded
+     * @return The acknowledgements for each uploaded document
+     */
+    public Iterable<Either<APIFailure<List<DocumentContent>>, Document>>
+          uploadDocuments(final Iterable<? extends DocumentContent> documents) {
+        return new Iterable<Either<APIFailure<List<DocumentContent>>, Document>>() {
+            public Iterator<Either<APIFailure<List<DocumentContent>>, Document>>
+                  iterator() {
+                return new PostDocumentsIterator(
+                    Collection.this, documents.iterator(), true);
+            }
+        };
+    }
+
     /**
      * Adds or updates annotations in bulk on existing documents in this
      * collection.
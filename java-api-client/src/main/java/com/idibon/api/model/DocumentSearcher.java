@@ -7,10 +7,15 @@ import java.io.IOException;
 import java.util.NoSuchElementException;
 import java.util.Iterator;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.json.*;
 
 import com.idibon.api.http.*;
+import com.idibon.api.util.Adapters;
 import com.idibon.api.util.Either;
+import com.idibon.api.util.Splittable;
 import static com.idibon.api.model.Util.*;
 
 
@@ -20,7 +25,7 @@ import static com.idibon.api.model.Util.*;
  * results.
  */
 public class DocumentSearcher
-      implements Iterable<Either<IOException, Document>> {
+      implements Iterable<Either<IOException, Document>>, AutoCloseable {
 
     /**
      * Types of data that can be returned in various search
@@ -211,6 +216,27 @@ public class DocumentSearcher
         return this.new Iter();
     }
 
+    /**
+     * Validates the current search configuration, sends the request to
+     * the server, and returns the results as a
+     * {@link com.idibon.api.util.Splittable} so that they can be processed
+     * on several threads. The number of results is estimated from
+     * {@link #first(long)}, if set.
+     */
+    public Splittable<Either<IOException, Document>> splittable() {
+        return Adapters.toSplittable(this, _limitCount, false);
+    }
+
+    /**
+     * Abandons every iteration over the results that is still in progress.
+     * Results that are streamed as they are received hold a connection
+     * open until they are read; callers that stop iterating before the
+     * end of the results should close the searcher to release it.
+     */
+    public void close() {
+        for (Iter it : _iterators) it.close();
+    }
+
     DocumentSearcher(Collection collection, HttpInterface httpIntf) {
         _collection = collection;
         _httpIntf = httpIntf;
@@ -286,6 +312,10 @@ public class DocumentSearcher
     // Number of matching items to ignore before returning the first result.
     private long _ignoreCount = 0;
 
+    // Iterators that are streaming results, closed by #close()
+    private final Set<Iter> _iterators =
+        Collections.newSetFromMap(new ConcurrentHashMap<Iter, Boolean>());
+
     // Result sort ordering
     private Sort _sortOption = Sort.created_at;
     private boolean _sortAscending = true;
@@ -300,6 +330,10 @@ public class DocumentSearcher
             /* cache the streaming mode, since the format of the returned
              * JSON elements will be different */
             _streaming = needsStreamingMode();
+            /* when possible, consume the documents in streaming mode as
+             * each one is received, rather than waiting for whole pages */
+            _incremental = _streaming &&
+                _httpIntf instanceof StreamingHttpInterface;
             _limitRemain = _limitCount;
             _nextStart = _ignoreCount;
 
@@ -321,13 +355,19 @@ public class DocumentSearcher
             _query.add("sort", _sortOption.name())
                 .add("order", _sortAscending ? "asc" : "desc");
 
-            dispatchNext(null);
+            if (_incremental) {
+                _iterators.add(this);
+                _page = request(null, _nextStart, _limitRemain);
+            } else {
+                dispatchNext(null);
+            }
         }
 
         /**
          * Returns the next Document from the search results.
          */
         public Either<IOException, Document> next() {
+            if (_incremental) return nextStreamed();
             if (!hasNext()) throw new NoSuchElementException();
 
             if (!moreResultsInBatch()) {
@@ -369,9 +409,172 @@ public class DocumentSearcher
          * results.
          */
         public boolean hasNext() {
+            if (_incremental) return peekStreamed();
             return _nextBatch != null || moreResultsInBatch();
         }
 
+        /**
+         * Returns the next Document from an incrementally-streamed page.
+         */
+        private Either<IOException, Document> nextStreamed() {
+            if (!peekStreamed()) throw new NoSuchElementException();
+            Either<IOException, JsonObject> item = _peeked;
+            _peeked = null;
+            if (item.isLeft()) return Either.left(item.left);
+            return Either.right(
+                _collection.document(expandDocument(item.right)));
+        }
+
+        /**
+         * Waits for the next document (or error) from the current page
+         * stream, moving on to the next page as needed.
+         *
+         * @return true if a result is available in _peeked
+         */
+        private boolean peekStreamed() {
+            while (_peeked == null) {
+                if (_page == null) return false;
+
+                if (!_page.stream.hasNext()) {
+                    // end of the page, move to the next one (if any)
+                    _page = awaitNext(_page);
+                    if (_page == null) _iterators.remove(this);
+                    continue;
+                }
+
+                Either<IOException, JsonValue> item = _page.stream.next();
+                if (item.isRight() && !(item.right instanceof JsonObject)) {
+                    item = Either.left(
+                        new IOException("Invalid server response"));
+                }
+
+                if (item.isLeft()) {
+                    /* return the error, then restart the search after the
+                     * last document that was received */
+                    _page.stream.close();
+                    discardNext(_page);
+                    _peeked = Either.left(item.left);
+                    _page = null;
+                    if (_limitRemain > 0 && !_closed)
+                        _page = request(null, _nextStart, _limitRemain);
+                    if (_page == null) _iterators.remove(this);
+                    // close() may have missed the new page
+                    else if (_closed) _page.stream.close();
+                } else {
+                    _nextStart += 1;
+                    _limitRemain -= 1;
+                    _peeked = Either.right((JsonObject)item.right);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Requests the page after a streamed page, as soon as the last
+         * document on the page is received. Called by the stream when it
+         * completes, and by the consumer when it reaches the end of the
+         * page, whichever comes first.
+         */
+        private void requestNext(Page page) {
+            String cursor = null;
+            long start, remain;
+            synchronized (this) {
+                if (page.requested) return;
+                page.requested = true;
+                JsonValue last = page.stream.getLastReceived();
+                if (last instanceof JsonObject)
+                    cursor = ((JsonObject)last).getString("cursor", null);
+                start = page.start + page.stream.getReceivedCount();
+                remain = page.remain - page.stream.getReceivedCount();
+            }
+
+            Page next = null;
+            try {
+                if (cursor != null && remain > 0 && !_closed)
+                    next = request(cursor, start, remain);
+            } finally {
+                synchronized (this) {
+                    page.next = next;
+                    page.resolved = true;
+                    if (_closed && next != null) next.stream.close();
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Returns the page after a page that has been read completely, or
+         * null if there are no more results.
+         */
+        private Page awaitNext(Page page) {
+            requestNext(page);
+            synchronized (this) {
+                boolean interrupted = false;
+                while (!page.resolved) {
+                    try {
+                        wait();
+                    } catch (InterruptedException _) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) Thread.currentThread().interrupt();
+                return page.next;
+            }
+        }
+
+        /**
+         * Closes the page after an abandoned page, if it was requested.
+         */
+        private void discardNext(Page page) {
+            synchronized (this) {
+                if (!page.requested) {
+                    page.requested = true;
+                    page.resolved = true;
+                    notifyAll();
+                    return;
+                }
+            }
+            Page next = awaitNext(page);
+            if (next != null) next.stream.close();
+        }
+
+        /**
+         * Starts streaming a page of results.
+         */
+        private Page request(String cursor, long start, long remain) {
+            JsonObject query;
+            synchronized (this) {
+                query = pageQuery(cursor, start, remain);
+            }
+            final Page page = new Page(((StreamingHttpInterface)_httpIntf)
+                .httpGetStream(_endpoint, query), start, remain);
+            page.stream.whenComplete(new Runnable() {
+                public void run() {
+                    requestNext(page);
+                }
+            });
+            return page;
+        }
+
+        /**
+         * Abandons the iteration, closing the page being read and the
+         * next page, if it was already requested.
+         */
+        void close() {
+            Page page;
+            synchronized (this) {
+                if (_closed) return;
+                _closed = true;
+                page = _page;
+            }
+            _iterators.remove(this);
+            /* the consumer may be reading the page concurrently; closing
+             * the stream just ends it early */
+            if (page == null) return;
+            page.stream.close();
+            discardNext(page);
+        }
+
         /**
          * Unimplemented.
          */
@@ -464,16 +667,24 @@ public class DocumentSearcher
          * #waitForNextBatch().
          */
         private void dispatchNext(String cursor) {
+            _nextBatch = _httpIntf.httpGet(_endpoint,
+                pageQuery(cursor, _nextStart, _limitRemain));
+        }
+
+        /**
+         * Returns the search query for a page of results.
+         */
+        private JsonObject pageQuery(String cursor, long start, long remain) {
             if (cursor == null)
                 _query.addNull("cursor");
             else
                 _query.add("cursor", cursor);
             // to prevent infinite loops on lost cursors, always include start
-            _query.add("start", _nextStart);
+            _query.add("start", start);
             /* restrict the results to the lesser of the server max (1000) and
              * the desired number of results */
-            _query.add("count", Math.min(1000L, _limitRemain));
-            _nextBatch = _httpIntf.httpGet(_endpoint, _query.build());
+            _query.add("count", Math.min(1000L, remain));
+            return _query.build();
         }
 
         // The endpoint used for document iteration
@@ -488,10 +699,51 @@ public class DocumentSearcher
         // If streaming mode is used
         private final boolean _streaming;
 
+        // If streaming mode results are consumed as they are received
+        private final boolean _incremental;
+
+        // Incremental mode: the page being read
+        private volatile Page _page;
+
+        // Incremental mode: the next result
+        private Either<IOException, JsonObject> _peeked;
+
+        // Incremental mode: true once the iteration is abandoned
+        private volatile boolean _closed;
+
         private HttpFuture<JsonValue> _nextBatch;
         private Either<IOException, JsonArray> _currentBatch;
         private int _offset;
         private long _nextStart;
         private long _limitRemain;
     }
+
+    /**
+     * Incremental mode: a page of results being streamed, and the request
+     * for the page after it. The next page is requested by whichever of
+     * the stream and the consumer reaches the end of the page first, and
+     * is guarded by the Iter that owns the page.
+     */
+    private static class Page {
+        Page(HttpStream stream, long start, long remain) {
+            this.stream = stream;
+            this.start = start;
+            this.remain = remain;
+        }
+
+        final HttpStream stream;
+
+        // Index of the first result on the page
+        final long start;
+
+        // Number of results still wanted when the page was requested
+        final long remain;
+
+        // True once the next page is (or won't be) requested
+        boolean requested;
+
+        // True once the next page is known; next is null at the end
+        boolean resolved;
+        Page next;
+    }
 }
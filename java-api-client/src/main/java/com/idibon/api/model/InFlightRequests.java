@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.model;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import javax.json.*;
+
+import com.idibon.api.http.HttpFuture;
+import com.idibon.api.http.HttpInterface;
+import com.idibon.api.http.ListenableTask;
+import com.idibon.api.util.Either;
+
+/**
+ * Coalesces identical prediction requests that are in flight at the same
+ * time, so that (for example) many threads predicting the same content
+ * at once share a single API request and its result. Coalescing is
+ * enabled by passing the same instance to
+ * {@link com.idibon.api.model.PredictionIterable#withCoalescing} for
+ * each prediction; requests are only shared between predictions that
+ * use the same instance.
+ *
+ * Only requests that are still outstanding are shared; each request is
+ * forgotten as soon as it completes, so this never returns stale
+ * results. See {@link com.idibon.api.model.PredictionCache} to re-use
+ * completed predictions.
+ *
+ * Each caller receives its own future, which it may cancel without
+ * affecting the others; the request is only cancelled once every caller
+ * has cancelled it.
+ *
+ * Every method in this class is thread-safe.
+ */
+public final class InFlightRequests {
+
+    /**
+     * Creates an empty set of in-flight requests.
+     */
+    public InFlightRequests() { }
+
+    /**
+     * Issues a GET request, or joins an identical request to the same
+     * endpoint on the same interface that is already in flight.
+     *
+     * @param intf The interface to send the request on
+     * @param endpoint The API endpoint
+     * @param body The request body
+     * @return The (possibly shared) result of the request
+     */
+    HttpFuture<JsonValue> httpGet(HttpInterface intf, String endpoint,
+          JsonObject body) {
+        final Key key = new Key(intf, endpoint, body);
+        while (true) {
+            final Flight flight = new Flight(this, key);
+            Flight existing = _flights.putIfAbsent(key, flight);
+
+            if (existing != null) {
+                // send a separate request if the shared one couldn't be issued
+                if (existing.await() == null)
+                    return intf.httpGet(endpoint, body);
+                HttpFuture<JsonValue> joined = existing.join();
+                if (joined != null) return joined;
+                // every caller cancelled the shared request; start another
+                continue;
+            }
+
+            try {
+                flight.future = intf.httpGet(endpoint, body);
+            } finally {
+                if (flight.future == null) _flights.remove(key, flight);
+                flight.issued.countDown();
+            }
+
+            flight.future.onComplete(new HttpFuture.Callback<JsonValue>() {
+                public void completed(Either<IOException, JsonValue> result) {
+                    _flights.remove(key, flight);
+                }
+            });
+            HttpFuture<JsonValue> joined = flight.join();
+            if (joined != null) return joined;
+        }
+    }
+
+    /**
+     * Returns the number of requests in flight. Used by tests.
+     */
+    int pending() {
+        return _flights.size();
+    }
+
+    /**
+     * A request that other callers can join once it has been issued.
+     */
+    private static class Flight {
+        Flight(InFlightRequests owner, Key key) {
+            _owner = owner;
+            _key = key;
+        }
+
+        /**
+         * Waits until the request is issued (not until it completes),
+         * and returns it, or null if it couldn't be issued.
+         */
+        HttpFuture<JsonValue> await() {
+            try {
+                issued.await();
+            } catch (InterruptedException _) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return future;
+        }
+
+        /**
+         * Returns a new caller's own future for the result, or null if
+         * every earlier caller already cancelled the request.
+         */
+        synchronized HttpFuture<JsonValue> join() {
+            if (_abandoned) return null;
+            _callers++;
+            Caller caller = new Caller(this);
+            future.onComplete(caller);
+            return HttpFuture.wrap(caller);
+        }
+
+        /**
+         * Called when a caller cancels its future. The request itself is
+         * only cancelled once every caller has cancelled.
+         */
+        void leave() {
+            synchronized (this) {
+                if (--_callers > 0 || _abandoned) return;
+                _abandoned = true;
+            }
+            _owner._flights.remove(_key, this);
+            future.cancel(true);
+        }
+
+        final CountDownLatch issued = new CountDownLatch(1);
+        volatile HttpFuture<JsonValue> future;
+
+        private final InFlightRequests _owner;
+        private final Key _key;
+        private int _callers;
+        private boolean _abandoned;
+    }
+
+    /**
+     * One caller's view of a shared request, so that cancelling it (or
+     * missing a deadline with getOrCancel) doesn't affect the others.
+     */
+    private static class Caller extends ListenableTask<JsonValue>
+          implements HttpFuture.Callback<JsonValue> {
+        Caller(Flight flight) {
+            _flight = flight;
+        }
+
+        public void completed(Either<IOException, JsonValue> result) {
+            if (result.isLeft()) setException(result.left);
+            else set(result.right);
+        }
+
+        @Override public boolean cancel(boolean mayInterrupt) {
+            if (!super.cancel(mayInterrupt)) return false;
+            _flight.leave();
+            return true;
+        }
+
+        private final Flight _flight;
+    }
+
+    /**
+     * Identifies a request. Different interfaces may be connected to
+     * different servers or accounts, so they never share requests.
+     */
+    private static class Key {
+        Key(HttpInterface intf, String endpoint, JsonObject body) {
+            _intf = intf;
+            _endpoint = endpoint;
+            _body = body;
+            _hash = (System.identityHashCode(intf) * 31 +
+                     endpoint.hashCode()) * 31 + body.hashCode();
+        }
+
+        @Override public boolean equals(Object other) {
+            if (other == this) return true;
+            if (!(other instanceof Key)) return false;
+            Key k = (Key)other;
+            return _hash == k._hash && _intf == k._intf &&
+                _endpoint.equals(k._endpoint) && _body.equals(k._body);
+        }
+
+        @Override public int hashCode() {
+            return _hash;
+        }
+
+        private final HttpInterface _intf;
+        private final String _endpoint;
+        private final JsonObject _body;
+        private final int _hash;
+    }
+
+    /// Requests that are in flight
+    private final ConcurrentHashMap<Key, Flight> _flights =
+        new ConcurrentHashMap<>();
+}
@@ -65,7 +65,8 @@ class PostDocumentsIterator
         /* For performance, upload documents in batches, and upload multiple
          * batches in parallel. Empirically, the best performance seems to be
          * when the upload batch size 25KiB - 100KiB. */
-        while (_submitQueue.size() < _submitLimit &&
+        int submitLimit = submitLimit();
+        while (_submitQueue.size() < submitLimit &&
                !_quit && _contentToPost.hasNext()) {
             // create a new array for this batch of documents, if needed
             if (batch == null) batch = JSON_BF.createArrayBuilder();
@@ -155,18 +156,26 @@ class PostDocumentsIterator
 
     PostDocumentsIterator(Collection collection,
           Iterator<? extends DocumentContent> contentToPost,
-          boolean stopOnError) throws IOException {
+          boolean stopOnError) {
         _contentToPost = contentToPost;
         _collection = collection;
         _stopOnError = stopOnError;
+        advance();
+    }
+
+    /**
+     * Returns the limit to the number of outstanding batches. The limit is
+     * re-read before each refill, since the interface's parallelism may
+     * change while uploading.
+     */
+    private int submitLimit() {
         /* Limit to at most MAXIMUM_SUBMIT_LIMIT parallel upload requests,
          * regardless of connection parallelism, to prevent over-committing
          * the API */
-        _submitLimit = Math.min(MAXIMUM_SUBMIT_LIMIT,
-            collection.getInterface()
-                      .getProperty(HttpInterface.Property.ParallelRequestLimit,
-                                   DEFAULT_SUBMIT_LIMIT));
-        advance();
+        return Math.min(MAXIMUM_SUBMIT_LIMIT,
+            _collection.getInterface()
+                       .getProperty(HttpInterface.Property.ParallelRequestLimit,
+                                    DEFAULT_SUBMIT_LIMIT));
     }
 
     // Terminates iteration prematurely
@@ -181,9 +190,6 @@ class PostDocumentsIterator
     // Stops submitting more batches following an error
     private final boolean _stopOnError;
 
-    // Limit to the number of outstanding batches uploaded at once
-    private final int _submitLimit;
-
     // Outstanding POST requests
     private final Deque<Request> _submitQueue = new LinkedList<>();
 
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.model;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.*;
+
+import com.idibon.api.http.HttpFuture;
+import com.idibon.api.http.HttpInterface;
+
+/**
+ * Keeps the results of recent predictions in memory, so that repeated
+ * predictions of the same content are returned without calling the API.
+ * See {@link com.idibon.api.model.PredictionIterable#withCache}.
+ *
+ * Results are keyed by the task (including the interface used to reach
+ * the server it is on), the version of the task, the request options
+ * (e.g., the significant feature threshold) and a hash of the content
+ * and metadata. The version is a hash of the task's JSON, so
+ * results are no longer used once the task is reloaded with different
+ * rules or configuration, for example after
+ * {@link com.idibon.api.model.Task#addRules},
+ * {@link com.idibon.api.model.Task#deleteRules} or
+ * {@link com.idibon.api.model.Task#invalidate}. Outdated results are
+ * evicted as the cache fills.
+ *
+ * Predictions of Documents stored in the task's collection are made
+ * in place by name, and are never cached, since the stored content may
+ * change.
+ *
+ * Every method in this class is thread-safe, so one cache may be shared
+ * by many tasks and threads.
+ */
+public final class PredictionCache {
+
+    /**
+     * Creates a cache that holds up to maxEntries results, evicting the
+     * least-recently used results first.
+     *
+     * @param maxEntries Maximum number of results to keep, at least 1
+     */
+    public PredictionCache(final int maxEntries) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("Invalid cache size");
+        _entries = new LinkedHashMap<Key, JsonArray>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(
+                  Map.Entry<Key, JsonArray> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Removes all of the cached results for a task.
+     *
+     * @param task The task
+     */
+    public synchronized void invalidate(Task task) {
+        HttpInterface intf = task.getInterface();
+        String endpoint = task.getEndpoint();
+        Iterator<Key> it = _entries.keySet().iterator();
+        while (it.hasNext()) {
+            Key k = it.next();
+            if (k._intf == intf && k._task.equals(endpoint)) it.remove();
+        }
+    }
+
+    /**
+     * Removes all of the cached results.
+     */
+    public synchronized void clear() {
+        _entries.clear();
+    }
+
+    /**
+     * Returns the number of cached results.
+     */
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Returns the number of predictions that were found in the cache.
+     */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * Returns the number of predictions that were not found in the cache.
+     */
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    /**
+     * Returns the cached result for a key, or null.
+     */
+    JsonArray get(Key key) {
+        JsonArray result;
+        synchronized (this) {
+            result = _entries.get(key);
+        }
+        (result == null ? _misses : _hits).incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Adds a result to the cache.
+     */
+    synchronized void put(Key key, JsonArray result) {
+        _entries.put(key, result);
+    }
+
+    /**
+     * Returns the version of a task, a hash of its current JSON.
+     */
+    static String versionOf(Task task) throws java.io.IOException {
+        return hex(digest(task.getJson().toString()));
+    }
+
+    /**
+     * Returns the cache key for a prediction request.
+     *
+     * @param task The task being predicted
+     * @param version The version of the task, see {@link #versionOf}
+     * @param options The options for the request
+     * @param item The JSON identifying the item to predict
+     * @return The key, or null if the item can't be cached
+     */
+    static Key keyOf(Task task, String version, JsonObject options,
+          JsonObject item) {
+        if (!isCacheable(item)) return null;
+        return new Key(task.getInterface(), task.getEndpoint(), version,
+                       digest(options.toString() + item.toString()));
+    }
+
+    /**
+     * Returns true if the result for an item may be cached, i.e. the item
+     * is not a stored Document that is predicted in place.
+     *
+     * @param item The JSON identifying the item to predict
+     */
+    static boolean isCacheable(JsonObject item) {
+        return !item.containsKey("document");
+    }
+
+    /**
+     * Returns an already-completed future for a cached result.
+     */
+    static HttpFuture<JsonValue> completed(final JsonArray result) {
+        return HttpFuture.wrap(new Future<JsonValue>() {
+            public boolean cancel(boolean ignore) { return false; }
+            public JsonValue get() { return result; }
+            public JsonValue get(long t, TimeUnit u) { return result; }
+            public boolean isCancelled() { return false; }
+            public boolean isDone() { return true; }
+        });
+    }
+
+    private static byte[] digest(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256")
+                .digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException _) {
+            throw new Error("Impossible"); // required on every JVM
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+
+    /**
+     * Identifies one prediction request. Tasks with the same name may be
+     * reached through different interfaces (i.e., on different servers
+     * or accounts), so the interface is part of the key.
+     */
+    static final class Key {
+        Key(HttpInterface intf, String task, String version, byte[] digest) {
+            _intf = intf;
+            _task = task;
+            _version = version;
+            _digest = digest;
+            _hash = Arrays.hashCode(digest);
+        }
+
+        @Override public boolean equals(Object other) {
+            if (other == this) return true;
+            if (!(other instanceof Key)) return false;
+            Key k = (Key)other;
+            return _hash == k._hash && Arrays.equals(_digest, k._digest) &&
+                _intf == k._intf && _task.equals(k._task) &&
+                _version.equals(k._version);
+        }
+
+        @Override public int hashCode() {
+            return _hash;
+        }
+
+        private final HttpInterface _intf;
+        private final String _task;
+        private final String _version;
+        private final byte[] _digest;
+        private final int _hash;
+    }
+
+    /// Cached results, in least-recently used order
+    private final LinkedHashMap<Key, JsonArray> _entries;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+}
@@ -6,9 +6,16 @@ package com.idibon.api.model;
 import java.util.Iterator;
 
 import com.idibon.api.util.Either;
+import com.idibon.api.util.Splittable;
 
 /**
  * Generates predictions for one or more predictable items.
+ *
+ * Instances are returned by {@link com.idibon.api.model.Task}. This
+ * interface is implemented only by the library, and is not meant to be
+ * implemented by applications: methods may be added to it in any release
+ * (as they were for batching, caching and coalescing), which would break
+ * outside implementations.
  */
 public interface PredictionIterable<T extends Prediction>
     extends Iterable<Either<APIFailure<DocumentContent>, T>> {
@@ -41,4 +48,64 @@ public interface PredictionIterable<T extends Prediction>
      * @return This
      */
     public PredictionIterable<T> withSignificantFeatures(double threshold);
+
+    /**
+     * Packs multiple items into each prediction request, rather than
+     * sending one request per item. Batches are limited to the requested
+     * number of items, and to a total size of roughly 25KB.
+     *
+     * Batching greatly reduces the number of round trips to the API when
+     * predicting many short items. If a batch request fails, every item
+     * in the batch reports the same failure.
+     *
+     * @param maxItems Maximum number of items per request, at least 1.
+     *        The default is 1.
+     * @return This
+     */
+    public PredictionIterable<T> inBatches(int maxItems);
+
+    /**
+     * Returns each prediction as soon as its request completes, rather
+     * than in the order that the items were listed, so that a slow item
+     * doesn't hold up the results behind it. Use
+     * {@link com.idibon.api.model.Prediction#getRequested} (or
+     * {@link com.idibon.api.model.APIFailure#request} for failures) to
+     * tell which item each result is for.
+     *
+     * @return This
+     */
+    public PredictionIterable<T> unordered();
+
+    /**
+     * Returns cached results for items that were predicted recently, and
+     * adds new results to the cache, so that duplicate content is only
+     * sent to the API once. See
+     * {@link com.idibon.api.model.PredictionCache}.
+     *
+     * @param cache The cache to use, or null to disable caching
+     * @return This
+     */
+    public PredictionIterable<T> withCache(PredictionCache cache);
+
+    /**
+     * Shares each prediction request with identical requests (same task,
+     * content or document, and options) that are already in flight from
+     * other predictions using the same InFlightRequests, rather than
+     * sending a duplicate. See
+     * {@link com.idibon.api.model.InFlightRequests}.
+     *
+     * @param requests The requests to share, or null to disable sharing
+     * @return This
+     */
+    public PredictionIterable<T> withCoalescing(InFlightRequests requests);
+
+    /**
+     * Starts generating the predictions, and returns them as a
+     * {@link com.idibon.api.util.Splittable} so that they can be
+     * processed on several threads. The size is exact when the items
+     * are a java.util.Collection, since each item produces one result.
+     *
+     * @return The predictions
+     */
+    public Splittable<Either<APIFailure<DocumentContent>, T>> splittable();
 }
@@ -6,12 +6,21 @@ package com.idibon.api.model;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.NoSuchElementException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.io.IOException;
 import javax.json.*;
 
+import com.idibon.api.util.Adapters;
 import com.idibon.api.util.Either;
+import com.idibon.api.util.Splittable;
 import com.idibon.api.http.HttpFuture;
 import com.idibon.api.http.HttpInterface;
 
@@ -60,6 +69,69 @@ class PredictionIterableNontrivial<T extends Prediction<T>>
         return this;
     }
 
+    /**
+     * Packs up to maxItems items into each prediction request.
+     *
+     * Batched requests send the items in a "documents" array, and the
+     * API responds with an array containing the prediction result for
+     * each item, in the same order.
+     *
+     * @param maxItems Maximum number of items per request, at least 1.
+     * @return This
+     */
+    public PredictionIterableNontrivial<T> inBatches(int maxItems) {
+        if (maxItems < 1)
+            throw new IllegalArgumentException("Invalid batch size");
+        _batchSize = maxItems;
+        return this;
+    }
+
+    /**
+     * Returns each prediction as soon as its request completes, rather
+     * than in the order that the items were listed.
+     *
+     * @return This
+     */
+    public PredictionIterableNontrivial<T> unordered() {
+        _unordered = true;
+        return this;
+    }
+
+    /**
+     * Starts generating the predictions, and returns them as a Splittable.
+     *
+     * @return The predictions
+     */
+    public Splittable<Either<APIFailure<DocumentContent>, T>> splittable() {
+        long size = Util.sizeOf(_items);
+        return Adapters.toSplittable(this, size, size != Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns cached results for items that were predicted recently, and
+     * adds new results to the cache.
+     *
+     * @param cache The cache to use, or null to disable caching
+     * @return This
+     */
+    public PredictionIterableNontrivial<T> withCache(PredictionCache cache) {
+        _cache = cache;
+        return this;
+    }
+
+    /**
+     * Shares each prediction request with identical requests already in
+     * flight from other predictions that use the same InFlightRequests.
+     *
+     * @param requests The requests to share, or null to disable sharing
+     * @return This
+     */
+    public PredictionIterableNontrivial<T> withCoalescing(
+          InFlightRequests requests) {
+        _flights = requests;
+        return this;
+    }
+
     /**
      * Used for regular prediction cases.
      * @param clazz
@@ -75,14 +147,6 @@ class PredictionIterableNontrivial<T extends Prediction<T>>
             throw new Error("Impossible");
         }
 
-        /* configure the size of the internal request circular buffer based
-         * on the number of parallel requests supported by the HTTP interface.
-         * predictions should saturate this interface. double-buffer to ensure
-         * that OS thread-scheduling doesn't cause a thread to go idle waiting
-         * for the dispatch thread to add more work */
-        _dispatchLimit = 2 * target.getInterface().getProperty(HttpInterface.Property.ParallelRequestLimit,
-            DEFAULT_DISPATCH_LIMIT);
-
         /* disable hierarchical predictions, since these don't work very well
          * setting the threshold to a value above 1.1 ensures that the server
          * will never traverse down the hierarchy, since the maximum confidence
@@ -106,46 +170,75 @@ class PredictionIterableNontrivial<T extends Prediction<T>>
     // The task being predicted against
     private final Task _target;
 
-    /* The maximum number of outstanding requests to issue, based on the
-     * HTTP interface parallelism limit */
-    private final int _dispatchLimit;
-
     // Type of predictions (span vs document) being performed
     private final Constructor<T> _constructor;
 
     // The items that will be predicted
     private final Iterable<? extends DocumentContent> _items;
 
+    // Maximum number of items per prediction request
+    private int _batchSize = 1;
+
+    // Return predictions in completion order
+    private boolean _unordered = false;
+
+    // Cache of recent prediction results, if any
+    private PredictionCache _cache;
+
+    // In-flight requests shared with other predictions, if any
+    private InFlightRequests _flights;
+
     // Default throttle for the number of outstanding requests.
     private static final int DEFAULT_DISPATCH_LIMIT = 10;
 
+    // Target size (in bytes) for a batch of items, as for document uploads
+    private static final long BATCH_PREDICT_TARGET = 25000;
+
+    /**
+     * Returns the maximum number of outstanding requests to issue, based on
+     * the HTTP interface parallelism limit. This is re-read before each
+     * refill, since the limit may adapt to the server's throughput.
+     */
+    private int dispatchLimit() {
+        /* configure the size of the internal request circular buffer based
+         * on the number of parallel requests supported by the HTTP interface.
+         * predictions should saturate this interface. double-buffer to ensure
+         * that OS thread-scheduling doesn't cause a thread to go idle waiting
+         * for the dispatch thread to add more work */
+        return 2 * _target.getInterface().getProperty(
+            HttpInterface.Property.ParallelRequestLimit, DEFAULT_DISPATCH_LIMIT);
+    }
+
     /**
      * Iterates over predictable items and issues prediction API requests
      * for each.
      *
-     * Uses a circular buffer internally (limited to _dispatchLimit items) to
+     * Uses a circular buffer internally (limited to dispatchLimit() items) to
      * store issued requests.
      */
     private class Iter
           implements Iterator<Either<APIFailure<DocumentContent>, T>> {
         private Iter() {
             _itemIt = _items.iterator();
-            _queue = new LinkedList<>();
+            _ordered = !_unordered;
+
+            _iterCache = _cache;
+            _iterFlights = _flights;
             advance(null);
         }
 
         public boolean hasNext() {
-            return !_queue.isEmpty() || _itemIt.hasNext();
+            return pending() > 0 || _itemIt.hasNext();
         }
 
         public Either<APIFailure<DocumentContent>, T> next() {
             if (!hasNext()) throw new NoSuchElementException();
-            Entry head = _queue.removeFirst();
+            Entry head = _ordered ? _queue.removeFirst() : nextCompleted();
 
-            Either<IOException, JsonArray> result =
-                head.future.getAs(JsonArray.class);
+            Either<IOException, JsonArray> result = head.result();
 
             if (result.isLeft()) {
+                advance(null);
                 return Either.left(
                     APIFailure.failure(result.left, head.request));
             }
@@ -153,7 +246,8 @@ class PredictionIterableNontrivial<T extends Prediction<T>>
             try {
                 T prediction = _constructor.newInstance(
                     result.right, head.request, _target);
-                advance(head);
+                if (head.key != null) _iterCache.put(head.key, result.right);
+                advance(_batchSize == 1 && _ordered ? head : null);
                 return Either.right(prediction);
             } catch (InstantiationException | IllegalAccessException |
                      IllegalArgumentException | InvocationTargetException _) {
@@ -166,30 +260,199 @@ class PredictionIterableNontrivial<T extends Prediction<T>>
         }
 
         private void advance(Entry last) {
-            while (_queue.size() < _dispatchLimit && _itemIt.hasNext()) {
+            int batchSize = _batchSize;
+            // keep the same number of requests outstanding when batching
+            int dispatchLimit = dispatchLimit() * batchSize;
+            while (pending() < dispatchLimit && _itemIt.hasNext()) {
+                if (batchSize > 1) {
+                    dispatchBatch(batchSize, dispatchLimit);
+                    continue;
+                }
                 Entry issue = (last != null) ? last : new Entry();
                 issue.request = _itemIt.next();
-                issue.future = makePrediction(issue.request);
-                _queue.addLast(issue);
+                issue.future = makePrediction(issue);
+                add(issue);
+                dispatched(issue);
                 last = null;
             }
         }
 
         /**
-         * Dispatch a prediction request.
+         * Returns the number of items dispatched but not yet returned.
+         */
+        private int pending() {
+            return _ordered ? _queue.size() : _outstanding.size();
+        }
+
+        private void add(Entry entry) {
+            if (_ordered) _queue.addLast(entry);
+            else _outstanding.add(entry);
+        }
+
+        /**
+         * Called once an entry's future is assigned. In unordered mode,
+         * the entry is handed to next() as soon as the future completes.
+         */
+        private void dispatched(final Entry entry) {
+            if (_ordered) return;
+            entry.future.onComplete(new HttpFuture.Callback<JsonValue>() {
+                public void completed(Either<IOException, JsonValue> result) {
+                    _completed.add(entry);
+                }
+            });
+        }
+
+        /**
+         * Waits for any outstanding entry to complete, and removes it.
+         */
+        private Entry nextCompleted() {
+            while (true) {
+                Entry done;
+                try {
+                    done = _completed.take();
+                } catch (InterruptedException _) {
+                    /* report the interruption against the oldest item. with
+                     * the interrupt flag restored, its result is a failure
+                     * unless the request already completed */
+                    Thread.currentThread().interrupt();
+                    done = _outstanding.iterator().next();
+                }
+                // skip entries that were already reported as interrupted
+                if (_outstanding.remove(done)) return done;
+            }
+        }
+
+        /**
+         * Dispatch a prediction request, unless the result is cached.
          *
-         * @param content The item to predict
+         * @param entry The entry for the item to predict
          * @return A promise with the prediction result
          */
-        private HttpFuture<JsonValue> makePrediction(DocumentContent content) {
+        private HttpFuture<JsonValue> makePrediction(Entry entry) {
+            entry.key = null;
+            JsonObject item;
+            try {
+                item = toJson(entry.request);
+            } catch (IOException ex) {
+                return HttpFuture.wrap(HttpIssueError.wrap(ex));
+            }
+
+            JsonObjectBuilder bldr = requestOptions();
+            if (_iterCache != null) {
+                JsonArray cached = lookup(entry, bldr.build(), item);
+                if (cached != null) return PredictionCache.completed(cached);
+                bldr = requestOptions();
+            }
+
+            for (Map.Entry<String, JsonValue> field : item.entrySet())
+                bldr.add(field.getKey(), field.getValue());
+            return send(bldr.build());
+        }
+
+        /**
+         * Sends a prediction request, sharing an identical in-flight
+         * request if coalescing is enabled.
+         */
+        private HttpFuture<JsonValue> send(JsonObject body) {
+            HttpInterface intf = _target.getInterface();
+            if (_iterFlights == null)
+                return intf.httpGet(_target.getEndpoint(), body);
+            return _iterFlights.httpGet(intf, _target.getEndpoint(), body);
+        }
+
+        /**
+         * Returns the cached result for an item, or null. On a miss, the
+         * entry is given the key to cache its result under.
+         */
+        private JsonArray lookup(Entry entry, JsonObject options,
+              JsonObject item) {
+            if (_iterCache == null || !PredictionCache.isCacheable(item))
+                return null;
+            if (_version == null) {
+                // loading the task may take a request, so wait until needed
+                try {
+                    _version = PredictionCache.versionOf(_target);
+                } catch (IOException _) {
+                    // the task can't be loaded, so don't use the cache
+                    _iterCache = null;
+                    return null;
+                }
+            }
+            PredictionCache.Key key =
+                PredictionCache.keyOf(_target, _version, options, item);
+            if (key == null) return null;
+            JsonArray cached = _iterCache.get(key);
+            if (cached == null) entry.key = key;
+            return cached;
+        }
+
+        /**
+         * Dispatch one prediction request for as many items as fit in a
+         * batch. Each item is added to the queue in order; items that
+         * can't be read fail on their own, without affecting the batch.
+         */
+        private void dispatchBatch(int batchSize, int dispatchLimit) {
+            List<Entry> batch = new ArrayList<>(batchSize);
+            JsonArrayBuilder items = JSON_BF.createArrayBuilder();
+            JsonObject options =
+                _iterCache == null ? null : requestOptions().build();
+            long estimatedSize = 0;
+
+            while (batch.size() < batchSize &&
+                   estimatedSize < BATCH_PREDICT_TARGET &&
+                   pending() < dispatchLimit && _itemIt.hasNext()) {
+                Entry entry = new Entry();
+                entry.request = _itemIt.next();
+                add(entry);
+                try {
+                    JsonObject item = toJson(entry.request);
+                    if (options != null) {
+                        JsonArray cached = lookup(entry, options, item);
+                        if (cached != null) {
+                            entry.future = PredictionCache.completed(cached);
+                            dispatched(entry);
+                            continue;
+                        }
+                    }
+                    entry.index = batch.size();
+                    batch.add(entry);
+                    items.add(item);
+                    estimatedSize += Util.estimateSizeOfJson(item);
+                } catch (IOException ex) {
+                    entry.future = HttpFuture.wrap(HttpIssueError.wrap(ex));
+                    dispatched(entry);
+                }
+            }
+
+            if (batch.isEmpty()) return;
+            JsonObject body = requestOptions().add("documents", items).build();
+            HttpFuture<JsonValue> future = send(body);
+            for (Entry entry : batch) {
+                entry.future = future;
+                dispatched(entry);
+            }
+        }
+
+        /**
+         * Returns a builder for a prediction request body, with the
+         * options shared by every item.
+         */
+        private JsonObjectBuilder requestOptions() {
             JsonObjectBuilder bldr = JSON_BF.createObjectBuilder()
                 .add("threshold", _predictionThreshold);
-            JsonObject body = null;
 
             if (_includeFeatures) {
                 bldr.add("features", true);
                 bldr.add("feature_threshold", _featureThreshold);
             }
+            return bldr;
+        }
+
+        /**
+         * Returns the JSON that identifies an item to predict.
+         */
+        private JsonObject toJson(DocumentContent content) throws IOException {
+            JsonObjectBuilder bldr = JSON_BF.createObjectBuilder();
 
             if (content instanceof Document) {
                 /* for Document objects in the same collection as the task,
@@ -199,30 +462,65 @@ class PredictionIterableNontrivial<T extends Prediction<T>>
                  * present on the server to use this path. */
                 Document doc = (Document)content;
                 if (doc.getCollection().equals(_target.getCollection()))
-                    body = bldr.add("document", doc.getName()).build();
-            }
-
-            if (body == null) {
-                // fallback to ephemeral predictions
-                try {
-                    bldr.add("content", content.getContent());
-                    JsonObject metadata = content.getMetadata();
-                    if (metadata != null) bldr.add("metadata", metadata);
-                    body = bldr.build();
-                } catch (IOException ex) {
-                    return HttpFuture.wrap(HttpIssueError.wrap(ex));
-                }
+                    return bldr.add("document", doc.getName()).build();
             }
 
-            return _target.getInterface().httpGet(_target.getEndpoint(), body);
+            // fallback to ephemeral predictions
+            bldr.add("content", content.getContent());
+            JsonObject metadata = content.getMetadata();
+            if (metadata != null) bldr.add("metadata", metadata);
+            return bldr.build();
         }
 
         private final Iterator<? extends DocumentContent> _itemIt;
-        private final LinkedList<Entry> _queue;
+
+        /* cache used for this iteration (if any), and the version of the
+         * task, which is loaded on the first lookup */
+        private PredictionCache _iterCache;
+        private String _version;
+
+        // In-flight requests shared by this iteration, if any
+        private final InFlightRequests _iterFlights;
+
+        // True if results are returned in the same order as the items
+        private final boolean _ordered;
+
+        // Outstanding entries, in order (ordered mode)
+        private final LinkedList<Entry> _queue = new LinkedList<>();
+
+        // Outstanding entries (unordered mode)
+        private final Set<Entry> _outstanding = new LinkedHashSet<>();
+
+        // Entries whose requests completed, in completion order
+        private final BlockingQueue<Entry> _completed =
+            new LinkedBlockingQueue<>();
     }
 
     private static class Entry {
         HttpFuture<JsonValue> future;
         DocumentContent request;
+
+        // Position of the item in a batched request, or -1 if unbatched
+        int index = -1;
+
+        // Key to cache the result under, or null if it isn't cached
+        PredictionCache.Key key;
+
+        /**
+         * Waits for the prediction result for this item.
+         */
+        Either<IOException, JsonArray> result() {
+            Either<IOException, JsonArray> result =
+                future.getAs(JsonArray.class);
+            if (index < 0 || result.isLeft()) return result;
+
+            JsonArray batch = result.right;
+            if (index >= batch.size() ||
+                  !(batch.get(index) instanceof JsonArray)) {
+                return Either.left(new IOException(
+                    "Missing prediction in batch response"));
+            }
+            return Either.right(batch.getJsonArray(index));
+        }
     }
 }
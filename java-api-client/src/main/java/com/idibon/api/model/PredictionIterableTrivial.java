@@ -10,7 +10,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.NoSuchElementException;
 import java.util.Iterator;
 import javax.json.*;
+import com.idibon.api.util.Adapters;
 import com.idibon.api.util.Either;
+import com.idibon.api.util.Splittable;
 
 /**
  * Generates predictions for one or more predictable items.
@@ -56,6 +58,57 @@ class PredictionIterableTrivial<T extends Prediction<T>>
         return this;
     }
 
+    /**
+     * Trivial predictions never call the API, so batching has no effect.
+     *
+     * @return This
+     */
+    public PredictionIterableTrivial<T> inBatches(int maxItems) {
+        if (maxItems < 1)
+            throw new IllegalArgumentException("Invalid batch size");
+        return this;
+    }
+
+    /**
+     * Trivial predictions are available immediately, so they are always
+     * returned in order.
+     *
+     * @return This
+     */
+    public PredictionIterableTrivial<T> unordered() {
+        return this;
+    }
+
+    /**
+     * Starts generating the predictions, and returns them as a Splittable.
+     *
+     * @return The predictions
+     */
+    public Splittable<Either<APIFailure<DocumentContent>, T>> splittable() {
+        long size = Util.sizeOf(_items);
+        return Adapters.toSplittable(this, size, size != Long.MAX_VALUE);
+    }
+
+    /**
+     * Trivial predictions never call the API, so they are never cached.
+     *
+     * @return This
+     */
+    public PredictionIterableTrivial<T> withCache(PredictionCache cache) {
+        return this;
+    }
+
+    /**
+     * Trivial predictions never call the API, so there are no requests to
+     * share.
+     *
+     * @return This
+     */
+    public PredictionIterableTrivial<T> withCoalescing(
+          InFlightRequests requests) {
+        return this;
+    }
+
     /**
      * Used in the case of Trivial Clarabridge Rules.
      * @param clazz
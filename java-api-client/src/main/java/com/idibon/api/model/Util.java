@@ -315,6 +315,15 @@ final class Util {
         return sizeOf;
     }
 
+    /**
+     * Returns the number of items in an Iterable, or Long.MAX_VALUE if it
+     * is not a java.util.Collection.
+     */
+    static long sizeOf(Iterable<?> items) {
+        return items instanceof java.util.Collection ?
+            ((java.util.Collection<?>)items).size() : Long.MAX_VALUE;
+    }
+
     /**
      * Parses an ISO-8601-formatted string into a Java Date instance.
      */
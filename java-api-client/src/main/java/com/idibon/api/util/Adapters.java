@@ -5,6 +5,7 @@ package com.idibon.api.util;
 
 import java.util.NoSuchElementException;
 import java.util.Iterator;
+import java.util.concurrent.Executor;
 import javax.json.JsonObject;
 import com.idibon.api.model.*;
 
@@ -168,6 +169,73 @@ public final class Adapters {
         };
     }
 
+    /**
+     * Publishes the results of an Iterable (for example, a
+     * {@link com.idibon.api.model.DocumentSearcher}, a
+     * {@link com.idibon.api.model.PredictionIterable} or the
+     * acknowledgements from
+     * {@link com.idibon.api.model.Collection#uploadDocuments}) to reactive
+     * subscribers.
+     *
+     * Results are only pulled from the iterator as subscribers request
+     * them, so a slow subscriber stops the underlying API requests once
+     * the iterator's read-ahead is full, instead of results being buffered
+     * without limit. Each subscriber starts a new iteration.
+     *
+     * @param results The results to publish
+     * @return A publisher that pulls results on a shared thread pool
+     */
+    public static <T> Flow.Publisher<T> toPublisher(
+          Iterable<? extends T> results) {
+        return toPublisher(results, IterablePublisher.DefaultExecutor.POOL);
+    }
+
+    /**
+     * Publishes the results of an Iterable to reactive subscribers,
+     * pulling results on the provided executor.
+     *
+     * @param results The results to publish
+     * @param executor Runs the (blocking) iteration
+     * @return A publisher for the results
+     */
+    public static <T> Flow.Publisher<T> toPublisher(
+          Iterable<? extends T> results, Executor executor) {
+        return new IterablePublisher<T>(results, executor);
+    }
+
+    /**
+     * Returns the results of an Iterable (for example, a
+     * {@link com.idibon.api.model.DocumentSearcher}) as a
+     * {@link com.idibon.api.util.Splittable}, so that they can be
+     * processed on several threads while the iterator keeps its API
+     * requests in flight. Starts a new iteration.
+     *
+     * @param results The results to split
+     * @return A Splittable over the results, with an unknown size
+     */
+    public static <T> Splittable<T> toSplittable(
+          Iterable<? extends T> results) {
+        return toSplittable(results, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * Returns the results of an Iterable as a
+     * {@link com.idibon.api.util.Splittable}, with a known or estimated
+     * number of results. Starts a new iteration.
+     *
+     * @param results The results to split
+     * @param estimate The number of results, or an upper bound if
+     *        <tt>sized</tt> is false; Long.MAX_VALUE if unknown
+     * @param sized True if the estimate is exact
+     * @return A Splittable over the results
+     */
+    public static <T> Splittable<T> toSplittable(
+          Iterable<? extends T> results, long estimate, boolean sized) {
+        if (estimate < 0)
+            throw new IllegalArgumentException("estimate may not be negative");
+        return new IterableSplitter<T>(results.iterator(), estimate, sized);
+    }
+
     /**
      * Simple facade to return a CharSequence as unnamed DocumentContent
      */
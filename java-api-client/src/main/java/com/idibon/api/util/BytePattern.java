@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.util;
+
+import java.util.Arrays;
+
+/**
+ * A byte sequence prepared for repeated searches through large buffers,
+ * such as the boundary marker of a multipart response.
+ *
+ * Searches use the Boyer-Moore-Horspool algorithm, which typically skips
+ * over most of the searched bytes when the pattern is longer than a few
+ * bytes. The pre-computed skip table is shared by every search, so a
+ * pattern should be constructed once and reused.
+ */
+public final class BytePattern {
+
+    /**
+     * @param sequence The byte sequence to search for
+     */
+    public BytePattern(byte[] sequence) {
+        if (sequence.length == 0)
+            throw new IllegalArgumentException("Empty sequence");
+
+        _sequence = sequence.clone();
+        _skip = new int[256];
+        /* a mismatched byte that doesn't appear in the pattern allows the
+         * search to skip the entire pattern length; otherwise, shift so that
+         * the last occurrence of the byte (excluding the final position)
+         * aligns with the mismatch. */
+        Arrays.fill(_skip, _sequence.length);
+        for (int i = 0; i < _sequence.length - 1; i++)
+            _skip[_sequence[i] & 0xff] = _sequence.length - 1 - i;
+    }
+
+    /**
+     * Returns the length of the pattern.
+     */
+    public int length() {
+        return _sequence.length;
+    }
+
+    /**
+     * Returns the first index in the range [from, to) of the buffer where
+     * the entire pattern appears, or -1 if it is not found.
+     *
+     * @param buf The buffer to search
+     * @param from The first index to search
+     * @param to The end of the searched range (exclusive)
+     */
+    public int search(byte[] buf, int from, int to) {
+        final int last = _sequence.length - 1;
+        for (int i = Math.max(from, 0); i <= to - _sequence.length; ) {
+            byte tail = buf[i + last];
+            if (tail == _sequence[last]) {
+                int j = last - 1;
+                while (j >= 0 && buf[i + j] == _sequence[j]) j--;
+                if (j < 0) return i;
+            }
+            i += _skip[tail & 0xff];
+        }
+        return -1;
+    }
+
+    /// The byte sequence to locate
+    private final byte[] _sequence;
+
+    /// Distance to shift the search, indexed by the last compared byte
+    private final int[] _skip;
+}
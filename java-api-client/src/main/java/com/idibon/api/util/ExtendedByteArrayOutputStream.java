@@ -5,6 +5,7 @@ package com.idibon.api.util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * This class adds a number of data processing facilities useful for
@@ -49,6 +50,18 @@ public class ExtendedByteArrayOutputStream extends ByteArrayOutputStream {
         return -1;
     }
 
+    /**
+     * Returns the first index at or after the provided start position where
+     * the pattern appears, or -1 if the pattern does not appear. Prefer this
+     * to indexOf(byte[], int) when searching a large stream repeatedly.
+     *
+     * @param pattern Byte sequence to locate
+     * @param startPos The index to start the search from
+     */
+    public int indexOf(BytePattern pattern, int startPos) {
+        return pattern.search(this.buf, startPos, this.count);
+    }
+
     /**
      * Returns true if the output stream ends with the provided byte sequence
      *
@@ -80,6 +93,15 @@ public class ExtendedByteArrayOutputStream extends ByteArrayOutputStream {
         return this.new SliceInputStream(index, length);
     }
 
+    /**
+     * Returns a read-only ByteBuffer view of the data that has been output
+     * to this stream, without copying it. The view is invalidated by any
+     * subsequent modification of the stream.
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(this.buf, 0, this.count).asReadOnlyBuffer();
+    }
+
     /**
      * Drops the first lengthToDrop bytes from the output
      *
@@ -115,11 +137,18 @@ public class ExtendedByteArrayOutputStream extends ByteArrayOutputStream {
                 return -1;
 
             int limit = Math.min(available(), len);
-            for (int i = 0; i < limit; )
-                b[i++] = ExtendedByteArrayOutputStream.this.buf[_cursor++];
+            System.arraycopy(ExtendedByteArrayOutputStream.this.buf, _cursor,
+                             b, off, limit);
+            _cursor += limit;
             return limit;
         }
 
+        @Override public long skip(long n) {
+            long skipped = Math.max(0, Math.min(available(), n));
+            _cursor += (int)skipped;
+            return skipped;
+        }
+
         @Override public int available() {
             return Math.max(0, _limit - _cursor);
         }
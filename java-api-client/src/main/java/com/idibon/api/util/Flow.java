@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.util;
+
+/**
+ * Interfaces for demand-driven (reactive) streams of results, with the
+ * same shape and contract as the Reactive Streams specification and
+ * java.util.concurrent.Flow. They are declared here so that the library
+ * can continue to run on Java 7; adapting them to another reactive
+ * library is a matter of forwarding each method.
+ *
+ * See {@link com.idibon.api.util.Adapters#toPublisher(Iterable)}.
+ */
+public final class Flow {
+
+    /**
+     * A source of items that are sent to each subscriber only as fast as
+     * the subscriber requests them.
+     */
+    public interface Publisher<T> {
+        /**
+         * Adds a subscriber. The subscriber's onSubscribe method is called
+         * before any other signal.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives items from a Publisher. All of the methods are called
+     * serially, never concurrently.
+     */
+    public interface Subscriber<T> {
+        /**
+         * Called first, with the subscription used to request items.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next item, once for each item requested.
+         */
+        void onNext(T item);
+
+        /**
+         * Called if the publisher failed. No further signals follow.
+         */
+        void onError(Throwable error);
+
+        /**
+         * Called after the last item. No further signals follow.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a Publisher and one Subscriber.
+     */
+    public interface Subscription {
+        /**
+         * Requests up to n more items. Long.MAX_VALUE requests all items.
+         *
+         * @param n Number of items to add to the demand, must be positive
+         */
+        void request(long n);
+
+        /**
+         * Stops sending items. Items may still be sent briefly afterwards.
+         */
+        void cancel();
+    }
+
+    private Flow() { }
+}
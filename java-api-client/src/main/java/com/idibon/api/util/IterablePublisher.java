@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.util;
+
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the items returned by an Iterable, pulling each item only
+ * once a subscriber has requested it. Each subscriber receives items
+ * from its own iterator, which is created when the subscriber first
+ * requests an item.
+ *
+ * Iterators in this library block while waiting for the API server, so
+ * items are pulled on an executor rather than the subscriber's thread.
+ */
+final class IterablePublisher<T> implements Flow.Publisher<T> {
+
+    IterablePublisher(Iterable<? extends T> source, Executor executor) {
+        _source = source;
+        _executor = executor;
+    }
+
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber");
+        new IterSubscription<T>(_source, _executor, subscriber).start();
+    }
+
+    /**
+     * Delivers the items from one iterator to one subscriber. Signals are
+     * only sent from drain, and at most one thread drains at a time.
+     */
+    private static class IterSubscription<T>
+          implements Flow.Subscription, Runnable {
+
+        IterSubscription(Iterable<? extends T> source, Executor executor,
+              Flow.Subscriber<? super T> subscriber) {
+            _source = source;
+            _executor = executor;
+            _subscriber = subscriber;
+        }
+
+        /**
+         * Calls onSubscribe from the drain loop, so that requests made
+         * by the subscriber during onSubscribe don't overlap it.
+         */
+        void start() {
+            _work.incrementAndGet();
+            execute();
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                _invalidRequest = true;
+            } else {
+                long current, next;
+                do {
+                    current = _demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!_demand.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        public void cancel() {
+            _cancelled = true;
+            schedule();
+        }
+
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = _work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void schedule() {
+            if (_work.getAndIncrement() == 0) execute();
+        }
+
+        private void execute() {
+            try {
+                _executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                _cancelled = true;
+                if (_finished) return;
+                _finished = true;
+                if (!_subscribed) {
+                    // not yet subscribed, so the executor is unusable
+                    _subscribed = true;
+                    _subscriber.onSubscribe(this);
+                }
+                _subscriber.onError(ex);
+            }
+        }
+
+        /**
+         * Sends as many items as the subscriber has requested.
+         */
+        private void drain() {
+            if (!_subscribed) {
+                _subscribed = true;
+                _subscriber.onSubscribe(this);
+            }
+            if (_finished) return;
+            if (_cancelled) {
+                finish();
+                return;
+            }
+            if (_invalidRequest) {
+                finish();
+                _subscriber.onError(new IllegalArgumentException(
+                    "Requested a non-positive number of items"));
+                return;
+            }
+
+            try {
+                if (_demand.get() > 0 && _iterator == null)
+                    _iterator = _source.iterator();
+
+                while (_demand.get() > 0 && !_cancelled) {
+                    if (!_iterator.hasNext()) {
+                        finish();
+                        _subscriber.onComplete();
+                        return;
+                    }
+                    T item = _iterator.next();
+                    if (_demand.get() != Long.MAX_VALUE)
+                        _demand.decrementAndGet();
+                    _subscriber.onNext(item);
+                }
+            } catch (RuntimeException ex) {
+                finish();
+                _subscriber.onError(ex);
+            }
+        }
+
+        /**
+         * Releases the iterator once no more signals will be sent.
+         */
+        private void finish() {
+            _finished = true;
+            _iterator = null;
+        }
+
+        private final Iterable<? extends T> _source;
+        private final Executor _executor;
+        private final Flow.Subscriber<? super T> _subscriber;
+
+        /// Items requested by the subscriber but not yet sent
+        private final AtomicLong _demand = new AtomicLong();
+
+        /// Number of times drain has been requested since it last ran
+        private final AtomicInteger _work = new AtomicInteger();
+
+        private volatile boolean _cancelled;
+        private volatile boolean _invalidRequest;
+
+        /// True once onComplete or onError was sent, or after cancellation
+        private volatile boolean _finished;
+
+        /// Only accessed from the drain loop
+        private Iterator<? extends T> _iterator;
+        private boolean _subscribed;
+    }
+
+    private final Iterable<? extends T> _source;
+    private final Executor _executor;
+
+    /**
+     * Shared threads used when no executor is provided.
+     */
+    static class DefaultExecutor {
+        static final ExecutorService POOL = Executors.newCachedThreadPool(
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "idibon-publisher");
+                t.setDaemon(true);
+                return t;
+            }
+          });
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Splits the items returned by an Iterator into batches. Each split reads
+ * the next batch of items into an array, so the thread that splits waits
+ * for the API results in the batch while the underlying iterator keeps
+ * its read-ahead requests in flight, and the batch can be processed on
+ * another thread. Successive batches grow, as in the JDK's
+ * Spliterators.spliteratorUnknownSize, but start much smaller, since
+ * each API result is usually processed individually.
+ */
+final class IterableSplitter<T> implements Splittable<T> {
+
+    /**
+     * @param source The items to split
+     * @param estimate Number of items, an upper bound on the number of
+     *        items, or Long.MAX_VALUE if unknown
+     * @param sized True if the estimate is exact
+     */
+    IterableSplitter(Iterator<? extends T> source, long estimate,
+          boolean sized) {
+        _source = source;
+        _estimate = estimate;
+        _sized = sized && estimate != Long.MAX_VALUE;
+    }
+
+    public Splittable<T> trySplit() {
+        if (!hasNext()) return null;
+
+        int n = Math.min(_batch + BATCH_UNIT, MAX_BATCH);
+        /* never take more than half of a known (or bounded) number of
+         * items, so that small result sets still split */
+        if (_estimate != Long.MAX_VALUE)
+            n = (int)Math.max(1, Math.min(n, _estimate / 2));
+
+        Object[] items = new Object[n];
+        int count = 0;
+        while (count < n && _source.hasNext()) items[count++] = next();
+        _batch = count;
+
+        @SuppressWarnings("unchecked")
+        Iterator<T> it = (Iterator<T>)Arrays.asList(items)
+            .subList(0, count).iterator();
+        return new IterableSplitter<T>(it, count, true);
+    }
+
+    public long estimateSize() {
+        return _estimate;
+    }
+
+    public boolean isSized() {
+        return _sized;
+    }
+
+    public boolean hasNext() {
+        if (_source.hasNext()) return true;
+        _estimate = 0;
+        return false;
+    }
+
+    public T next() {
+        T item = _source.next();
+        if (_estimate != Long.MAX_VALUE && _estimate > 0) _estimate--;
+        return item;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /// Growth in the size of each successive batch
+    static final int BATCH_UNIT = 16;
+
+    /// Largest batch
+    static final int MAX_BATCH = 1 << 12;
+
+    private final Iterator<? extends T> _source;
+    private final boolean _sized;
+    private long _estimate;
+
+    /// Size of the last batch split off
+    private int _batch;
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.util;
+
+import java.util.Iterator;
+
+/**
+ * An Iterator that can hand off a prefix of its remaining items, so that
+ * the items can be processed on several threads. This has the same shape
+ * and contract as java.util.Spliterator, and is declared here so that the
+ * library can continue to run on Java 7. On Java 8 and later, a
+ * Spliterator that forwards tryAdvance to hasNext and next, and trySplit,
+ * estimateSize and characteristics (SIZED when {@link #isSized} is true)
+ * to this interface, lets StreamSupport.stream(spliterator, true) process
+ * the results in parallel.
+ *
+ * Like a Spliterator, a Splittable is not thread-safe: each instance is
+ * used by one thread at a time, but the instances returned from
+ * {@link #trySplit} are independent and may be used concurrently.
+ *
+ * See {@link com.idibon.api.util.Adapters#toSplittable(Iterable)}.
+ */
+public interface Splittable<T> extends Iterator<T> {
+
+    /**
+     * Removes some of the next items from this Splittable and returns
+     * them as a new one, or returns null if no items remain.
+     */
+    Splittable<T> trySplit();
+
+    /**
+     * Returns the number of items remaining, or an upper bound if
+     * {@link #isSized} is false. Returns Long.MAX_VALUE if the number of
+     * items is unknown.
+     */
+    long estimateSize();
+
+    /**
+     * Returns true if {@link #estimateSize} is exact.
+     */
+    boolean isSized();
+}
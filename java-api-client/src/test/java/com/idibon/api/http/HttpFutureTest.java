@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.json.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import com.idibon.api.util.Either;
+
+public class HttpFutureTest {
+
+    private static ListenableTask<JsonValue> returning(final JsonValue v) {
+        return new ListenableTask<>(new Callable<JsonValue>() {
+            public JsonValue call() {
+                return v;
+            }
+        });
+    }
+
+    private static ListenableTask<JsonValue> failing(final IOException e) {
+        return new ListenableTask<>(new Callable<JsonValue>() {
+            public JsonValue call() throws IOException {
+                throw e;
+            }
+        });
+    }
+
+    private static HttpFuture.Callback<JsonValue> into(
+          final AtomicReference<Either<IOException, JsonValue>> ref) {
+        return new HttpFuture.Callback<JsonValue>() {
+            public void completed(Either<IOException, JsonValue> result) {
+                ref.set(result);
+            }
+        };
+    }
+
+    @Test public void testOnComplete() throws Exception {
+        ListenableTask<JsonValue> task = returning(JsonValue.TRUE);
+        AtomicReference<Either<IOException, JsonValue>> result =
+            new AtomicReference<>();
+        HttpFuture.wrap(task).onComplete(into(result));
+        assertThat(result.get(), is(nullValue()));
+        task.run();
+        assertThat(result.get().right, is(JsonValue.TRUE));
+
+        // callbacks added after completion run immediately
+        AtomicReference<Either<IOException, JsonValue>> late =
+            new AtomicReference<>();
+        HttpFuture.wrap(task).onComplete(into(late));
+        assertThat(late.get().right, is(JsonValue.TRUE));
+    }
+
+    @Test public void testThenApply() throws Exception {
+        ListenableTask<JsonValue> task = returning(JsonValue.TRUE);
+        Either.Fold<JsonValue, JsonValue> negate =
+          new Either.Fold<JsonValue, JsonValue>() {
+            public JsonValue fold(JsonValue v) {
+                return v == JsonValue.TRUE ? JsonValue.FALSE : JsonValue.TRUE;
+            }
+          };
+        HttpFuture<JsonValue> negated = HttpFuture.wrap(task).thenApply(negate);
+        assertFalse(negated.isDone());
+        task.run();
+        assertThat(negated.get().right, is(JsonValue.FALSE));
+
+        // errors skip the transform
+        IOException error = new IOException("failed");
+        ListenableTask<JsonValue> broken = failing(error);
+        negated = HttpFuture.wrap(broken).thenApply(negate);
+        broken.run();
+        assertThat(negated.get().left, is(sameInstance(error)));
+    }
+
+    @Test public void testThenCompose() throws Exception {
+        ListenableTask<JsonValue> first = returning(JsonValue.TRUE);
+        final ListenableTask<JsonValue> second = returning(JsonValue.FALSE);
+        HttpFuture<JsonValue> chained = HttpFuture.wrap(first).thenCompose(
+          new Either.Fold<JsonValue, HttpFuture<JsonValue>>() {
+            public HttpFuture<JsonValue> fold(JsonValue v) {
+                return HttpFuture.wrap(second);
+            }
+          });
+        first.run();
+        assertFalse(chained.isDone());
+        second.run();
+        assertThat(chained.get().right, is(JsonValue.FALSE));
+    }
+
+    @Test public void testCancellation() throws Exception {
+        ListenableTask<JsonValue> first = returning(JsonValue.TRUE);
+        final ListenableTask<JsonValue> second = returning(JsonValue.FALSE);
+        HttpFuture<JsonValue> chained = HttpFuture.wrap(first).thenCompose(
+          new Either.Fold<JsonValue, HttpFuture<JsonValue>>() {
+            public HttpFuture<JsonValue> fold(JsonValue v) {
+                return HttpFuture.wrap(second);
+            }
+          });
+        first.run();
+        // cancels the outstanding follow-up request
+        assertTrue(chained.cancel(false));
+        assertTrue(second.isCancelled());
+        assertThat(chained.get().left.getMessage(), is("Operation cancelled"));
+    }
+
+    @Test public void testPlainFuture() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            Future<JsonValue> base = executor.submit(new Callable<JsonValue>() {
+                public JsonValue call() throws Exception {
+                    release.await();
+                    return JsonValue.TRUE;
+                }
+            });
+            final CountDownLatch called = new CountDownLatch(1);
+            HttpFuture.wrap(base).onComplete(new HttpFuture.Callback<JsonValue>() {
+                public void completed(Either<IOException, JsonValue> result) {
+                    if (result.isRight()) called.countDown();
+                }
+            });
+            release.countDown();
+            assertTrue(called.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+public class InMemoryMetricsTest {
+
+    private static RequestMetrics request(String endpoint, int status,
+          long millis) {
+        return new RequestMetrics("GET", endpoint, status,
+            status == 200 ? null : new IOException("failed"), 0,
+            TimeUnit.MILLISECONDS.toNanos(millis), 10, 100, 0);
+    }
+
+    @Test public void testTemplates() {
+        assertThat(RequestMetrics.templateOf("/"), is("/"));
+        assertThat(RequestMetrics.templateOf("/General"),
+                   is("/{collection}"));
+        assertThat(RequestMetrics.templateOf("/General/*"),
+                   is("/{collection}/*"));
+        assertThat(RequestMetrics.templateOf("/General/Politics?x=1"),
+                   is("/{collection}/{name}"));
+        assertThat(RequestMetrics.templateOf("/General/Politics/a/b"),
+                   is("/{collection}/{name}/{id}/{id}"));
+    }
+
+    @Test public void testTotals() {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        metrics.requestCompleted(request("/a/one", 200, 1));
+        metrics.requestCompleted(request("/b/two", 200, 40));
+        metrics.requestCompleted(request("/c/three", 503, 40));
+        metrics.requestCompleted(request("/c/*", 200, 1));
+
+        assertThat(metrics.getEndpointTemplates(),
+                   contains("/{collection}/*", "/{collection}/{name}"));
+        InMemoryMetrics.Endpoint e =
+            metrics.getEndpoint("/{collection}/{name}");
+        assertThat(e.getRequests(), is(3L));
+        assertThat(e.getErrors(), is(1L));
+        assertThat(e.getRequestBytes(), is(30L));
+        assertThat(e.getResponseBytes(), is(300L));
+        assertThat(e.getStatusCounts().get(200), is(2L));
+        assertThat(e.getStatusCounts().get(503), is(1L));
+        assertThat(e.getLatencyPercentile(30.0), is(5L));
+        assertThat(e.getLatencyPercentile(99.0), is(50L));
+
+        metrics.requestCompleted(new RequestMetrics("GET", "/a/one", 200,
+            null, 0, 0, 0, 0, 0, 0, new long[] { -1, 1000, -1, 2000 }));
+        assertThat(e.getPhaseCount(RequestMetrics.Phase.Connect), is(1L));
+        assertThat(e.getTotalPhaseTime(RequestMetrics.Phase.Send,
+            TimeUnit.MICROSECONDS), is(2L));
+        assertThat(e.getPhaseCount(RequestMetrics.Phase.Handshake), is(0L));
+        assertThat(e.getPhaseCount(RequestMetrics.Phase.Queue), is(4L));
+
+        String text = metrics.toString();
+        assertThat(text, containsString(
+            "idibon_requests_total{endpoint=\"/{collection}/{name}\"} 4\n"));
+        assertThat(text, containsString(
+            "idibon_responses_total{endpoint=\"/{collection}/{name}\"," +
+            "status=\"503\"} 1\n"));
+
+        metrics.reset();
+        assertThat(metrics.getEndpointTemplates(), is(empty()));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+public class RetryPolicyTest {
+
+    private static HttpException status(int code) throws Exception {
+        return new HttpException(new URL("http://localhost/"), code, "",
+                                 null, null);
+    }
+
+    @Test public void testRetryableErrors() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.shouldRetry("GET", 1, status(503)));
+        assertTrue(policy.shouldRetry("DELETE", 2, status(502)));
+        assertFalse(policy.shouldRetry("GET", 3, status(503)));
+        assertFalse(policy.shouldRetry("GET", 1, status(500)));
+        assertFalse(policy.shouldRetry("GET", 1, status(404)));
+        assertTrue(policy.shouldRetry("PUT", 1, new EOFException()));
+        assertTrue(policy.shouldRetry("GET", 1, new SocketTimeoutException()));
+        assertFalse(policy.shouldRetry("GET", 1, new InterruptedIOException()));
+
+        assertFalse(policy.shouldRetry("POST", 1, status(503)));
+        policy.retryNonIdempotent(true).retryOnStatus(500);
+        assertTrue(policy.shouldRetry("POST", 1, status(500)));
+        assertFalse(policy.shouldRetry("POST", 1, status(503)));
+    }
+
+    @Test public void testBackoff() {
+        RetryPolicy policy = new RetryPolicy().backoff(100, 1000).jitter(0);
+        assertThat(policy.delay(1), is(100L));
+        assertThat(policy.delay(2), is(200L));
+        assertThat(policy.delay(4), is(800L));
+        assertThat(policy.delay(5), is(1000L));
+        assertThat(policy.delay(100), is(1000L));
+
+        policy.jitter(0.5);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.delay(3);
+            assertThat(delay, is(both(greaterThanOrEqualTo(200L))
+                                 .and(lessThanOrEqualTo(400L))));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import com.idibon.api.http.HttpException;
+
+public class AdaptiveLimitTest {
+
+    private static final long MS = 1000000;
+
+    private static final String GET =
+        HttpSupport.requestClass("GET", "/C/T", 200);
+    private static final String BATCH =
+        HttpSupport.requestClass("GET", "/C/T", 20000);
+
+    @Test public void testGrowsWhileServerKeepsUp() {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 20, 4);
+        for (int i = 0; i < 1000; i++)
+            limit.onSuccess(GET, 10 * MS, limit.getLimit());
+        assertThat(limit.getLimit(), is(20));
+    }
+
+    @Test public void testIdleWindowDoesNotGrow() {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 20, 10);
+        for (int i = 0; i < 1000; i++)
+            assertFalse(limit.onSuccess(GET, 10 * MS, 1));
+        assertThat(limit.getLimit(), is(10));
+    }
+
+    @Test public void testShrinksWhenLatencyGrows() throws Exception {
+        AdaptiveLimit limit = new AdaptiveLimit(2, 20, 20);
+        for (int i = 0; i < 10; i++)
+            limit.onSuccess(GET, 1 * MS, 20);
+        // requests start to queue at the server
+        for (int i = 0; i < 50; i++) {
+            limit.onSuccess(GET, 20 * MS, 20);
+            Thread.sleep(1);
+        }
+        assertThat(limit.getLimit(), is(lessThan(20)));
+        assertThat(limit.getLimit(), is(greaterThanOrEqualTo(2)));
+    }
+
+    @Test public void testMixedRequestsAtConstantLoad() throws Exception {
+        AdaptiveLimit limit = new AdaptiveLimit(2, 20, 10);
+        // fast single predictions interleaved with slow batch predictions
+        for (int i = 0; i < 100; i++) {
+            limit.onSuccess(GET, 1 * MS, limit.getLimit());
+            limit.onSuccess(BATCH, 20 * MS, limit.getLimit());
+            Thread.sleep(1);
+        }
+        assertThat(limit.getLimit(), is(greaterThanOrEqualTo(10)));
+    }
+
+    @Test public void testShrinksOnOverload() throws Exception {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 20, 16);
+        URL url = new URL("http://localhost/");
+        assertFalse(limit.onFailure(
+            new HttpException(url, 404, "", null, null)));
+        assertTrue(limit.onFailure(
+            new HttpException(url, 429, "", null, null)));
+        assertThat(limit.getLimit(), is(8));
+        // further failures from the same round trip are ignored
+        limit.onFailure(new HttpException(url, 503, "", null, null));
+        assertThat(limit.getLimit(), is(8));
+        assertFalse(limit.onFailure(new IOException("reset")));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.io.IOException;
+import java.util.*;
+import javax.json.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+public class ChunkSplitterTest {
+
+    /**
+     * Builds a multipart body with the requested number of chunks, each
+     * padded with roughly the requested number of bytes of text.
+     */
+    private static byte[] multipart(String boundary, int chunks, int padding)
+          throws IOException {
+        StringBuilder pad = new StringBuilder();
+        while (pad.length() < padding) pad.append("lorem ipsum -- ");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < chunks; i++) {
+            body.append("{\"i\":").append(i).append(",\"text\":\"")
+                .append(pad).append("\"}--").append(boundary);
+        }
+        return body.append("--").toString().getBytes("UTF-8");
+    }
+
+    private static class Collector implements ChunkSplitter.Listener {
+        public void chunk(JsonValue value) {
+            chunks.add(((JsonObject)value).getInt("i"));
+        }
+        final List<Integer> chunks = new ArrayList<>();
+    }
+
+    @Test public void testBoundarySplitAcrossWrites() throws Exception {
+        String boundary = "0123456789abcdefghijklmnopqrstuvwxyz";
+        byte[] body = multipart(boundary, 20, 100);
+
+        // every possible split of the boundary between 2 writes is tested
+        for (int size = 1; size <= boundary.length() + 3; size++) {
+            Collector collector = new Collector();
+            ChunkSplitter splitter = new ChunkSplitter(boundary, collector);
+            for (int i = 0; i < body.length; i += size)
+                splitter.write(body, i, Math.min(size, body.length - i));
+            splitter.finish();
+            assertThat(collector.chunks.size(), is(20));
+            assertThat(collector.chunks.get(19), is(19));
+        }
+    }
+
+    @Test public void testLargeChunks() throws Exception {
+        // a few multi-megabyte chunks, fed in typical socket-sized reads
+        String boundary = "---------------------------9051914041544843365972754266";
+        byte[] body = multipart(boundary, 3, 2 << 20);
+
+        Collector collector = new Collector();
+        ChunkSplitter splitter = new ChunkSplitter(boundary, collector);
+        for (int i = 0; i < body.length; i += 4096)
+            splitter.write(body, i, Math.min(4096, body.length - i));
+        splitter.finish();
+        assertThat(collector.chunks, contains(0, 1, 2));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnterminatedStream() throws Exception {
+        ChunkSplitter splitter = new ChunkSplitter("BBB", new Collector());
+        splitter.write("{\"i\":0}--BBB{\"i\":1}".getBytes("UTF-8"));
+        splitter.finish();
+    }
+}
@@ -89,7 +89,7 @@ public class JdkHttpInterfaceIT {
 
     @Test public void handleChunkedInput() throws Exception {
         JdkHttpInterface intf = new JdkHttpInterface();
-        java.lang.reflect.Method method = JdkHttpInterface.class.
+        java.lang.reflect.Method method = HttpSupport.class.
             getDeclaredMethod("handleChunkedInput",
                               InputStream.class, String.class);
         method.setAccessible(true);
@@ -114,7 +114,7 @@ public class JdkHttpInterfaceIT {
     @Test(expected = IOException.class)
     public void handleBadChunkedInput() throws Throwable {
         JdkHttpInterface intf = new JdkHttpInterface();
-        java.lang.reflect.Method method = JdkHttpInterface.class.
+        java.lang.reflect.Method method = HttpSupport.class.
             getDeclaredMethod("handleChunkedInput",
                               InputStream.class, String.class);
         method.setAccessible(true);
@@ -3,13 +3,32 @@
  */
 package com.idibon.api.http.impl;
 
+import java.io.*;
+import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.json.*;
+
+import com.sun.net.httpserver.*;
+
 import org.junit.*;
 
 import static org.junit.Assert.*;
 import static org.hamcrest.Matchers.*;
 
+import com.idibon.api.http.HttpException;
+import com.idibon.api.http.HttpFuture;
 import com.idibon.api.http.HttpInterface;
+import com.idibon.api.http.HttpStream;
+import com.idibon.api.http.HttpTimeoutException;
+import com.idibon.api.http.MetricsListener;
+import com.idibon.api.http.RequestMetrics;
+import com.idibon.api.http.RequestPriority;
+import com.idibon.api.http.RetryPolicy;
+import com.idibon.api.util.Either;
 
 public class JdkHttpInterfaceTest {
 
@@ -20,5 +39,520 @@ public class JdkHttpInterfaceTest {
         http.maxConnections(50);
         assertThat(http.getProperty(HttpInterface.Property.ParallelRequestLimit, -1),
                    is(equalTo(50)));
+        http.adaptiveConcurrency(1, 20);
+        assertThat(http.getProperty(HttpInterface.Property.ParallelRequestLimit, -1),
+                   is(equalTo(20)));
+    }
+
+    @Test public void testVirtualThreads() {
+        JdkHttpInterface http = new JdkHttpInterface();
+        try {
+            if (!JdkHttpInterface.virtualThreadsSupported()) {
+                try {
+                    http.withVirtualThreads();
+                    fail("Virtual threads enabled on an unsupported runtime");
+                } catch (UnsupportedOperationException _) { }
+                return;
+            }
+            try {
+                http.maxConnections(5000);
+                fail("Platform thread limit exceeded");
+            } catch (IllegalArgumentException _) { }
+            http.withVirtualThreads().maxConnections(5000);
+            assertThat(http.getProperty(HttpInterface.Property.ParallelRequestLimit, -1),
+                       is(5000));
+        } finally {
+            http.shutdown(0);
+        }
+    }
+
+    @Test public void testRequestBodies() throws Exception {
+        final List<String> encodings =
+            Collections.synchronizedList(new ArrayList<String>());
+
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        // echoes the request body
+        server.createContext("/echo", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                Headers headers = ex.getRequestHeaders();
+                encodings.add(headers.containsKey("Transfer-Encoding") ?
+                    "chunked" : headers.getFirst("Content-Length"));
+                if (headers.containsKey("Content-Encoding"))
+                    encodings.add(headers.getFirst("Content-Encoding"));
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                InputStream is = ex.getRequestBody();
+                if (headers.containsKey("Content-Encoding"))
+                    is = new GZIPInputStream(is);
+                for (int len = is.read(buffer); len != -1; len = is.read(buffer))
+                    body.write(buffer, 0, len);
+
+                String accept = headers.getFirst("Accept-Encoding");
+                if (accept != null && accept.contains("gzip")) {
+                    ex.getResponseHeaders().add("Content-Encoding", "gzip");
+                    ex.sendResponseHeaders(200, 0);
+                    try (OutputStream os = new GZIPOutputStream(
+                             ex.getResponseBody())) {
+                        body.writeTo(os);
+                    }
+                } else {
+                    ex.sendResponseHeaders(200, body.size());
+                    try (OutputStream os = ex.getResponseBody()) {
+                        body.writeTo(os);
+                    }
+                }
+            }
+        });
+        server.start();
+
+        JdkHttpInterface http = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + server.getAddress().getPort());
+        try {
+            JsonObject body = Json.createObjectBuilder()
+                .add("content", "hello").build();
+            assertThat(http.httpPost("/echo", body).get().right,
+                       is((JsonValue)body));
+
+            http.chunkedRequests(8);
+            assertThat(http.httpPost("/echo", body).get().right,
+                       is((JsonValue)body));
+
+            http.chunkedRequests(0).withCompression(1024);
+            assertThat(http.httpPost("/echo", body).get().right,
+                       is((JsonValue)body));
+
+            http.chunkedRequests(8);
+            assertThat(http.httpPost("/echo", body).get().right,
+                       is((JsonValue)body));
+
+            String length = Integer.toString(body.toString().length());
+            assertThat(encodings, contains(length, "chunked", length,
+                                           "chunked", "gzip"));
+
+            TransferStatistics stats = http.getTransferStatistics();
+            assertThat(stats.getRequestBytes(),
+                       is(4L * body.toString().length()));
+            assertThat(stats.getResponseBytes(),
+                       is(4L * body.toString().length()));
+        } finally {
+            http.shutdown(0);
+            server.stop(0);
+        }
+    }
+
+    @Test public void testStreamingResponse() throws Exception {
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/stream", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                ex.getResponseHeaders().add("Content-Type",
+                    "multipart/mixed; boundary=BBB");
+                ex.sendResponseHeaders(200, 0);
+                try (OutputStream os = ex.getResponseBody()) {
+                    for (int i = 0; i < 100; i++)
+                        os.write(("{\"i\":" + i + "}--BBB").getBytes("UTF-8"));
+                    os.write("--".getBytes("UTF-8"));
+                }
+            }
+        });
+        server.start();
+
+        JdkHttpInterface http = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + server.getAddress().getPort());
+        try {
+            HttpStream stream = http.httpGetStream("/stream", null);
+            int expected = 0;
+            while (stream.hasNext()) {
+                JsonObject item = (JsonObject)stream.next().right;
+                assertThat(item.getInt("i"), is(expected++));
+            }
+            assertThat(expected, is(100));
+
+            stream = http.httpGetStream("/missing", null);
+            assertThat(stream.next().left,
+                       is(instanceOf(HttpException.NotFound.class)));
+            assertFalse(stream.hasNext());
+        } finally {
+            http.shutdown(0);
+            server.stop(0);
+        }
+    }
+
+    @Test public void testRetries() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(2);
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/flaky", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                byte[] body = "{}".getBytes("UTF-8");
+                ex.getResponseHeaders().add("Content-Type", "application/json");
+                ex.sendResponseHeaders(
+                    failures.getAndDecrement() > 0 ? 503 : 200, body.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+
+        JdkHttpInterface http = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + server.getAddress().getPort())
+            .withRetryPolicy(new RetryPolicy().backoff(10, 10));
+        try {
+            assertTrue(http.httpGet("/flaky").get().isRight());
+            assertThat(http.getTransferStatistics().getRetries(), is(2L));
+
+            failures.set(1);
+            JsonObject body = Json.createObjectBuilder().build();
+            assertThat(http.httpPost("/flaky", body).get().left,
+                       is(instanceOf(HttpException.ServiceUnavailable.class)));
+            assertThat(http.getTransferStatistics().getRetries(), is(2L));
+        } finally {
+            http.shutdown(0);
+            server.stop(0);
+        }
+    }
+
+    @Test public void testAbandonEndsRetryDelay() throws Exception {
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                boolean busy = ex.getRequestURI().getPath().equals("/busy");
+                byte[] body = "{}".getBytes("UTF-8");
+                ex.getResponseHeaders().add("Content-Type", "application/json");
+                ex.sendResponseHeaders(busy ? 503 : 200, body.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+
+        JdkHttpInterface http = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + server.getAddress().getPort())
+            .withRetryPolicy(new RetryPolicy().backoff(30000, 30000))
+            .maxConnections(1).requestTimeout(200);
+        try {
+            // the deadline frees the only worker while it waits to retry
+            assertThat(http.httpGet("/busy").get().left,
+                       is(instanceOf(HttpTimeoutException.class)));
+            http.requestTimeout(0);
+            assertTrue(http.httpGet("/ok").get(5, TimeUnit.SECONDS).isRight());
+
+            // as does cancelling the request
+            HttpFuture<JsonValue> busy = http.httpGet("/busy");
+            assertThat(busy.getOrCancel(200, TimeUnit.MILLISECONDS).left,
+                       is(instanceOf(HttpTimeoutException.class)));
+            assertTrue(http.httpGet("/ok").get(5, TimeUnit.SECONDS).isRight());
+        } finally {
+            http.shutdown(0);
+            server.stop(0);
+        }
+    }
+
+    @Test public void testPriority() throws Exception {
+        final CountDownLatch hold = new CountDownLatch(1);
+        final List<String> recorded =
+            Collections.synchronizedList(new ArrayList<String>());
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService serverThreads = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverThreads);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                if (ex.getRequestURI().getPath().equals("/hold")) {
+                    try {
+                        hold.await();
+                    } catch (InterruptedException _) { }
+                } else {
+                    recorded.add(ex.getRequestURI().getQuery());
+                }
+                byte[] body = "{}".getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+
+        JdkHttpInterface http = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + server.getAddress().getPort())
+            .maxConnections(1);
+        try {
+            // occupies the only worker thread; later requests are queued
+            HttpFuture<JsonValue> held = http.httpGet("/hold");
+
+            List<HttpFuture<JsonValue>> futures = new ArrayList<>();
+            HttpInterface background = http.atPriority(RequestPriority.Background);
+            futures.add(background.httpGet("/record?background"));
+            futures.add(http.httpGet("/record?normal"));
+            futures.add(http.atPriority(RequestPriority.Interactive)
+                        .httpGet("/record?interactive"));
+
+            hold.countDown();
+            assertTrue(held.get().isRight());
+            for (HttpFuture<JsonValue> f : futures) assertTrue(f.get().isRight());
+            assertThat(recorded, contains("interactive", "normal", "background"));
+        } finally {
+            http.shutdown(0);
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test public void testTimeouts() throws Exception {
+        final CountDownLatch hold = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService serverThreads = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverThreads);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                if (ex.getRequestURI().getPath().equals("/hold")) {
+                    try {
+                        hold.await();
+                    } catch (InterruptedException _) { }
+                }
+                byte[] body = "{}".getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+
+        JdkHttpInterface http = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + server.getAddress().getPort())
+            .maxConnections(1).timeouts(0, 200);
+        try {
+            assertThat(http.httpGet("/hold").get().left,
+                       is(instanceOf(HttpTimeoutException.class)));
+
+            // the deadline frees the only worker thread
+            http.timeouts(0, 0).requestTimeout(200);
+            assertThat(http.httpGet("/hold").get().left,
+                       is(instanceOf(HttpTimeoutException.class)));
+            assertTrue(http.httpGet("/ok").get(10, TimeUnit.SECONDS).isRight());
+
+            http.requestTimeout(0);
+            HttpFuture<JsonValue> held = http.httpGet("/hold");
+            assertThat(held.getOrCancel(100, TimeUnit.MILLISECONDS).left,
+                       is(instanceOf(HttpTimeoutException.class)));
+            assertTrue(http.httpGet("/ok").get(10, TimeUnit.SECONDS).isRight());
+        } finally {
+            hold.countDown();
+            http.shutdown(0);
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    private static ThreadFactory named(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name);
+            }
+        };
+    }
+
+    @Test public void testExecutors() throws Exception {
+        final CountDownLatch hold = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService serverThreads = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverThreads);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                if (ex.getRequestURI().getPath().equals("/hold")) {
+                    try {
+                        hold.await();
+                    } catch (InterruptedException _) { }
+                }
+                byte[] body = "{}".getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+
+        // one thread, and room for one queued request
+        ThreadPoolExecutor app = new ThreadPoolExecutor(1, 1, 0,
+            TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1),
+            named("app"));
+        ExecutorService callbacks =
+            Executors.newSingleThreadExecutor(named("callbacks"));
+        JdkHttpInterface http = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + server.getAddress().getPort())
+            .maxConnections(3).withExecutor(app);
+        try {
+            HttpFuture<JsonValue> held = http.httpGet("/hold");
+            HttpFuture<JsonValue> queued = http.httpGet("/ok");
+            HttpFuture<JsonValue> rejected = http.httpGet("/ok");
+            assertThat(rejected.get().left.getCause(),
+                       is(instanceOf(RejectedExecutionException.class)));
+
+            final List<String> threads =
+                Collections.synchronizedList(new ArrayList<String>());
+            HttpFuture.Callback<JsonValue> record =
+              new HttpFuture.Callback<JsonValue>() {
+                public void completed(Either<IOException, JsonValue> r) {
+                    threads.add(Thread.currentThread().getName());
+                }
+              };
+            held.onComplete(record);
+            hold.countDown();
+            assertTrue(held.get().isRight());
+            assertTrue(queued.get().isRight());
+
+            http.withCompletionExecutor(callbacks);
+            HttpFuture<JsonValue> notified = http.httpGet("/ok");
+            final CountDownLatch called = new CountDownLatch(1);
+            notified.onComplete(record).onComplete(
+              new HttpFuture.Callback<JsonValue>() {
+                public void completed(Either<IOException, JsonValue> r) {
+                    called.countDown();
+                }
+              });
+            assertTrue(called.await(10, TimeUnit.SECONDS));
+            assertThat(threads, contains("app", "callbacks"));
+        } finally {
+            hold.countDown();
+            http.shutdown(0);
+            server.stop(0);
+            serverThreads.shutdownNow();
+            callbacks.shutdownNow();
+            app.shutdownNow();
+        }
+    }
+
+    @Test public void testQueueLimit() throws Exception {
+        final CountDownLatch hold = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService serverThreads = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverThreads);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                if (ex.getRequestURI().getPath().equals("/hold")) {
+                    try {
+                        hold.await();
+                    } catch (InterruptedException _) { }
+                }
+                byte[] body = "{}".getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+
+        final JdkHttpInterface http = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + server.getAddress().getPort())
+            .maxConnections(1).maxQueuedRequests(1, false);
+        try {
+            // the first request leaves the queue once it starts running
+            HttpFuture<JsonValue> held = http.httpGet("/hold");
+            while (http.getProperty(HttpInterface.Property.QueuedRequests, -1) > 0)
+                Thread.sleep(10);
+            HttpFuture<JsonValue> queued = http.httpGet("/ok");
+            assertThat(http.getProperty(HttpInterface.Property.QueuedRequests, -1),
+                       is(1));
+            assertThat(http.httpGet("/ok").get().left.getMessage(),
+                       is("Request queue is full"));
+
+            // blocks until the queued request starts
+            http.maxQueuedRequests(1, true);
+            final List<HttpFuture<JsonValue>> blocked =
+                Collections.synchronizedList(new ArrayList<HttpFuture<JsonValue>>());
+            Thread producer = new Thread() {
+                public void run() {
+                    blocked.add(http.httpGet("/ok"));
+                }
+            };
+            producer.start();
+            producer.join(200);
+            assertTrue(producer.isAlive());
+
+            hold.countDown();
+            producer.join(10000);
+            assertFalse(producer.isAlive());
+            assertTrue(held.get().isRight());
+            assertTrue(queued.get().isRight());
+            assertTrue(blocked.get(0).get().isRight());
+            assertThat(http.getProperty(HttpInterface.Property.QueuedRequests, -1),
+                       is(0));
+        } finally {
+            hold.countDown();
+            http.shutdown(0);
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test public void testMetrics() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(1);
+        HttpServer server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                int status = 404;
+                if (ex.getRequestURI().getPath().startsWith("/flaky"))
+                    status = failures.getAndDecrement() > 0 ? 503 : 200;
+                byte[] body = "{\"ok\":true}".getBytes("UTF-8");
+                ex.getResponseHeaders().add("Content-Type", "application/json");
+                ex.sendResponseHeaders(status, body.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+
+        final BlockingQueue<RequestMetrics> reported =
+            new LinkedBlockingQueue<>();
+        JdkHttpInterface http = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + server.getAddress().getPort())
+            .withRetryPolicy(new RetryPolicy().backoff(10, 10))
+            .withMetrics(new MetricsListener() {
+                public void requestCompleted(RequestMetrics request) {
+                    reported.add(request);
+                }
+            });
+        try {
+            JsonObject body = Json.createObjectBuilder().add("k", "v").build();
+            assertTrue(http.httpGet("/flaky/task", body).get().isRight());
+            RequestMetrics m = reported.poll(10, TimeUnit.SECONDS);
+            assertThat(m.getMethod(), is("GET"));
+            assertThat(m.getEndpointTemplate(), is("/{collection}/{name}"));
+            assertThat(m.getStatus(), is(200));
+            assertThat(m.getRetries(), is(1));
+            assertThat(m.getError(), is(nullValue()));
+            assertThat(m.getRequestBytes(), is(greaterThan(0L)));
+            assertThat(m.getResponseBytes(), is(11L));
+            for (RequestMetrics.Phase phase : RequestMetrics.Phase.values()) {
+                long time = m.getPhaseTime(phase, TimeUnit.NANOSECONDS);
+                if (phase == RequestMetrics.Phase.Handshake)
+                    assertThat(time, is(-1L));
+                else
+                    assertThat(phase.toString(), time, is(greaterThanOrEqualTo(0L)));
+            }
+
+            assertTrue(http.httpGet("/missing").get().isLeft());
+            m = reported.poll(10, TimeUnit.SECONDS);
+            assertThat(m.getStatus(), is(404));
+            assertThat(m.getError(),
+                       is(instanceOf(HttpException.NotFound.class)));
+        } finally {
+            http.shutdown(0);
+            server.stop(0);
+        }
     }
 }
@@ -0,0 +1,613 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.json.*;
+
+import com.sun.net.httpserver.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import com.idibon.api.http.HttpFuture;
+import com.idibon.api.http.HttpException;
+import com.idibon.api.http.HttpInterface;
+import com.idibon.api.http.HttpFuture;
+import com.idibon.api.http.HttpStream;
+import com.idibon.api.http.HttpTimeoutException;
+import com.idibon.api.http.MetricsListener;
+import com.idibon.api.http.RequestMetrics;
+import com.idibon.api.http.RequestPriority;
+import com.idibon.api.http.RetryPolicy;
+import com.idibon.api.util.Either;
+
+public class NioHttpInterfaceTest {
+
+    private static final String PADDING = new String(new char[1000])
+        .replace('\0', 'x');
+
+    private final AtomicInteger _failures = new AtomicInteger();
+    private final CountDownLatch _hold = new CountDownLatch(1);
+    private final AtomicInteger _held = new AtomicInteger();
+    private final List<String> _recorded =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    private HttpServer _server;
+    private ExecutorService _serverThreads;
+    private NioHttpInterface _http;
+    private final Set<InetSocketAddress> _clients =
+        Collections.synchronizedSet(new HashSet<InetSocketAddress>());
+
+    @Before public void startServer() throws Exception {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _serverThreads = Executors.newFixedThreadPool(8);
+        _server.setExecutor(_serverThreads);
+
+        // echoes the request method, override header and body
+        _server.createContext("/echo", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                _clients.add(ex.getRemoteAddress());
+                JsonObjectBuilder reply = Json.createObjectBuilder()
+                    .add("method", ex.getRequestMethod());
+                String override = ex.getRequestHeaders()
+                    .getFirst("X-HTTP-Method-Override");
+                if (override != null) reply.add("override", override);
+                JsonReader r = Json.createReader(ex.getRequestBody());
+                try {
+                    reply.add("body", r.readObject());
+                } catch (JsonException _) {
+                    // no body
+                }
+                respond(ex, 200, "application/json", reply.build().toString());
+            }
+        });
+
+        _server.createContext("/missing", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                respond(ex, 404, "application/json", "{\"errors\":\"nope\"}");
+            }
+        });
+
+        // fails with 503 until _failures is exhausted
+        _server.createContext("/flaky", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                if (_failures.getAndDecrement() > 0)
+                    respond(ex, 503, "text/plain", "busy");
+                else
+                    respond(ex, 200, "application/json", "{\"ok\":true}");
+            }
+        });
+
+        // asks the client to wait 1 second
+        _server.createContext("/throttled", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                ex.getResponseHeaders().add("Retry-After", "1");
+                respond(ex, 429, "application/json", "{}");
+            }
+        });
+
+        // blocks until _hold is released
+        _server.createContext("/hold", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                _held.incrementAndGet();
+                try {
+                    _hold.await();
+                } catch (InterruptedException _) { }
+                respond(ex, 200, "application/json", "{}");
+            }
+        });
+
+        // records the order in which requests arrive
+        _server.createContext("/record", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                _recorded.add(ex.getRequestURI().getQuery());
+                respond(ex, 200, "application/json", "{}");
+            }
+        });
+
+        _server.createContext("/stream", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                ex.getResponseHeaders().add("Content-Type",
+                    "multipart/mixed; boundary=BBB");
+                // a length of 0 uses chunked transfer encoding
+                ex.sendResponseHeaders(200, 0);
+                try (OutputStream os = ex.getResponseBody()) {
+                    for (int i = 0; i < 3; i++) {
+                        os.write(("{\"a\":" + i + "}--BBB").getBytes("UTF-8"));
+                        os.flush();
+                    }
+                    os.write("--".getBytes("UTF-8"));
+                }
+            }
+        });
+
+        /* echoes the request body, and reports whether the request was
+         * compressed. responds with a gzip-encoded multipart stream. */
+        _server.createContext("/gzip", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                Headers req = ex.getRequestHeaders();
+                boolean compressed = "gzip".equals(
+                    req.getFirst("Content-Encoding"));
+                InputStream is = ex.getRequestBody();
+                if (compressed) is = new GZIPInputStream(is);
+                JsonObject body = Json.createReader(is).readObject();
+
+                String accept = req.getFirst("Accept-Encoding");
+                ex.getResponseHeaders().add("Content-Type",
+                    "multipart/mixed; boundary=BBB");
+                if (accept != null && accept.contains("gzip"))
+                    ex.getResponseHeaders().add("Content-Encoding", "gzip");
+                ex.sendResponseHeaders(200, 0);
+
+                OutputStream os = ex.getResponseBody();
+                if (accept != null && accept.contains("gzip"))
+                    os = new GZIPOutputStream(os);
+                try {
+                    os.write((Json.createObjectBuilder()
+                              .add("compressed", compressed)
+                              .build().toString() + "--BBB").getBytes("UTF-8"));
+                    os.write((body.toString() + "--BBB--").getBytes("UTF-8"));
+                } finally {
+                    os.close();
+                }
+            }
+        });
+
+        // streams the number of chunks requested in the "count" query
+        _server.createContext("/many", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                int count = Integer.parseInt(
+                    ex.getRequestURI().getQuery().substring(6));
+                ex.getResponseHeaders().add("Content-Type",
+                    "multipart/mixed; boundary=BBB");
+                ex.sendResponseHeaders(200, 0);
+                try (OutputStream os = ex.getResponseBody()) {
+                    for (int i = 0; i < count; i++) {
+                        os.write(("{\"i\":" + i + ",\"pad\":\"" + PADDING +
+                                  "\"}--BBB").getBytes("UTF-8"));
+                    }
+                    os.write("--".getBytes("UTF-8"));
+                } catch (IOException _) {
+                    // client hung up
+                }
+            }
+        });
+
+        _server.start();
+        _http = new NioHttpInterface().forServer(
+            "http://127.0.0.1:" + _server.getAddress().getPort() + "/");
+    }
+
+    @After public void stopServer() {
+        _http.shutdown(0);
+        _server.stop(0);
+        _serverThreads.shutdownNow();
+    }
+
+    @Test public void testParallelismConfiguration() {
+        assertThat(_http.getProperty(HttpInterface.Property.ParallelRequestLimit, -1),
+                   is(equalTo(NioHttpInterface.DEFAULT_CONNECTION_LIMIT)));
+        _http.maxConnections(500);
+        assertThat(_http.getProperty(HttpInterface.Property.ParallelRequestLimit, -1),
+                   is(equalTo(500)));
+    }
+
+    @Test public void testRequestBodies() throws Exception {
+        JsonObject body = Json.createObjectBuilder().add("k", "v").build();
+
+        JsonObject get = _http.httpGet("/echo").getAs(JsonObject.class).right;
+        assertThat(get.getString("method"), is("GET"));
+        assertThat(get.containsKey("body"), is(false));
+
+        // bodies on GET requests are tunneled through POST
+        get = _http.httpGet("/echo", body).getAs(JsonObject.class).right;
+        assertThat(get.getString("method"), is("POST"));
+        assertThat(get.getString("override"), is("GET"));
+        assertThat(get.getJsonObject("body"), is(body));
+
+        JsonObject put = _http.httpPut("/echo", body).getAs(JsonObject.class).right;
+        assertThat(put.getString("method"), is("PUT"));
+        assertThat(put.getJsonObject("body"), is(body));
+    }
+
+    @Test public void testHttpError() throws Exception {
+        Either<IOException, JsonValue> result = _http.httpGet("/missing").get();
+        assertTrue(result.isLeft());
+        assertThat(result.left, is(instanceOf(HttpException.NotFound.class)));
+        HttpException err = (HttpException)result.left;
+        assertThat(err.getJsonErrorInfo().getString("errors"), is("nope"));
+        assertThat(err.getFailedURL().getPath(), is("/missing"));
+    }
+
+    @Test public void testChunkedMultipartResponse() throws Exception {
+        JsonArray chunks = _http.httpGet("/stream").getAs(JsonArray.class).right;
+        assertThat(chunks.size(), is(3));
+        for (int i = 0; i < chunks.size(); i++)
+            assertThat(chunks.getJsonObject(i).getInt("a"), is(i));
+    }
+
+    @Test public void testInvalidEndpoint() throws Exception {
+        Either<IOException, JsonValue> result = _http.httpGet("relative").get();
+        assertTrue(result.isLeft());
+        assertThat(result.left.getCause(),
+                   is(instanceOf(IllegalArgumentException.class)));
+    }
+
+    @Test public void testManyRequestsOnOneThread() throws Exception {
+        NioHttpInterface http = new NioHttpInterface()
+            .forServer("http://127.0.0.1:" + _server.getAddress().getPort())
+            .ioThreads(1)
+            .maxConnections(8);
+
+        try {
+            List<HttpFuture<JsonValue>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                JsonObject body = Json.createObjectBuilder().add("i", i).build();
+                futures.add(http.httpPost("/echo", body));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                Either<IOException, JsonObject> r =
+                    futures.get(i).getAs(JsonObject.class);
+                assertTrue(r.isRight());
+                assertThat(r.right.getJsonObject("body").getInt("i"), is(i));
+            }
+        } finally {
+            http.shutdown(0);
+        }
+    }
+
+    @Test public void testPipelining() throws Exception {
+        NioHttpInterface http = new NioHttpInterface()
+            .forServer("http://127.0.0.1:" + _server.getAddress().getPort())
+            .maxConnections(8)
+            .maxRequestsPerConnection(4);
+
+        try {
+            List<HttpFuture<JsonValue>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                JsonObject body = Json.createObjectBuilder().add("i", i).build();
+                futures.add(http.httpGet("/echo", body));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                Either<IOException, JsonObject> r =
+                    futures.get(i).getAs(JsonObject.class);
+                assertTrue(r.isRight());
+                assertThat(r.right.getJsonObject("body").getInt("i"), is(i));
+            }
+            // 8 parallel requests, 4 per connection
+            assertThat(_clients.size(), is(lessThanOrEqualTo(2)));
+        } finally {
+            http.shutdown(0);
+        }
+    }
+
+    /**
+     * A JSON string that blocks while the request body is serialized,
+     * until released.
+     */
+    private static class SlowString implements JsonString {
+        public String getString() {
+            encoding.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException _) { }
+            return "slow";
+        }
+        public CharSequence getChars() {
+            return getString();
+        }
+        public ValueType getValueType() {
+            return ValueType.STRING;
+        }
+
+        final CountDownLatch encoding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+    }
+
+    @Test public void testCancelPipelineHead() throws Exception {
+        NioHttpInterface http = new NioHttpInterface()
+            .forServer("http://127.0.0.1:" + _server.getAddress().getPort())
+            .maxConnections(3)
+            .maxRequestsPerConnection(3);
+
+        try {
+            // all three requests are pipelined on one connection
+            SlowString slow = new SlowString();
+            HttpFuture<JsonValue> head = http.httpGet("/echo",
+                Json.createObjectBuilder().add("s", slow).build());
+            List<HttpFuture<JsonValue>> behind = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                JsonObject body = Json.createObjectBuilder().add("i", i).build();
+                behind.add(http.httpGet("/echo", body));
+            }
+
+            // cancel the head while it is being written
+            assertTrue(slow.encoding.await(10, TimeUnit.SECONDS));
+            head.cancel(true);
+            slow.release.countDown();
+
+            for (int i = 0; i < behind.size(); i++) {
+                Either<IOException, JsonValue> r =
+                    behind.get(i).get(10, TimeUnit.SECONDS);
+                assertTrue(r.isRight());
+                assertThat(((JsonObject)r.right).getJsonObject("body")
+                           .getInt("i"), is(i));
+            }
+        } finally {
+            http.shutdown(0);
+        }
+    }
+
+    @Test public void testPostsAreNotPipelined() throws Exception {
+        NioHttpInterface http = new NioHttpInterface()
+            .forServer("http://127.0.0.1:" + _server.getAddress().getPort())
+            .maxConnections(2)
+            .maxRequestsPerConnection(2);
+
+        try {
+            JsonObject body = Json.createObjectBuilder().build();
+            HttpFuture<JsonValue> held = http.httpPost("/hold", body);
+            // isn't queued behind the held POST, which would delay it
+            assertTrue(http.httpPost("/echo", body)
+                       .get(5, TimeUnit.SECONDS).isRight());
+            _hold.countDown();
+            assertTrue(held.get(5, TimeUnit.SECONDS).isRight());
+        } finally {
+            http.shutdown(0);
+        }
+    }
+
+    @Test public void testCancelPipelinedRequest() throws Exception {
+        NioHttpInterface http = new NioHttpInterface()
+            .forServer("http://127.0.0.1:" + _server.getAddress().getPort())
+            .maxConnections(2)
+            .maxRequestsPerConnection(2);
+
+        try {
+            HttpFuture<JsonValue> held = http.httpGet("/hold");
+            HttpFuture<JsonValue> behind = http.httpGet("/echo");
+            held.cancel(true);
+            // the request behind the cancelled one is sent again
+            assertTrue(behind.get(5, TimeUnit.SECONDS).isRight());
+        } finally {
+            http.shutdown(0);
+        }
+    }
+
+    @Test public void testConnectionReuse() throws Exception {
+        for (int i = 0; i < 5; i++)
+            assertTrue(_http.httpGet("/echo").get().isRight());
+        assertThat(_clients.size(), is(1));
+    }
+
+    @Test public void testIdleEviction() throws Exception {
+        _http.idleTimeout(50);
+        assertTrue(_http.httpGet("/echo").get().isRight());
+        Thread.sleep(500);
+        assertTrue(_http.httpGet("/echo").get().isRight());
+        assertThat(_clients.size(), is(2));
+    }
+
+    @Test public void testKeepAliveLimit() throws Exception {
+        _http.maxKeepAliveRequests(2);
+        for (int i = 0; i < 6; i++)
+            assertTrue(_http.httpGet("/echo").get().isRight());
+        assertThat(_clients.size(), is(3));
+    }
+
+    @Test public void testCompression() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) text.append("compressible ");
+        JsonObject small = Json.createObjectBuilder().add("k", "v").build();
+        JsonObject large = Json.createObjectBuilder()
+            .add("k", text.toString()).build();
+
+        _http.withCompression(1024);
+
+        JsonArray result = _http.httpPost("/gzip", small)
+            .getAs(JsonArray.class).right;
+        assertThat(result.getJsonObject(0).getBoolean("compressed"), is(false));
+        assertThat(result.getJsonObject(1), is(small));
+
+        result = _http.httpPost("/gzip", large).getAs(JsonArray.class).right;
+        assertThat(result.getJsonObject(0).getBoolean("compressed"), is(true));
+        assertThat(result.getJsonObject(1), is(large));
+
+        TransferStatistics stats = _http.getTransferStatistics();
+        assertThat(stats.getRequestBytesSent(),
+                   is(lessThan(stats.getRequestBytes() / 10)));
+        assertThat(stats.getResponseBytesReceived(),
+                   is(lessThan(stats.getResponseBytes() / 10)));
+    }
+
+    @Test public void testRetries() throws Exception {
+        _http.withRetryPolicy(new RetryPolicy().backoff(10, 10));
+        _failures.set(2);
+        assertTrue(_http.httpGet("/flaky").get().isRight());
+        assertThat(_http.getTransferStatistics().getRetries(), is(2L));
+
+        // POST is not idempotent, so it isn't retried by default
+        _failures.set(1);
+        JsonObject body = Json.createObjectBuilder().build();
+        assertThat(_http.httpPost("/flaky", body).get().left,
+                   is(instanceOf(HttpException.ServiceUnavailable.class)));
+        assertThat(_http.getTransferStatistics().getRetries(), is(2L));
+
+        // the last failure is reported once attempts are exhausted
+        _failures.set(3);
+        assertThat(_http.httpGet("/flaky").get().left,
+                   is(instanceOf(HttpException.ServiceUnavailable.class)));
+        assertThat(_http.getTransferStatistics().getRetries(), is(4L));
+    }
+
+    @Test public void testAdaptiveConcurrency() throws Exception {
+        _http.maxConnections(16).adaptiveConcurrency(2, 32);
+        assertThat(_http.getProperty(HttpInterface.Property.ParallelRequestLimit, -1),
+                   is(16));
+        _failures.set(1);
+        assertTrue(_http.httpGet("/flaky").get().isLeft());
+        assertThat(_http.getProperty(HttpInterface.Property.ParallelRequestLimit, -1),
+                   is(8));
+
+        _http.maxConnections(5);
+        assertThat(_http.getProperty(HttpInterface.Property.ParallelRequestLimit, -1),
+                   is(5));
+    }
+
+    @Test public void testRetryAfter() throws Exception {
+        IOException error = _http.httpGet("/throttled").get().left;
+        assertThat(error, is(instanceOf(HttpException.TooManyRequests.class)));
+        assertThat(((HttpException.TooManyRequests)error).getRetryAfter(),
+                   is(1000L));
+
+        // every request is paused until the server's deadline
+        long start = System.currentTimeMillis();
+        assertTrue(_http.httpGet("/echo").get().isRight());
+        assertThat(System.currentTimeMillis() - start,
+                   is(greaterThanOrEqualTo(900L)));
+    }
+
+    @Test public void testPriority() throws Exception {
+        _http.maxConnections(1);
+        HttpFuture<JsonValue> held = _http.httpGet("/hold");
+
+        HttpInterface bulk = _http.atPriority(RequestPriority.Bulk);
+        HttpInterface interactive = _http.atPriority(RequestPriority.Interactive);
+        List<HttpFuture<JsonValue>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            futures.add(bulk.httpGet("/record?bulk" + i));
+        futures.add(_http.httpGet("/record?normal"));
+        futures.add(interactive.httpGet("/record?interactive"));
+
+        _hold.countDown();
+        assertTrue(held.get().isRight());
+        for (HttpFuture<JsonValue> f : futures) assertTrue(f.get().isRight());
+        assertThat(_recorded, contains("interactive", "normal",
+                                       "bulk0", "bulk1", "bulk2"));
+    }
+
+    @Test public void testStreamingResponse() throws Exception {
+        HttpStream stream = _http.httpGetStream("/many?count=2000", null);
+        int expected = 0;
+        while (stream.hasNext()) {
+            Either<IOException, JsonValue> item = stream.next();
+            assertTrue(item.isRight());
+            assertThat(((JsonObject)item.right).getInt("i"), is(expected++));
+        }
+        assertThat(expected, is(2000));
+
+        // plain JSON responses are returned as a single element
+        stream = _http.httpGetStream("/echo", null);
+        assertThat(((JsonObject)stream.next().right).getString("method"),
+                   is("GET"));
+        assertFalse(stream.hasNext());
+
+        stream = _http.httpGetStream("/missing", null);
+        assertThat(stream.next().left,
+                   is(instanceOf(HttpException.NotFound.class)));
+        assertFalse(stream.hasNext());
+    }
+
+    @Test public void testAbandonedStream() throws Exception {
+        _http.maxConnections(1);
+        HttpStream stream = _http.httpGetStream("/many?count=5000", null);
+        assertTrue(stream.next().isRight());
+        stream.close();
+        // the connection is released for other requests
+        assertTrue(_http.httpGet("/echo").get(10, TimeUnit.SECONDS).isRight());
+    }
+
+    @Test public void testTimeouts() throws Exception {
+        _http.maxConnections(1).timeouts(0, 200);
+        // time out on a kept-alive connection, as well as a new one
+        assertTrue(_http.httpGet("/echo").get(10, TimeUnit.SECONDS).isRight());
+        assertThat(_http.httpPost("/hold", Json.createObjectBuilder()
+                                  .build()).get().left,
+                   is(instanceOf(HttpTimeoutException.class)));
+        assertThat(_http.httpGet("/hold").get().left,
+                   is(instanceOf(HttpTimeoutException.class)));
+        // requests that timed out are never sent again
+        assertThat(_held.get(), is(2));
+        // the connection is replaced for later requests
+        assertTrue(_http.httpGet("/echo").get(10, TimeUnit.SECONDS).isRight());
+
+        _http.timeouts(0, 0).requestTimeout(200);
+        assertThat(_http.httpGet("/hold").get().left,
+                   is(instanceOf(HttpTimeoutException.class)));
+        assertTrue(_http.httpGet("/echo").get(10, TimeUnit.SECONDS).isRight());
+    }
+
+    @Test public void testGetOrCancel() throws Exception {
+        _http.maxConnections(1);
+        HttpFuture<JsonValue> held = _http.httpGet("/hold");
+        HttpFuture<JsonValue> queued = _http.httpGet("/echo");
+        assertThat(queued.getOrCancel(100, TimeUnit.MILLISECONDS).left,
+                   is(instanceOf(HttpTimeoutException.class)));
+        assertThat(held.getOrCancel(100, TimeUnit.MILLISECONDS).left,
+                   is(instanceOf(HttpTimeoutException.class)));
+        // cancelling the held request frees its slot
+        assertTrue(_http.httpGet("/echo").get(10, TimeUnit.SECONDS).isRight());
+        assertThat(_recorded, is(empty()));
+    }
+
+    @Test public void testMetrics() throws Exception {
+        final BlockingQueue<RequestMetrics> reported =
+            new LinkedBlockingQueue<>();
+        _http.withRetryPolicy(new RetryPolicy().backoff(10, 10))
+            .withMetrics(new MetricsListener() {
+                public void requestCompleted(RequestMetrics request) {
+                    reported.add(request);
+                }
+            });
+        _failures.set(1);
+        JsonObject body = Json.createObjectBuilder().add("k", "v").build();
+        assertTrue(_http.httpGet("/flaky", body).get().isRight());
+        RequestMetrics m = reported.poll(10, TimeUnit.SECONDS);
+        assertThat(m.getMethod(), is("GET"));
+        assertThat(m.getEndpointTemplate(), is("/{collection}"));
+        assertThat(m.getStatus(), is(200));
+        assertThat(m.getRetries(), is(1));
+        assertThat(m.getError(), is(nullValue()));
+        assertThat(m.getRequestBytes(), is(greaterThan(0L)));
+        assertThat(m.getResponseBytes(), is(11L));
+        for (RequestMetrics.Phase phase : RequestMetrics.Phase.values()) {
+            long time = m.getPhaseTime(phase, TimeUnit.NANOSECONDS);
+            if (phase == RequestMetrics.Phase.Handshake)
+                assertThat(time, is(-1L));
+            else
+                assertThat(phase.toString(), time, is(greaterThanOrEqualTo(0L)));
+        }
+
+        assertTrue(_http.httpGet("/missing").get().isLeft());
+        m = reported.poll(10, TimeUnit.SECONDS);
+        assertThat(m.getStatus(), is(404));
+        assertThat(m.getError(), is(instanceOf(HttpException.NotFound.class)));
+    }
+
+    private static void respond(HttpExchange ex, int status, String type,
+          String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        ex.getResponseHeaders().add("Content-Type", type);
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
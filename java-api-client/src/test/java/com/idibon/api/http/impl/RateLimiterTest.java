@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.http.impl;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+public class RateLimiterTest {
+
+    @Test public void testUnlimited() {
+        RateLimiter limiter = new RateLimiter();
+        for (int i = 0; i < 1000; i++) assertThat(limiter.acquire(), is(0L));
+    }
+
+    @Test public void testTokenBucket() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setRate(10, 3);
+        // the burst is available immediately
+        for (int i = 0; i < 3; i++) assertThat(limiter.acquire(), is(0L));
+
+        // then tokens arrive every 100ms
+        long wait = limiter.acquire();
+        assertThat(wait, is(both(greaterThan(TimeUnit.MILLISECONDS.toNanos(50)))
+                            .and(lessThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100)))));
+
+        limiter.refund();
+        assertThat(limiter.acquire(), is(0L));
+    }
+
+    @Test public void testPause() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.onResponse(200, null, null, null);
+        assertThat(limiter.acquire(), is(0L));
+
+        limiter.onResponse(429, "2", null, null);
+        assertThat(limiter.acquire(),
+                   is(greaterThan(TimeUnit.MILLISECONDS.toNanos(1900))));
+        // shorter pauses don't shorten the current one
+        limiter.pause(10);
+        assertThat(limiter.acquire(),
+                   is(greaterThan(TimeUnit.MILLISECONDS.toNanos(1900))));
+
+        limiter = new RateLimiter();
+        limiter.onResponse(200, null, "0", "5");
+        assertThat(limiter.acquire(),
+                   is(greaterThan(TimeUnit.MILLISECONDS.toNanos(4900))));
+
+        limiter = new RateLimiter();
+        limiter.onResponse(429, null, null, null);
+        assertThat(limiter.acquire(), is(greaterThan(0L)));
+    }
+
+    @Test public void testParseRetryAfter() {
+        assertThat(RateLimiter.parseRetryAfter(null), is(-1L));
+        assertThat(RateLimiter.parseRetryAfter("junk"), is(-1L));
+        assertThat(RateLimiter.parseRetryAfter(" 30 "), is(30000L));
+
+        SimpleDateFormat format = new SimpleDateFormat(
+            "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String date = format.format(new Date(System.currentTimeMillis() + 60000));
+        assertThat(RateLimiter.parseRetryAfter(date),
+                   is(both(greaterThan(50000L)).and(lessThanOrEqualTo(60000L))));
+
+        long now = System.currentTimeMillis() / 1000;
+        assertThat(RateLimiter.parseReset(Long.toString(now + 10)),
+                   is(both(greaterThan(8000L)).and(lessThanOrEqualTo(10000L))));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.model;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import javax.json.*;
+
+import com.sun.net.httpserver.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import com.idibon.api.http.impl.JdkHttpInterface;
+import com.idibon.api.http.impl.NioHttpInterface;
+import com.idibon.api.util.Either;
+
+public class DocumentSearcherTest {
+
+    private HttpServer _server;
+    private String _address;
+    private final List<JsonObject> _queries =
+        Collections.synchronizedList(new ArrayList<JsonObject>());
+
+    /**
+     * Serves two pages of streaming search results: 3 documents, then 2.
+     */
+    @Before public void startServer() throws Exception {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/C/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                JsonObject query = Json.createReader(ex.getRequestBody())
+                    .readObject();
+                _queries.add(query);
+
+                int first = query.getInt("start");
+                int last = Math.min(5, first + (first == 0 ? 3 : 1000));
+
+                ex.getResponseHeaders().add("Content-Type",
+                    "multipart/mixed; boundary=BBB");
+                ex.sendResponseHeaders(200, 0);
+                try (OutputStream os = ex.getResponseBody()) {
+                    for (int i = first; i < last; i++) {
+                        JsonObject doc = Json.createObjectBuilder()
+                            .add("document", Json.createObjectBuilder()
+                                 .add("name", "doc" + i)
+                                 .add("content", "text " + i))
+                            .add("cursor", "after" + i).build();
+                        os.write((doc.toString() + "--BBB").getBytes("UTF-8"));
+                    }
+                    os.write("--".getBytes("UTF-8"));
+                }
+            }
+        });
+        _server.start();
+        _address = "http://127.0.0.1:" + _server.getAddress().getPort();
+    }
+
+    @After public void stopServer() {
+        _server.stop(0);
+    }
+
+    @Test public void testStreamingSearchNio() throws Exception {
+        NioHttpInterface http = new NioHttpInterface().forServer(_address);
+        try {
+            assertThat(search(Collection.instance(http, "C")),
+                       contains("doc0", "doc1", "doc2", "doc3", "doc4"));
+        } finally {
+            http.shutdown(0);
+        }
+    }
+
+    @Test public void testStreamingSearchJdk() throws Exception {
+        JdkHttpInterface http = new JdkHttpInterface().forServer(_address);
+        try {
+            assertThat(search(Collection.instance(http, "C")),
+                       contains("doc0", "doc1", "doc2", "doc3", "doc4"));
+        } finally {
+            http.shutdown(0);
+        }
+        // the second page continues from the cursor of the first
+        assertThat(_queries.get(1).getString("cursor"), is("after2"));
+        assertThat(_queries.get(1).getInt("start"), is(3));
+    }
+
+    @Test public void testNextPageRequestedBeforePageIsRead()
+          throws Exception {
+        NioHttpInterface http = new NioHttpInterface().forServer(_address);
+        try (DocumentSearcher searcher = Collection.instance(http, "C")
+                 .documents()
+                 .returning(DocumentSearcher.ReturnData.DocumentTokens)) {
+            Iterator<Either<IOException, Document>> it = searcher.iterator();
+            assertThat(it.next().right.getName(), is("doc0"));
+            // the first page is received while the caller is still reading
+            long deadline = System.currentTimeMillis() + 5000;
+            while (_queries.size() < 2 &&
+                     System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(_queries, hasSize(2));
+            assertThat(_queries.get(1).getString("cursor"), is("after2"));
+            assertThat(_queries.get(1).getInt("start"), is(3));
+
+            searcher.close();
+            assertThat(it.hasNext(), is(false));
+        } finally {
+            http.shutdown(0);
+        }
+    }
+
+    private List<String> search(Collection collection) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (Either<IOException, Document> doc : collection.documents()
+                 .returning(DocumentSearcher.ReturnData.DocumentTokens)) {
+            if (doc.isLeft()) throw doc.left;
+            names.add(doc.right.getName());
+        }
+        return names;
+    }
+}
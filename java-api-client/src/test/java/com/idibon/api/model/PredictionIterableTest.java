@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.model;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.*;
+
+import com.sun.net.httpserver.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import com.idibon.api.http.HttpFuture;
+import com.idibon.api.http.HttpTimeoutException;
+import com.idibon.api.http.impl.JdkHttpInterface;
+import com.idibon.api.util.Adapters;
+import com.idibon.api.util.Either;
+import com.idibon.api.util.Splittable;
+
+public class PredictionIterableTest {
+
+    private HttpServer _server;
+    private ExecutorService _serverThreads;
+    private final CountDownLatch _hold = new CountDownLatch(1);
+    private JdkHttpInterface _http;
+    private Task _task;
+    private final AtomicInteger _requests = new AtomicInteger();
+
+    /**
+     * Predicts each item as a label named after its content, for single
+     * and batched prediction requests. Requests for "slow" wait until
+     * _hold is released.
+     */
+    @Before public void startServer() throws Exception {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _serverThreads = Executors.newFixedThreadPool(8);
+        _server.setExecutor(_serverThreads);
+        _server.createContext("/C/T", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                _requests.incrementAndGet();
+                JsonObject query = Json.createReader(ex.getRequestBody())
+                    .readObject();
+                JsonValue reply;
+                if (query.containsKey("documents")) {
+                    JsonArrayBuilder results = Json.createArrayBuilder();
+                    for (JsonObject item : query.getJsonArray("documents")
+                             .getValuesAs(JsonObject.class)) {
+                        results.add(predict(item));
+                    }
+                    reply = results.build();
+                } else {
+                    if (query.getString("content").equals("slow")) {
+                        try {
+                            _hold.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException _) { }
+                    }
+                    reply = predict(query);
+                }
+
+                byte[] body = reply.toString().getBytes("UTF-8");
+                ex.getResponseHeaders().add("Content-Type", "application/json");
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        _server.start();
+
+        _http = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + _server.getAddress().getPort());
+        String json = "{\"task\":{\"scope\":\"document\",\"labels\":[]," +
+            "\"uuid\":\"00000000-0000-0000-0000-000000000000\"," +
+            "\"name\":\"T\",\"features\":[]}}";
+        _task = Task.instance(Collection.instance(_http, "C"),
+            Json.createReader(new StringReader(json)).readObject());
+    }
+
+    @After public void stopServer() {
+        _hold.countDown();
+        _http.shutdown(0);
+        _server.stop(0);
+        _serverThreads.shutdownNow();
+    }
+
+    private static JsonArray predict(JsonObject item) {
+        return Json.createArrayBuilder().add(Json.createObjectBuilder()
+            .add("class", item.getString("content"))
+            .add("confidence", 1.0)).build();
+    }
+
+    private static List<DocumentContent> items(int count) {
+        List<CharSequence> text = new ArrayList<>();
+        for (int i = 0; i < count; i++) text.add("item" + i);
+        return wrap(text);
+    }
+
+    private static List<DocumentContent> wrap(List<CharSequence> text) {
+        List<DocumentContent> items = new ArrayList<>();
+        for (DocumentContent item : Adapters.wrapCharSequences(text))
+            items.add(item);
+        return items;
+    }
+
+    private static List<String> classes(
+          PredictionIterable<DocumentPrediction> predictions) {
+        List<String> classes = new ArrayList<>();
+        for (Either<APIFailure<DocumentContent>, DocumentPrediction> p :
+                 predictions) {
+            if (p.isLeft()) {
+                classes.add(p.left.exception.getMessage());
+            } else {
+                classes.add(p.right.getJson().getJsonObject(0)
+                            .getString("class"));
+            }
+        }
+        return classes;
+    }
+
+    @Test public void testUnbatched() throws Exception {
+        List<String> classes = classes(_task.classifications(items(5)));
+        assertThat(classes, contains("item0", "item1", "item2", "item3",
+                                     "item4"));
+        assertThat(_requests.get(), is(5));
+    }
+
+    @Test public void testBatched() throws Exception {
+        List<String> classes =
+            classes(_task.classifications(items(25)).inBatches(10));
+        assertThat(classes, hasSize(25));
+        for (int i = 0; i < classes.size(); i++)
+            assertThat(classes.get(i), is("item" + i));
+        assertThat(_requests.get(), is(3));
+    }
+
+    @Test public void testBrokenItemInBatch() throws Exception {
+        List<DocumentContent> items = items(4);
+        items.add(2, new DocumentContent() {
+            public String getContent() throws IOException {
+                throw new IOException("unreadable");
+            }
+            public JsonObject getMetadata() {
+                return null;
+            }
+        });
+        List<String> classes =
+            classes(_task.classifications(items).inBatches(10));
+        assertThat(classes, contains("item0", "item1", "unreadable",
+                                     "item2", "item3"));
+        assertThat(_requests.get(), is(1));
+    }
+
+    @Test public void testUnordered() throws Exception {
+        List<CharSequence> text = Arrays.<CharSequence>asList(
+            "slow", "item1", "item2", "item3");
+        Iterator<Either<APIFailure<DocumentContent>, DocumentPrediction>> it =
+            _task.classifications(wrap(text)).unordered().iterator();
+
+        // the slow item doesn't hold up the items after it
+        List<String> first = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            first.add(it.next().right.getJson().getJsonObject(0)
+                      .getString("class"));
+        }
+        assertThat(first, containsInAnyOrder("item1", "item2", "item3"));
+
+        _hold.countDown();
+        DocumentPrediction last = it.next().right;
+        assertThat(last.getRequested().getContent(), is("slow"));
+        assertFalse(it.hasNext());
+    }
+
+    @Test public void testSplittable() throws Exception {
+        Splittable<Either<APIFailure<DocumentContent>, DocumentPrediction>>
+            s = _task.classifications(items(40)).inBatches(4).splittable();
+        assertTrue(s.isSized());
+        assertThat(s.estimateSize(), is(40L));
+
+        Splittable<Either<APIFailure<DocumentContent>, DocumentPrediction>>
+            first = s.trySplit();
+        assertThat(first.estimateSize(), is(16L));
+        assertThat(s.estimateSize(), is(24L));
+
+        List<String> classes = new ArrayList<>();
+        for (Splittable<Either<APIFailure<DocumentContent>,
+                 DocumentPrediction>> part : Arrays.asList(first, s)) {
+            while (part.hasNext()) {
+                classes.add(part.next().right.getJson().getJsonObject(0)
+                            .getString("class"));
+            }
+        }
+        assertThat(classes, hasSize(40));
+        for (int i = 0; i < classes.size(); i++)
+            assertThat(classes.get(i), is("item" + i));
+        assertThat(_requests.get(), is(10));
+    }
+
+    @Test public void testCache() throws Exception {
+        PredictionCache cache = new PredictionCache(100);
+        assertThat(classes(_task.classifications(items(3)).withCache(cache)),
+                   contains("item0", "item1", "item2"));
+        assertThat(_requests.get(), is(3));
+        assertThat(cache.size(), is(3));
+
+        // repeated content is served from the cache, in any batch mode
+        assertThat(classes(_task.classifications(items(5))
+                           .withCache(cache).inBatches(10)),
+                   contains("item0", "item1", "item2", "item3", "item4"));
+        assertThat(_requests.get(), is(4));
+        assertThat(cache.getHits(), is(3L));
+        assertThat(cache.size(), is(5));
+
+        // different options aren't served from the cache
+        classes(_task.classifications(items(1)).withCache(cache)
+                .withSignificantFeatures());
+        assertThat(_requests.get(), is(5));
+
+        // nor are results from an earlier version of the task
+        String json = "{\"task\":{\"scope\":\"document\",\"labels\":[]," +
+            "\"uuid\":\"00000000-0000-0000-0000-000000000000\"," +
+            "\"name\":\"T\",\"features\":[],\"updated_at\":\"x\"}}";
+        _task.invalidate().preload(
+            Json.createReader(new StringReader(json)).readObject());
+        classes(_task.classifications(items(1)).withCache(cache));
+        assertThat(_requests.get(), is(6));
+
+        cache.invalidate(_task);
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test public void testCacheIsPerInterface() throws Exception {
+        PredictionCache cache = new PredictionCache(100);
+        classes(_task.classifications(items(1)).withCache(cache));
+        assertThat(_requests.get(), is(1));
+
+        // the same task name on another interface may be another server
+        JdkHttpInterface other = new JdkHttpInterface().forServer(
+            "http://127.0.0.1:" + _server.getAddress().getPort());
+        try {
+            Task task = Task.instance(Collection.instance(other, "C"),
+                Json.createObjectBuilder().add("task", _task.getJson())
+                .build());
+            assertThat(classes(task.classifications(items(1))
+                               .withCache(cache)), contains("item0"));
+            assertThat(_requests.get(), is(2));
+            assertThat(cache.size(), is(2));
+        } finally {
+            other.shutdown(0);
+        }
+    }
+
+    @Test public void testCoalescing() throws Exception {
+        List<DocumentContent> slow = wrap(Arrays.<CharSequence>asList("slow"));
+        List<Iterator<Either<APIFailure<DocumentContent>,
+                             DocumentPrediction>>> its = new ArrayList<>();
+        // each iterator dispatches its request as soon as it is created
+        InFlightRequests flights = new InFlightRequests();
+        for (int i = 0; i < 5; i++) {
+            its.add(_task.classifications(slow).withCoalescing(flights)
+                    .iterator());
+        }
+        _hold.countDown();
+
+        for (Iterator<Either<APIFailure<DocumentContent>,
+                 DocumentPrediction>> it : its) {
+            assertThat(it.next().right.getJson().getJsonObject(0)
+                       .getString("class"), is("slow"));
+        }
+        assertThat(_requests.get(), is(1));
+
+        // completed requests aren't shared
+        for (int i = 0; i < 100 && flights.pending() > 0; i++)
+            Thread.sleep(10);
+        classes(_task.classifications(slow).withCoalescing(flights));
+        assertThat(_requests.get(), is(2));
+    }
+
+    @Test public void testCoalescedCancel() throws Exception {
+        JsonObject body = Json.createObjectBuilder()
+            .add("content", "slow").build();
+        InFlightRequests flights = new InFlightRequests();
+        HttpFuture<JsonValue> first = flights.httpGet(_http, "/C/T", body);
+        HttpFuture<JsonValue> second = flights.httpGet(_http, "/C/T", body);
+
+        // one caller giving up doesn't cancel the request for the other
+        assertThat(first.getOrCancel(50, TimeUnit.MILLISECONDS).left,
+                   is(instanceOf(HttpTimeoutException.class)));
+        assertTrue(first.isCancelled());
+        _hold.countDown();
+        Either<IOException, JsonArray> result =
+            second.getAs(JsonArray.class);
+        assertTrue(result.isRight());
+        assertThat(result.right.getJsonObject(0).getString("class"),
+                   is("slow"));
+        assertThat(_requests.get(), is(1));
+    }
+}
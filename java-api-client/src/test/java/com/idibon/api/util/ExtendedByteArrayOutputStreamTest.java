@@ -80,4 +80,56 @@ public class ExtendedByteArrayOutputStreamTest {
         str.dropFirst(testData.length - cutpoint);
         assertThat(str.size(), is(0));
     }
+
+    @Test public void testToByteBuffer() throws Exception {
+        ExtendedByteArrayOutputStream str = new ExtendedByteArrayOutputStream();
+        str.write(new byte[]{ 1, 2, 3, 4 });
+        java.nio.ByteBuffer view = str.toByteBuffer();
+        assertThat(view.remaining(), is(4));
+        assertTrue(view.isReadOnly());
+        assertThat(view.get(0), is((byte)1));
+        assertThat(view.get(3), is((byte)4));
+    }
+
+    @Test public void testIndexOfPattern() throws Exception {
+        // a small alphabet produces many partial matches
+        byte[] testData = new byte[1 << 16];
+        Random random = new Random(1);
+        for (int i = 0; i < testData.length; i++)
+            testData[i] = (byte)('a' + random.nextInt(3));
+
+        ExtendedByteArrayOutputStream str = new ExtendedByteArrayOutputStream();
+        str.write(testData);
+
+        for (int len = 1; len < 12; len++) {
+            byte[] sequence = Arrays.copyOfRange(testData, 5000, 5000 + len);
+            BytePattern pattern = new BytePattern(sequence);
+            for (int start = 0; start < 6000; start += 37) {
+                assertThat(str.indexOf(pattern, start),
+                           is(str.indexOf(sequence, start)));
+            }
+        }
+
+        BytePattern missing = new BytePattern(new byte[]{ 'a', 'd' });
+        assertThat(str.indexOf(missing, 0), is(-1));
+        // patterns longer than the remaining data never match
+        BytePattern tail = new BytePattern(
+            Arrays.copyOfRange(testData, testData.length - 4, testData.length));
+        assertThat(str.indexOf(tail, testData.length - 4),
+                   is(testData.length - 4));
+        assertThat(str.indexOf(tail, testData.length - 3), is(-1));
+    }
+
+    @Test public void testSliceRead() throws Exception {
+        ExtendedByteArrayOutputStream str = new ExtendedByteArrayOutputStream();
+        str.write(new byte[]{ 1, 2, 3, 4, 5, 6, 7, 8 });
+
+        InputStream slice = str.toInputStream(2, 5);
+        byte[] dest = new byte[8];
+        assertThat(slice.skip(1), is(1L));
+        assertThat(slice.read(dest, 3, 2), is(2));
+        assertThat(slice.read(dest, 5, 8), is(2));
+        assertThat(slice.read(dest, 0, 8), is(-1));
+        assertThat(dest, is(new byte[]{ 0, 0, 0, 4, 5, 6, 7, 0 }));
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.util;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+public class IterablePublisherTest {
+
+    private static final Executor INLINE = new Executor() {
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    /**
+     * Counts the items pulled from its iterators.
+     */
+    private static class Counting implements Iterable<Integer> {
+        Counting(int size) {
+            _size = size;
+        }
+
+        public Iterator<Integer> iterator() {
+            return new Iterator<Integer>() {
+                private int _next;
+                public boolean hasNext() {
+                    return _next < _size;
+                }
+                public Integer next() {
+                    _pulled++;
+                    return _next++;
+                }
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        int _pulled;
+        private final int _size;
+    }
+
+    private static class Recorder implements Flow.Subscriber<Integer> {
+        public void onSubscribe(Flow.Subscription s) {
+            _subscription = s;
+        }
+        public void onNext(Integer item) {
+            _items.add(item);
+        }
+        public void onError(Throwable error) {
+            _error = error;
+            _done.countDown();
+        }
+        public void onComplete() {
+            _completed = true;
+            _done.countDown();
+        }
+
+        Flow.Subscription _subscription;
+        final List<Integer> _items = new ArrayList<>();
+        final CountDownLatch _done = new CountDownLatch(1);
+        Throwable _error;
+        boolean _completed;
+    }
+
+    @Test public void testDemand() {
+        Counting source = new Counting(5);
+        Recorder sub = new Recorder();
+        Adapters.toPublisher(source, INLINE).subscribe(sub);
+        assertThat(source._pulled, is(0));
+
+        sub._subscription.request(2);
+        assertThat(sub._items, contains(0, 1));
+        assertThat(source._pulled, is(2));
+
+        sub._subscription.request(1);
+        assertThat(sub._items, contains(0, 1, 2));
+        assertFalse(sub._completed);
+
+        sub._subscription.request(10);
+        assertThat(sub._items, contains(0, 1, 2, 3, 4));
+        assertTrue(sub._completed);
+    }
+
+    @Test public void testRequestFromOnNext() {
+        Counting source = new Counting(100);
+        final List<Integer> items = new ArrayList<>();
+        Adapters.toPublisher(source, INLINE).subscribe(new Recorder() {
+            public void onSubscribe(Flow.Subscription s) {
+                super.onSubscribe(s);
+                s.request(1);
+            }
+            public void onNext(Integer item) {
+                items.add(item);
+                if (item < 9) _subscription.request(1);
+            }
+        });
+        assertThat(items.size(), is(10));
+        assertThat(source._pulled, is(10));
+    }
+
+    @Test public void testCancel() {
+        Counting source = new Counting(5);
+        Recorder sub = new Recorder();
+        Adapters.toPublisher(source, INLINE).subscribe(sub);
+        sub._subscription.request(1);
+        sub._subscription.cancel();
+        sub._subscription.request(5);
+        assertThat(sub._items, contains(0));
+        assertFalse(sub._completed);
+        assertThat(sub._error, is(nullValue()));
+    }
+
+    @Test public void testInvalidRequest() {
+        Recorder sub = new Recorder();
+        Adapters.toPublisher(new Counting(5), INLINE).subscribe(sub);
+        sub._subscription.request(0);
+        assertThat(sub._error, is(instanceOf(IllegalArgumentException.class)));
+        assertThat(sub._items, is(empty()));
+    }
+
+    @Test public void testDefaultExecutor() throws Exception {
+        final Recorder sub = new Recorder() {
+            public void onSubscribe(Flow.Subscription s) {
+                super.onSubscribe(s);
+                s.request(Long.MAX_VALUE);
+            }
+        };
+        Adapters.toPublisher(Arrays.asList(1, 2, 3)).subscribe(sub);
+        assertTrue(sub._done.await(10, TimeUnit.SECONDS));
+        assertThat(sub._items, contains(1, 2, 3));
+        assertTrue(sub._completed);
+    }
+}
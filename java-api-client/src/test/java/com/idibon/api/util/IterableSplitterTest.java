@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015, Idibon, Inc.
+ */
+package com.idibon.api.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+public class IterableSplitterTest {
+
+    private static List<Integer> range(int size) {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < size; i++) items.add(i);
+        return items;
+    }
+
+    /**
+     * Wraps a list so that its size is unknown.
+     */
+    private static Iterable<Integer> unsized(final List<Integer> items) {
+        return new Iterable<Integer>() {
+            public Iterator<Integer> iterator() {
+                return items.iterator();
+            }
+        };
+    }
+
+    private static List<Integer> drain(Splittable<Integer> s) {
+        List<Integer> items = new ArrayList<>();
+        while (s.hasNext()) items.add(s.next());
+        return items;
+    }
+
+    @Test public void testBatchesGrow() {
+        Splittable<Integer> s = Adapters.toSplittable(unsized(range(100)));
+        assertThat(s.estimateSize(), is(Long.MAX_VALUE));
+        assertFalse(s.isSized());
+
+        Splittable<Integer> first = s.trySplit();
+        assertTrue(first.isSized());
+        assertThat(first.estimateSize(), is(16L));
+        assertThat(drain(first), is(range(16)));
+
+        Splittable<Integer> second = s.trySplit();
+        assertThat(second.estimateSize(), is(32L));
+        assertThat(second.next(), is(16));
+        assertThat(second.estimateSize(), is(31L));
+
+        assertThat(s.trySplit().estimateSize(), is(48L));
+        assertThat(s.trySplit().estimateSize(), is(4L));
+        assertThat(s.trySplit(), is(nullValue()));
+        assertThat(s.estimateSize(), is(0L));
+    }
+
+    @Test public void testSmallSizedSplits() {
+        Splittable<Integer> s = Adapters.toSplittable(range(10), 10, true);
+        assertTrue(s.isSized());
+        Splittable<Integer> half = s.trySplit();
+        assertThat(half.estimateSize(), is(5L));
+        assertThat(s.estimateSize(), is(5L));
+        assertThat(half.trySplit().estimateSize(), is(2L));
+        assertThat(drain(half), contains(2, 3, 4));
+        assertThat(drain(s), contains(5, 6, 7, 8, 9));
+        assertThat(s.trySplit(), is(nullValue()));
+    }
+
+    /**
+     * Splits recursively across a thread pool, the way a parallel stream
+     * would, and checks that every item is processed exactly once.
+     */
+    @Test public void testParallel() throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final ConcurrentLinkedQueue<Future<List<Integer>>> parts =
+            new ConcurrentLinkedQueue<>();
+        try {
+            Splittable<Integer> s = Adapters.toSplittable(unsized(range(500)));
+            Splittable<Integer> part;
+            while ((part = s.trySplit()) != null) {
+                final Splittable<Integer> items = part;
+                parts.add(pool.submit(new Callable<List<Integer>>() {
+                    public List<Integer> call() {
+                        return drain(items);
+                    }
+                }));
+            }
+
+            List<Integer> all = new ArrayList<>();
+            for (Future<List<Integer>> f : parts) all.addAll(f.get());
+            assertThat(all, is(range(500)));
+            assertThat(parts.size(), is(greaterThan(1)));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}